@@ -15,3 +15,79 @@
 -- along with this program. Look for COPYING file in the top folder.
 -- If not, see http://www.gnu.org/licenses/.
 --
+
+-- QUERY START:
+create index tig_muc_room_history_room_jid_ts_stable_id on tig_muc_room_history ( room_jid_sha1, ts, stable_id );
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_MAM_GetMessagesByKey(roomJid varchar(2049), "since" timestamp, "to" timestamp, "nickname" varchar(1024), "afterId" varchar(36), "beforeId" varchar(36), "backward" boolean, "limit" int)
+    PARAMETER STYLE JAVA
+    LANGUAGE JAVA
+    READS SQL DATA
+    DYNAMIC RESULT SETS 1
+    EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.tigMucMamGetMessagesByKey';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_GetRoomWithAffiliations(roomJid varchar(2049))
+    PARAMETER STYLE JAVA
+    LANGUAGE JAVA
+    READS SQL DATA
+    DYNAMIC RESULT SETS 1
+    EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.tigMucGetRoomWithAffiliations';
+-- QUERY END:
+
+-- QUERY START:
+CREATE procedure Tig_MUC_UPGRADE()
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.migrateFromOldSchema';
+-- QUERY END:
+
+-- QUERY START:
+call Tig_MUC_UPGRADE();
+-- QUERY END:
+
+-- QUERY START:
+drop procedure Tig_MUC_UPGRADE;
+-- QUERY END:
+
+-- QUERY START:
+create index tig_muc_rooms_is_public on tig_muc_rooms ( is_public );
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_SetRoomPublic(roomJid varchar(2049), isPublic int)
+    PARAMETER STYLE JAVA
+    LANGUAGE JAVA
+    MODIFIES SQL DATA
+    EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.tigMucSetRoomPublic';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_GetRoomsDirectoryPage("afterId" bigint, "limit" int)
+    PARAMETER STYLE JAVA
+    LANGUAGE JAVA
+    READS SQL DATA
+    DYNAMIC RESULT SETS 1
+    EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.tigMucGetRoomsDirectoryPage';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_GetRoomAvatarData(id bigint)
+    PARAMETER STYLE JAVA
+    LANGUAGE JAVA
+    READS SQL DATA
+    DYNAMIC RESULT SETS 1
+    EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.tigMucGetAvatarData';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_SetRoomAvatarData(roomId bigint, avatarType varchar(128), avatarData blob, avatarHash varchar(42))
+    PARAMETER STYLE JAVA
+    LANGUAGE JAVA
+    MODIFIES SQL DATA
+    EXTERNAL NAME 'tigase.muc.repository.derby.StoredProcedures.tigMucSetAvatarData';
+-- QUERY END:
@@ -15,3 +15,181 @@
 -- along with this program. Look for COPYING file in the top folder.
 -- If not, see http://www.gnu.org/licenses/.
 --
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_Upgrade;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_MAM_GetMessagesByKey;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure Tig_MUC_Upgrade()
+begin
+    if not exists (select 1 from information_schema.STATISTICS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_muc_room_history' and INDEX_NAME = 'tig_muc_room_history_room_ts_stable_id_index') then
+        create index tig_muc_room_history_room_ts_stable_id_index on tig_muc_room_history (room_jid_sha1, ts, stable_id);
+    end if;
+
+    if not exists (select 1 from information_schema.columns where table_schema = database() and table_name = 'tig_muc_rooms' and column_name = 'is_public') then
+        alter table tig_muc_rooms add is_public int;
+        create index tig_muc_rooms_is_public_index on tig_muc_rooms (is_public);
+    end if;
+
+    if not exists (select 1 from information_schema.columns where table_schema = database() and table_name = 'tig_muc_rooms' and column_name = 'avatar_data') then
+        alter table tig_muc_rooms add avatar_type varchar(128);
+        alter table tig_muc_rooms add avatar_data mediumblob;
+    end if;
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+call Tig_MUC_Upgrade;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_Upgrade;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure Tig_MUC_MAM_GetMessagesByKey(_roomJid varchar(2049), _since timestamp(6), _to timestamp(6), _nickname varchar(1024), _afterId varchar(36), _beforeId varchar(36), _backward boolean, _limit int)
+begin
+    declare _roomJidSha1 char(40);
+    declare _afterStableId binary(16);
+    declare _afterTs timestamp(6);
+    declare _beforeStableId binary(16);
+    declare _beforeTs timestamp(6);
+
+    set _roomJidSha1 = SHA1( LOWER( _roomJid ) );
+    if _afterId is not null then
+        set _afterStableId = Tig_MUC_UuidToOrdered(_afterId);
+        select h.ts into _afterTs from tig_muc_room_history h where h.room_jid_sha1 = _roomJidSha1 and h.stable_id = _afterStableId;
+    end if;
+    if _beforeId is not null then
+        set _beforeStableId = Tig_MUC_UuidToOrdered(_beforeId);
+        select h.ts into _beforeTs from tig_muc_room_history h where h.room_jid_sha1 = _roomJidSha1 and h.stable_id = _beforeStableId;
+    end if;
+
+    if _backward or _beforeId is not null then
+        select t.sender_nickname, Tig_MUC_OrderedToUuid(t.stable_id) as stable_id, t.ts, t.sender_jid, t.body, t.msg from (
+            select h.sender_nickname, h.stable_id, h.ts, h.sender_jid, h.body, h.msg
+            from tig_muc_room_history h
+            where h.room_jid_sha1 = _roomJidSha1
+              and (_since is null or h.ts >= _since)
+              and (_to is null or h.ts <= _to)
+              and (_nickname is null or h.sender_nickname = _nickname)
+              and (_afterId is null or h.ts > _afterTs or (h.ts = _afterTs and h.stable_id > _afterStableId))
+              and (_beforeId is null or h.ts < _beforeTs or (h.ts = _beforeTs and h.stable_id < _beforeStableId))
+            order by h.ts desc, h.stable_id desc limit _limit
+        ) AS t order by t.ts asc, t.stable_id asc;
+    else
+        select h.sender_nickname, Tig_MUC_OrderedToUuid(h.stable_id) as stable_id, h.ts, h.sender_jid, h.body, h.msg
+        from tig_muc_room_history h
+        where h.room_jid_sha1 = _roomJidSha1
+          and (_since is null or h.ts >= _since)
+          and (_to is null or h.ts <= _to)
+          and (_nickname is null or h.sender_nickname = _nickname)
+          and (_afterId is null or h.ts > _afterTs or (h.ts = _afterTs and h.stable_id > _afterStableId))
+        order by h.ts asc, h.stable_id asc limit _limit;
+    end if;
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_GetRoomWithAffiliations;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure Tig_MUC_GetRoomWithAffiliations(_roomJid varchar(2049))
+begin
+    declare _roomJidSha1 char(40);
+
+    set _roomJidSha1 = SHA1( LOWER( _roomJid ) );
+
+    select 0 as row_type, r.room_id, r.creation_date, r.creator, r.config, r.subject, r.subject_creator_nick, r.subject_date, r.avatar_hash,
+        null as jid, null as affiliation, null as persistent, null as nickname
+    from tig_muc_rooms r
+    where r.jid_sha1 = _roomJidSha1
+    union all
+    select 1 as row_type, a.room_id, null, null, null, null, null, null, null,
+        a.jid, a.affiliation, a.persistent, a.nickname
+    from tig_muc_rooms r
+        inner join tig_muc_room_affiliations a on a.room_id = r.room_id
+    where r.jid_sha1 = _roomJidSha1
+    order by row_type;
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_SetRoomPublic;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_GetRoomsDirectory;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_GetRoomsDirectoryPage;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure Tig_MUC_SetRoomPublic(_roomJid varchar(2049), _isPublic int)
+begin
+    update tig_muc_rooms set is_public = _isPublic where jid_sha1 = SHA1( LOWER( _roomJid ) );
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_GetRoomsDirectoryPage(_afterId bigint, _limit int)
+begin
+    select room_id, jid, name, is_public, case when is_public is null then config else null end as config
+    from tig_muc_rooms
+    where room_id > _afterId
+    order by room_id
+    limit _limit;
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_GetRoomAvatarData;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MUC_SetRoomAvatarData;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure Tig_MUC_GetRoomAvatarData(_roomId bigint)
+begin
+    select avatar_type, avatar_data, avatar
+    from tig_muc_rooms
+    where room_id = _roomId;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MUC_SetRoomAvatarData(_roomId bigint, _avatarType varchar(128), _avatarData mediumblob, _avatarHash varchar(42))
+begin
+    update tig_muc_rooms set avatar_type = _avatarType, avatar_data = _avatarData, avatar = null, avatar_hash = _avatarHash where room_id = _roomId;
+end //
+-- QUERY END:
+
+delimiter ;
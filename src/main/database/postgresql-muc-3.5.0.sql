@@ -15,3 +15,190 @@
 -- along with this program. Look for COPYING file in the top folder.
 -- If not, see http://www.gnu.org/licenses/.
 --
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_muc_room_history_room_ts_stable_id_index')) is null) then
+    create index tig_muc_room_history_room_ts_stable_id_index on tig_muc_room_history ( lower(room_jid), ts, stable_id );
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MUC_MAM_GetMessagesByKey(_roomJid varchar(2049), _since timestamp with time zone, _to timestamp with time zone, _nickname varchar(1024), _afterId varchar(36), _beforeId varchar(36), _backward boolean, _limit int) returns table(
+    "sender_nickname" varchar(1024), "stable_id" varchar(36), "ts" timestamp with time zone, "sender_jid" varchar(3074), "body" text, "msg" text
+) as $$
+declare
+    _afterTs timestamp with time zone;
+    _beforeTs timestamp with time zone;
+begin
+    if _afterId is not null then
+        select h.ts into _afterTs from tig_muc_room_history h where lower(h.room_jid) = lower(_roomJid) and h.stable_id = uuid(_afterId);
+    end if;
+    if _beforeId is not null then
+        select h.ts into _beforeTs from tig_muc_room_history h where lower(h.room_jid) = lower(_roomJid) and h.stable_id = uuid(_beforeId);
+    end if;
+
+    if _backward or _beforeId is not null then
+        return query select t.sender_nickname, cast(t.stable_id as varchar(36)) as stable_id, t.ts, t.sender_jid, t.body, t.msg from (
+            select h.sender_nickname, h.stable_id, h.ts, h.sender_jid, h.body, h.msg
+            from tig_muc_room_history h
+            where lower(h.room_jid) = lower(_roomJid)
+                and (_since is null or h.ts >= _since)
+                and (_to is null or h.ts <= _to)
+                and (_nickname is null or h.sender_nickname = _nickname)
+                and (_afterId is null or (h.ts, h.stable_id) > (_afterTs, uuid(_afterId)))
+                and (_beforeId is null or (h.ts, h.stable_id) < (_beforeTs, uuid(_beforeId)))
+            order by h.ts desc, h.stable_id desc
+            limit _limit
+        ) AS t order by t.ts asc, t.stable_id asc;
+    else
+        return query select h.sender_nickname, cast(h.stable_id as varchar(36)) as stable_id, h.ts, h.sender_jid, h.body, h.msg
+            from tig_muc_room_history h
+            where lower(h.room_jid) = lower(_roomJid)
+                and (_since is null or h.ts >= _since)
+                and (_to is null or h.ts <= _to)
+                and (_nickname is null or h.sender_nickname = _nickname)
+                and (_afterId is null or (h.ts, h.stable_id) > (_afterTs, uuid(_afterId)))
+            order by h.ts asc, h.stable_id asc
+            limit _limit;
+    end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MUC_GetRoomWithAffiliations(varchar(2049))
+    returns table
+            (
+                row_type             int,
+                room_id              bigint,
+                creation_date        timestamp with time zone,
+                creator              varchar(2049),
+                config               text,
+                subject              text,
+                subject_creator_nick varchar(1024),
+                subject_change_date  timestamp with time zone,
+                avatar_hash          varchar(42),
+                jid                  varchar(2049),
+                affiliation          varchar(20),
+                persistent           int,
+                nickname             varchar(1024)
+            )
+as
+$$
+select 0 as row_type,
+       r.room_id,
+       r.creation_date,
+       r.creator,
+       r.config,
+       r.subject,
+       r.subject_creator_nick,
+       r.subject_date,
+       r.avatar_hash,
+       cast(null as varchar(2049)),
+       cast(null as varchar(20)),
+       cast(null as int),
+       cast(null as varchar(1024))
+from tig_muc_rooms r
+where lower(r.jid) = lower($1)
+union all
+select 1 as row_type,
+       a.room_id,
+       cast(null as timestamp with time zone),
+       cast(null as varchar(2049)),
+       cast(null as text),
+       cast(null as text),
+       cast(null as varchar(1024)),
+       cast(null as timestamp with time zone),
+       cast(null as varchar(42)),
+       a.jid,
+       a.affiliation,
+       a.persistent,
+       a.nickname
+from tig_muc_rooms r
+         inner join tig_muc_room_affiliations a on a.room_id = r.room_id
+where lower(r.jid) = lower($1)
+order by row_type
+$$ LANGUAGE SQL;
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+    if not exists (select 1 from information_schema.columns where table_catalog = current_database() and table_schema = 'public' and table_name = 'tig_muc_rooms' and column_name = 'is_public') then
+        alter table tig_muc_rooms
+            add is_public int;
+    end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_muc_rooms_is_public_index')) is null) then
+    create index tig_muc_rooms_is_public_index on tig_muc_rooms ( is_public );
+end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MUC_SetRoomPublic(_roomJid varchar(2049), _isPublic int) returns void as $$
+    update tig_muc_rooms set is_public = _isPublic where lower(jid) = lower(_roomJid);
+$$ LANGUAGE SQL;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MUC_GetRoomsDirectoryPage(_afterId bigint, _limit int)
+    returns table
+            (
+                room_id   bigint,
+                jid       varchar(2049),
+                name      varchar(1024),
+                is_public int,
+                config    text
+            )
+as
+$$
+select room_id, jid, name, is_public, case when is_public is null then config else null end
+from tig_muc_rooms
+where room_id > _afterId
+order by room_id
+limit _limit
+$$ LANGUAGE SQL;
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+    if not exists (select 1 from information_schema.columns where table_catalog = current_database() and table_schema = 'public' and table_name = 'tig_muc_rooms' and column_name = 'avatar_data') then
+        alter table tig_muc_rooms
+            add avatar_type varchar(128);
+        alter table tig_muc_rooms
+            add avatar_data bytea;
+    end if;
+end$$;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MUC_GetRoomAvatarData(bigint)
+    returns table
+            (
+                avatar_type varchar(128),
+                avatar_data bytea,
+                avatar      text
+            )
+as
+$$
+select avatar_type, avatar_data, avatar
+from tig_muc_rooms
+where room_id = $1
+$$ LANGUAGE SQL;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MUC_SetRoomAvatarData(_roomId bigint, _avatarType varchar(128), _avatarData bytea, _avatarHash varchar(42)) returns void as $$
+    update tig_muc_rooms set avatar_type = _avatarType, avatar_data = _avatarData, avatar = null, avatar_hash = _avatarHash where room_id = _roomId;
+$$ LANGUAGE SQL;
+-- QUERY END:
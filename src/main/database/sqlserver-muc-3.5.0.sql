@@ -15,3 +15,202 @@
 -- along with this program. Look for COPYING file in the top folder.
 -- If not, see http://www.gnu.org/licenses/.
 --
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_muc_room_history') AND NAME ='IX_tig_muc_room_history_room_jid_sha1_ts_stable_id')
+CREATE INDEX IX_tig_muc_room_history_room_jid_sha1_ts_stable_id ON [dbo].[tig_muc_room_history] ([room_jid_sha1], [ts], [stable_id]);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MUC_MAM_GetMessagesByKey')
+	DROP PROCEDURE Tig_MUC_MAM_GetMessagesByKey
+-- QUERY END:
+GO
+
+-- QUERY START:
+CREATE PROCEDURE dbo.Tig_MUC_MAM_GetMessagesByKey
+    @_roomJid [nvarchar](2049),
+    @_since [datetime],
+    @_to [datetime],
+    @_nickname [nvarchar](1024),
+    @_afterId [nvarchar](36),
+    @_beforeId [nvarchar](36),
+    @_backward [bit],
+    @_limit [int]
+AS
+BEGIN
+    SET NOCOUNT ON;
+    DECLARE @_roomJidSha1 [varbinary](40);
+    DECLARE @_afterStableId [uniqueidentifier];
+    DECLARE @_afterTs [datetime];
+    DECLARE @_beforeStableId [uniqueidentifier];
+    DECLARE @_beforeTs [datetime];
+
+    SET @_roomJidSha1 = HASHBYTES('SHA1', LOWER( @_roomJid ) );
+    IF @_afterId IS NOT NULL
+    BEGIN
+        SET @_afterStableId = CONVERT(uniqueidentifier, @_afterId);
+        SELECT @_afterTs = ts FROM dbo.tig_muc_room_history WHERE room_jid_sha1 = @_roomJidSha1 AND stable_id = @_afterStableId;
+    END
+    IF @_beforeId IS NOT NULL
+    BEGIN
+        SET @_beforeStableId = CONVERT(uniqueidentifier, @_beforeId);
+        SELECT @_beforeTs = ts FROM dbo.tig_muc_room_history WHERE room_jid_sha1 = @_roomJidSha1 AND stable_id = @_beforeStableId;
+    END
+
+    IF @_backward = 1 OR @_beforeId IS NOT NULL
+        SELECT t.sender_nickname, CONVERT(nvarchar(36), t.stable_id) as stable_id, t.ts, t.sender_jid, t.body, t.msg
+        FROM (
+            SELECT TOP (@_limit) sender_nickname, stable_id, ts, sender_jid, body, msg
+            FROM dbo.tig_muc_room_history
+            WHERE room_jid_sha1 = @_roomJidSha1
+                AND ( @_since IS NULL OR ts >= @_since )
+                AND ( @_to IS NULL OR ts <= @_to )
+                AND ( @_nickname IS NULL OR sender_nickname = @_nickname )
+                AND ( @_afterId IS NULL OR ts > @_afterTs OR ( ts = @_afterTs AND stable_id > @_afterStableId ) )
+                AND ( @_beforeId IS NULL OR ts < @_beforeTs OR ( ts = @_beforeTs AND stable_id < @_beforeStableId ) )
+            ORDER BY ts DESC, stable_id DESC
+        ) AS t
+        ORDER BY t.ts ASC, t.stable_id ASC;
+    ELSE
+        SELECT TOP (@_limit) sender_nickname, CONVERT(nvarchar(36), stable_id) as stable_id, ts, sender_jid, body, msg
+        FROM dbo.tig_muc_room_history
+        WHERE room_jid_sha1 = @_roomJidSha1
+            AND ( @_since IS NULL OR ts >= @_since )
+            AND ( @_to IS NULL OR ts <= @_to )
+            AND ( @_nickname IS NULL OR sender_nickname = @_nickname )
+            AND ( @_afterId IS NULL OR ts > @_afterTs OR ( ts = @_afterTs AND stable_id > @_afterStableId ) )
+        ORDER BY ts ASC, stable_id ASC;
+    SET NOCOUNT OFF;
+END
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MUC_GetRoomWithAffiliations')
+    DROP PROCEDURE Tig_MUC_GetRoomWithAffiliations
+-- QUERY END:
+GO
+
+-- QUERY START:
+CREATE PROCEDURE dbo.Tig_MUC_GetRoomWithAffiliations
+@_roomJid [nvarchar](2049)
+AS
+BEGIN
+    DECLARE @_roomJidSha1 [varbinary](40);
+
+    SET @_roomJidSha1 = HASHBYTES('SHA1', LOWER( @_roomJid ) )
+
+    SELECT 0 AS row_type, r.room_id, r.creation_date, r.creator, r.config, r.subject, r.subject_creator_nick, r.subject_date, r.avatar_hash,
+        NULL AS jid, NULL AS affiliation, NULL AS [persistent], NULL AS nickname
+    FROM dbo.tig_muc_rooms r
+    WHERE r.jid_sha1 = @_roomJidSha1
+    UNION ALL
+    SELECT 1 AS row_type, a.room_id, NULL, NULL, NULL, NULL, NULL, NULL, NULL,
+        a.jid, a.affiliation, a.[persistent], a.nickname
+    FROM dbo.tig_muc_rooms r
+        INNER JOIN dbo.tig_muc_room_affiliations a ON a.room_id = r.room_id
+    WHERE r.jid_sha1 = @_roomJidSha1
+    ORDER BY row_type;
+END
+-- QUERY END:
+GO
+
+-- QUERY START:
+if not exists (select 1 from sys.columns where object_id = object_id('dbo.tig_muc_rooms') and name = 'is_public')
+begin
+    alter table tig_muc_rooms add is_public int;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_muc_rooms') AND NAME ='IX_tig_muc_rooms_is_public')
+CREATE INDEX IX_tig_muc_rooms_is_public ON [dbo].[tig_muc_rooms] ([is_public]);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MUC_SetRoomPublic')
+    DROP PROCEDURE Tig_MUC_SetRoomPublic
+-- QUERY END:
+GO
+
+-- QUERY START:
+CREATE PROCEDURE dbo.Tig_MUC_SetRoomPublic
+    @_roomJid [nvarchar](2049),
+    @_isPublic [int]
+AS
+BEGIN
+    SET NOCOUNT ON;
+    UPDATE dbo.tig_muc_rooms SET is_public = @_isPublic WHERE jid_sha1 = HASHBYTES('SHA1', LOWER( @_roomJid ) );
+    SET NOCOUNT OFF;
+END
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MUC_GetRoomsDirectoryPage')
+    DROP PROCEDURE Tig_MUC_GetRoomsDirectoryPage
+-- QUERY END:
+GO
+
+-- QUERY START:
+CREATE PROCEDURE dbo.Tig_MUC_GetRoomsDirectoryPage
+    @_afterId [bigint],
+    @_limit [int]
+AS
+BEGIN
+    SELECT TOP (@_limit) room_id, jid, name, is_public, CASE WHEN is_public IS NULL THEN config ELSE NULL END AS config
+    FROM dbo.tig_muc_rooms
+    WHERE room_id > @_afterId
+    ORDER BY room_id;
+END
+-- QUERY END:
+GO
+
+-- QUERY START:
+if not exists (select 1 from sys.columns where object_id = object_id('dbo.tig_muc_rooms') and name = 'avatar_data')
+begin
+    alter table tig_muc_rooms add avatar_type nvarchar(128);
+    alter table tig_muc_rooms add avatar_data varbinary(MAX);
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MUC_GetRoomAvatarData')
+    DROP PROCEDURE Tig_MUC_GetRoomAvatarData
+-- QUERY END:
+GO
+
+-- QUERY START:
+CREATE PROCEDURE dbo.Tig_MUC_GetRoomAvatarData @_roomId [bigint]
+AS
+BEGIN
+    SELECT avatar_type, avatar_data, avatar FROM tig_muc_rooms WHERE room_id = @_roomId;
+END
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MUC_SetRoomAvatarData')
+    DROP PROCEDURE Tig_MUC_SetRoomAvatarData
+-- QUERY END:
+GO
+
+-- QUERY START:
+CREATE PROCEDURE dbo.Tig_MUC_SetRoomAvatarData
+    @_roomId [bigint],
+    @_avatarType [nvarchar](128),
+    @_avatarData [varbinary](MAX),
+    @_avatarHash [nvarchar](42)
+AS
+BEGIN
+    SET NOCOUNT ON;
+    UPDATE tig_muc_rooms SET avatar_type = @_avatarType, avatar_data = @_avatarData, avatar = NULL, avatar_hash = @_avatarHash WHERE room_id = @_roomId;
+    SET NOCOUNT OFF;
+END
+-- QUERY END:
+GO
@@ -0,0 +1,86 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.admin
+
+import groovy.transform.CompileStatic
+import tigase.kernel.core.Kernel
+import tigase.muc.MUCComponent
+import tigase.muc.repository.IMucRepository
+import tigase.muc.repository.inmemory.InMemoryMucRepository
+import tigase.server.Command
+import tigase.server.Iq
+import tigase.server.Packet
+
+// AS:Description: Rooms cache information
+// AS:CommandId: rooms-cache-info
+// AS:Component: muc
+// AS:ComponentClass: tigase.muc.MUCComponent
+
+Kernel kernel = (Kernel) kernel;
+MUCComponent component = (MUCComponent) component
+packet = (Iq) packet
+
+@CompileStatic
+Packet process(Kernel kernel, MUCComponent component, Iq p, Set admins) {
+
+	boolean isServiceAdmin = admins.contains(p.getStanzaFrom().getBareJID());
+
+	if (!isServiceAdmin && !component.isAdmin(p.getStanzaFrom())) {
+		Iq result = (Iq) p.commandResult(Command.DataType.result)
+		Command.addTextField(result, "Error", "You do not have enough permissions to inspect rooms cache.");
+		return result;
+	}
+
+	IMucRepository mucRepository = kernel.getInstance(IMucRepository.class);
+	if (!(mucRepository instanceof InMemoryMucRepository)) {
+		Iq result = (Iq) p.commandResult(Command.DataType.result)
+		Command.addTextField(result, "Error", "Rooms cache is not supported by the used repository.");
+		return result;
+	}
+	InMemoryMucRepository repository = (InMemoryMucRepository) mucRepository;
+
+	if (Command.getCheckBoxFieldValue(p, "evict")) {
+		repository.evictRooms(System.currentTimeMillis());
+	}
+
+	long hits = repository.getRoomsCacheHits();
+	long misses = repository.getRoomsCacheMisses();
+
+	Iq result = (Iq) p.commandResult(Command.DataType.form)
+	Command.addTitle(result, "Rooms cache")
+	Command.addFieldValue(result, "rooms", String.valueOf(repository.getActiveRooms().size()), "text-single",
+						  "Rooms in memory")
+	Command.addFieldValue(result, "size-limit", String.valueOf(repository.getRoomsCacheSize()), "text-single",
+						  "Maximal number of rooms (0 - no limit)")
+	Command.addFieldValue(result, "idle-time", String.valueOf(repository.getRoomsCacheIdleTime()), "text-single",
+						  "Idle time [s] (0 - disabled)")
+	Command.addFieldValue(result, "hits", String.valueOf(hits), "text-single", "Cache hits")
+	Command.addFieldValue(result, "misses", String.valueOf(misses), "text-single", "Cache misses")
+	Command.addFieldValue(result, "hit-rate",
+						  String.format("%.2f", hits + misses == 0 ? 0d : (100d * hits) / (hits + misses)),
+						  "text-single", "Hit rate [%]")
+	Command.addFieldValue(result, "load-time",
+						  String.format("%.2f", repository.getRoomsAverageLoadTime()), "text-single",
+						  "Average load time [ms]")
+	Command.addFieldValue(result, "evicted", String.valueOf(repository.getRoomsEvicted()), "text-single",
+						  "Rooms removed from memory")
+	Command.addCheckBoxField(result, "evict", false)
+	return result;
+}
+
+return process(kernel, component, packet, (Set) adminsSet);
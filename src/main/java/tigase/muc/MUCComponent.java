@@ -29,11 +29,14 @@ import tigase.kernel.beans.selector.ClusterModeRequired;
 import tigase.kernel.beans.selector.ConfigType;
 import tigase.kernel.beans.selector.ConfigTypeEnum;
 import tigase.kernel.core.Kernel;
+import tigase.muc.history.HistoryProvider;
 import tigase.muc.modules.*;
 import tigase.muc.modules.selfping.SelfPingModule;
 import tigase.muc.modules.selfping.SelfPingerMonitor;
 import tigase.muc.repository.IMucRepository;
+import tigase.muc.repository.inmemory.InMemoryMucRepository;
 import tigase.server.Packet;
+import tigase.stats.StatisticsList;
 import tigase.xmpp.mam.MAMItemHandler;
 import tigase.xmpp.mam.MAMQueryParser;
 import tigase.xmpp.mam.modules.GetFormModule;
@@ -86,6 +89,19 @@ public class MUCComponent
 		return "Multi User Chat";
 	}
 
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+		final IMucRepository mucRepository = kernel.getInstance(IMucRepository.class);
+		if (mucRepository instanceof InMemoryMucRepository) {
+			((InMemoryMucRepository) mucRepository).getStatistics(getName(), list);
+		}
+		final HistoryProvider historyProvider = kernel.getInstance(HistoryProvider.class);
+		if (historyProvider != null) {
+			historyProvider.getHistoryStatistics(getName(), list);
+		}
+	}
+
 	@Override
 	public int hashCodeForPacket(Packet packet) {
 		if ((packet.getStanzaFrom() != null) && (packet.getPacketFrom() != null) &&
@@ -194,6 +210,7 @@ public class MUCComponent
 			}
 		}
 		if (changed) {
+			defaultRoomConfig.notifyConfigUpdate();
 			if (log.isLoggable(Level.CONFIG)) {
 				log.config("Default room configuration is udpated");
 			}
@@ -24,7 +24,6 @@ import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.util.*;
-import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -32,7 +31,10 @@ import java.util.logging.Logger;
 //~--- non-JDK imports --------------------------------------------------------
 
 /**
- * Class description
+ * Stores presences of all resources of room occupants and selects best presence of each occupant.
+ * <br>
+ * Presences of resources of a single bare JID are kept in an immutable {@link Resources} instance, which is replaced
+ * atomically on every change, together with selected best presence.
  *
  * @author Enter your name here...
  * @version Enter version here..., 13/02/16
@@ -51,10 +53,50 @@ public class PresenceStore {
 		PREFERE_PRIORITY;
 	}
 
-	private final Map<BareJID, Presence> bestPresence = new ConcurrentHashMap<>();
-	private final Map<JID, Presence> presenceByJid = new ConcurrentHashMap<>();
-	private PresenceDeliveryLogic presenceOrdering;
-	private Map<BareJID, Map<String, Presence>> presencesMapByBareJid = new ConcurrentHashMap<>();
+	private final Map<BareJID, Resources> presencesByBareJid = new ConcurrentHashMap<>();
+	private volatile PresenceDeliveryLogic presenceOrdering;
+
+	/**
+	 * Parses priority of presence. Invalid values are treated as <code>0</code>.
+	 */
+	static int parsePriority(String value) {
+		if (value == null) {
+			return 0;
+		}
+		int start = 0;
+		int end = value.length();
+		while (start < end && Character.isWhitespace(value.charAt(start))) {
+			start++;
+		}
+		while (end > start && Character.isWhitespace(value.charAt(end - 1))) {
+			end--;
+		}
+		if (start == end) {
+			return 0;
+		}
+		boolean negative = false;
+		char first = value.charAt(start);
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			start++;
+			if (start == end) {
+				return 0;
+			}
+		}
+		// priority is limited to -128..127, so longer numbers are not valid
+		if (end - start > 3) {
+			return 0;
+		}
+		int result = 0;
+		for (int i = start; i < end; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return 0;
+			}
+			result = result * 10 + (c - '0');
+		}
+		return negative ? -result : result;
+	}
 
 	public PresenceStore() {
 		presenceOrdering = PresenceDeliveryLogic.PREFERE_PRIORITY;
@@ -65,67 +107,17 @@ public class PresenceStore {
 	}
 
 	public void clear() {
-		presenceByJid.clear();
-		bestPresence.clear();
-		presencesMapByBareJid.clear();
-	}
-
-	// ~--- methods
-	// --------------------------------------------------------------
-
-	private Presence findHighPriorityPresence(final BareJID jid) {
-		return findPresence(jid, (result, x) -> {
-			if ((result == null) || ((x.type == null) && (x.priority > result.priority ||
-					(x.priority == result.priority && x.lastUpdated.after(result.lastUpdated))))) {
-				return 1;
-			} else {
-				return -1;
-			}
-
-		});
-	}
-
-	private Presence findLastPresence(final BareJID jid) {
-		return findPresence(jid, (result, x) -> {
-			Date l = x.lastUpdated;
-			if ((result == null) || ((l.after(result.lastUpdated)) && (x.type == null))) {
-				return 1;
-			} else {
-				return -1;
-			}
-		});
-	}
-
-	private Presence findPresence(final BareJID jid, final Comparator<Presence> c) {
-		Map<String, Presence> resourcesPresence = this.presencesMapByBareJid.get(jid);
-		Presence result = null;
-
-		if (log.isLoggable(Level.FINEST)) {
-			log.log(Level.FINEST, "User resources presences: " + resourcesPresence);
-		}
-
-		if (resourcesPresence != null) {
-			Iterator<Presence> it = resourcesPresence.values().iterator();
-
-			while (it.hasNext()) {
-				Presence x = it.next();
-				int r = c.compare(result, x);
-
-				if (r > 0) {
-					result = x;
-				}
-
-			}
-		}
-		return result;
+		presencesByBareJid.clear();
 	}
 
 	public Collection<JID> getAllKnownJIDs() {
 		ArrayList<JID> result = new ArrayList<>();
 
-		for (Entry<JID, Presence> entry : this.presenceByJid.entrySet()) {
-			if (entry.getValue().type == null) {
-				result.add(entry.getKey());
+		for (Resources resources : this.presencesByBareJid.values()) {
+			for (Presence presence : resources.presences) {
+				if (presence.type == null) {
+					result.add(presence.from);
+				}
 			}
 		}
 
@@ -133,61 +125,45 @@ public class PresenceStore {
 	}
 
 	public Element getBestPresence(final BareJID jid) {
-		Presence p = getBestPresenceInt(jid);
-		if (p == null) {
-			Map<String, Presence> set = presencesMapByBareJid.get(jid);
-			if (set != null && !set.isEmpty()) {
-				return set.values().iterator().next().element;
-			}
+		Resources resources = this.presencesByBareJid.get(jid);
+		if (resources == null) {
+			return null;
 		}
-		return (p == null) ? null : p.element;
+		if (resources.best != null) {
+			return resources.best.element;
+		}
+		return resources.presences.length == 0 ? null : resources.presences[0].element;
 	}
 
 	public Presence getBestPresenceInt(final BareJID jid) {
-		return this.bestPresence.get(jid);
+		Resources resources = this.presencesByBareJid.get(jid);
+		return resources == null ? null : resources.best;
 	}
 
 	public Element getPresence(final JID jid) {
-		Presence p = this.presenceByJid.get(jid);
-
-		return (p == null) ? null : p.element;
+		Resources resources = this.presencesByBareJid.get(jid.getBareJID());
+		if (resources == null) {
+			return null;
+		}
+		int idx = resources.indexOf(resourceOf(jid));
+		return idx < 0 ? null : resources.presences[idx].element;
 	}
 
 	public boolean isAvailable(BareJID jid) {
-		Map<String, Presence> resourcesPresence = this.presencesMapByBareJid.get(jid);
+		Resources resources = this.presencesByBareJid.get(jid);
 		if (log.isLoggable(Level.FINEST)) {
-			log.log(Level.FINEST, "resourcesPresence: " + resourcesPresence);
-		}
-
-		boolean result = false;
-
-		if (resourcesPresence != null) {
-			Iterator<Presence> it = resourcesPresence.values().iterator();
-
-			while (it.hasNext() && !result) {
-				Presence x = it.next();
-
-				result = result | x.type == null;
-			}
+			log.log(Level.FINEST, "resourcesPresence: " + resources);
 		}
-
-		return result;
+		return resources != null && resources.available;
 	}
 
 	public void remove(final JID from) throws TigaseStringprepException {
-		final String resource = (from.getResource() == null) ? "" : from.getResource();
-
-		this.presenceByJid.remove(from);
-
-		Map<String, Presence> m = this.presencesMapByBareJid.get(from.getBareJID());
-
-		if (m != null) {
-			m.remove(resource);
-			if (m.isEmpty()) {
-				this.presencesMapByBareJid.remove(from.getBareJID());
-			}
-		}
-		updateBestPresence(from.getBareJID(), null);
+		final String resource = resourceOf(from);
+		final PresenceDeliveryLogic ordering = presenceOrdering;
+		Resources result = this.presencesByBareJid.computeIfPresent(from.getBareJID(),
+																	(jid, resources) -> resources.without(resource,
+																										  ordering));
+		logBestPresence(result);
 	}
 
 	public void setOrdening(PresenceDeliveryLogic pdl) {
@@ -205,94 +181,69 @@ public class PresenceStore {
 		}
 
 		final JID from = JID.jidInstance(f);
-		final BareJID bareFrom = from.getBareJID();
-		final String resource = (from.getResource() == null) ? "" : from.getResource();
-		final Presence p = new Presence(presence);
+		final String resource = resourceOf(from);
+		final Presence p = new Presence(presence, from);
+		final PresenceDeliveryLogic ordering = presenceOrdering;
 
+		final Resources result;
 		if ((p.type != null) && p.type.equals("unavailable")) {
-			this.presenceByJid.remove(from);
-
-			Map<String, Presence> m = this.presencesMapByBareJid.get(bareFrom);
-
-			if (m != null) {
-				m.remove(resource);
-				if (m.isEmpty()) {
-					this.presencesMapByBareJid.remove(bareFrom);
+			result = this.presencesByBareJid.compute(from.getBareJID(), (jid, resources) -> {
+				if (resources == null) {
+					resources = Resources.EMPTY;
 				}
-			}
+				Resources updated = resources.without(resource, ordering);
+				if (ordering == PresenceDeliveryLogic.PREFERE_LAST) {
+					// last received presence is selected, even if it is unavailable presence
+					updated = new Resources(updated == null ? Resources.EMPTY.presences : updated.presences, p);
+				}
+				return updated;
+			});
 		} else {
-			this.presenceByJid.put(from, p);
-
-			Map<String, Presence> m = this.presencesMapByBareJid.get(bareFrom);
-
-			if (m == null) {
-				m = new ConcurrentHashMap<String, Presence>();
-				this.presencesMapByBareJid.put(bareFrom, m);
-			}
-			m.put(resource, p);
-
+			result = this.presencesByBareJid.compute(from.getBareJID(), (jid, resources) -> (resources == null
+																							  ? Resources.EMPTY
+																							  : resources).with(
+					resource, p, ordering));
 		}
-		updateBestPresence(bareFrom, p);
+		logBestPresence(result);
 	}
 
-	private void updateBestPresence(final BareJID bareFrom, final Presence currentPresence)
-			throws TigaseStringprepException {
-		Presence x;
-
-		switch (presenceOrdering) {
-			case PREFERE_PRIORITY:
-				x = findHighPriorityPresence(bareFrom);
-				break;
-			case PREFERE_LAST:
-				if (currentPresence == null) {
-					x = findLastPresence(bareFrom);
-				} else {
-					x = currentPresence;
-				}
-				break;
-			default:
-				throw new RuntimeException("Unknown presenceOrdering");
-		}
+	private static String resourceOf(JID jid) {
+		return (jid.getResource() == null) ? "" : jid.getResource();
+	}
 
+	private void logBestPresence(Resources resources) {
 		if (log.isLoggable(Level.FINEST)) {
-			log.finest("Selected BestPresence: " + (x != null ? x.element.toString() : "n/a"));
-		}
-
-		if (x == null) {
-			this.bestPresence.remove(bareFrom);
-		} else {
-			this.bestPresence.put(bareFrom, x);
+			log.finest("Selected BestPresence: " +
+							   (resources != null && resources.best != null ? resources.best.element.toString() : "n/a"));
 		}
 	}
 
 	// ~--- inner classes
 	// --------------------------------------------------------
 
-	public class Presence {
+	public static class Presence {
 
 		final Element element;
 		final JID from;
-		final Date lastUpdated;
+		final long lastUpdated;
 		final int priority;
+		final String resource;
 		final String show;
 		final String type;
 
 		public Presence(Element presence) {
-			this.lastUpdated = new Date();
+			this(presence, JID.jidInstanceNS(presence.getAttributeStaticStr(Packet.FROM_ATT)));
+		}
+
+		Presence(Element presence, JID from) {
+			this.lastUpdated = System.currentTimeMillis();
 			this.element = presence;
 			this.type = presence.getAttributeStaticStr(Packet.TYPE_ATT);
-			this.from = JID.jidInstanceNS(presence.getAttributeStaticStr(Packet.FROM_ATT));
-
+			this.from = from;
+			this.resource = from == null ? "" : resourceOf(from);
 			this.show = presence.getChildCDataStaticStr(tigase.server.Presence.PRESENCE_SHOW_PATH);
-
-			String p = presence.getChildCDataStaticStr(tigase.server.Presence.PRESENCE_PRIORITY_PATH);
-			int x = 0;
-
-			try {
-				x = Integer.parseInt(p);
-			} catch (Exception e) {
-			}
-			this.priority = x;
+			this.priority = parsePriority(
+					presence.getChildCDataStaticStr(tigase.server.Presence.PRESENCE_PRIORITY_PATH));
 		}
 
 		public JID getFrom() {
@@ -303,7 +254,20 @@ public class PresenceStore {
 			return element;
 		}
 
+		/**
+		 * @return time of presence update
+		 *
+		 * @deprecated use {@link #getLastUpdatedTime()} instead
+		 */
+		@Deprecated
 		public Date getLastUpdated() {
+			return new Date(lastUpdated);
+		}
+
+		/**
+		 * @return time of presence update in milliseconds
+		 */
+		public long getLastUpdatedTime() {
 			return lastUpdated;
 		}
 
@@ -321,4 +285,148 @@ public class PresenceStore {
 					", lastUpdated=" + lastUpdated + "]";
 		}
 	}
+
+	/**
+	 * Immutable presences of all resources of a single bare JID with selected best presence.
+	 */
+	private static final class Resources {
+
+		private static final Resources EMPTY = new Resources(new Presence[0], null);
+
+		private final boolean available;
+		private final Presence best;
+		private final Presence[] presences;
+
+		/**
+		 * Returns <code>true</code> if <code>candidate</code> should be selected instead of <code>current</code> when
+		 * presence with the highest priority is preferred.
+		 */
+		private static boolean isHigherPriority(Presence candidate, Presence current) {
+			if (current == null) {
+				return true;
+			}
+			if (candidate.type != null) {
+				return false;
+			}
+			if (current.type != null) {
+				return true;
+			}
+			return candidate.priority > current.priority ||
+					(candidate.priority == current.priority && candidate.lastUpdated >= current.lastUpdated);
+		}
+
+		private static boolean isMoreRecent(Presence candidate, Presence current) {
+			if (current == null) {
+				return true;
+			}
+			if (candidate.type != null) {
+				return false;
+			}
+			return current.type != null || candidate.lastUpdated >= current.lastUpdated;
+		}
+
+		private Resources(Presence[] presences, Presence best) {
+			this.presences = presences;
+			this.best = best;
+			boolean available = false;
+			for (Presence presence : presences) {
+				if (presence.type == null) {
+					available = true;
+					break;
+				}
+			}
+			this.available = available;
+		}
+
+		private int indexOf(String resource) {
+			for (int i = 0; i < presences.length; i++) {
+				if (presences[i].resource.equals(resource)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private Resources with(String resource, Presence presence, PresenceDeliveryLogic ordering) {
+			final int idx = indexOf(resource);
+			final Presence[] updated;
+			if (idx < 0) {
+				updated = Arrays.copyOf(presences, presences.length + 1);
+				updated[presences.length] = presence;
+			} else {
+				updated = presences.clone();
+				updated[idx] = presence;
+			}
+
+			final Presence newBest;
+			switch (ordering) {
+				case PREFERE_LAST:
+					newBest = presence;
+					break;
+				case PREFERE_PRIORITY:
+					if (isHigherPriority(presence, best)) {
+						newBest = presence;
+					} else if (best != null && best.resource.equals(resource)) {
+						// previously selected presence was replaced by one with lower priority
+						newBest = findBest(updated, ordering);
+					} else {
+						newBest = best;
+					}
+					break;
+				default:
+					throw new RuntimeException("Unknown presenceOrdering");
+			}
+			return new Resources(updated, newBest);
+		}
+
+		/**
+		 * @return resources without presence of the resource or <code>null</code> if there is no presence left
+		 */
+		private Resources without(String resource, PresenceDeliveryLogic ordering) {
+			final int idx = indexOf(resource);
+			if (idx < 0) {
+				return presences.length == 0 && best == null ? null : this;
+			}
+			if (presences.length == 1) {
+				return null;
+			}
+			final Presence[] updated = new Presence[presences.length - 1];
+			System.arraycopy(presences, 0, updated, 0, idx);
+			System.arraycopy(presences, idx + 1, updated, idx, presences.length - idx - 1);
+
+			final Presence newBest;
+			if (best == null || best.resource.equals(resource)) {
+				newBest = findBest(updated, ordering);
+			} else {
+				newBest = best;
+			}
+			return new Resources(updated, newBest);
+		}
+
+		private static Presence findBest(Presence[] presences, PresenceDeliveryLogic ordering) {
+			Presence result = null;
+			for (Presence presence : presences) {
+				switch (ordering) {
+					case PREFERE_PRIORITY:
+						if (isHigherPriority(presence, result)) {
+							result = presence;
+						}
+						break;
+					case PREFERE_LAST:
+						if (isMoreRecent(presence, result)) {
+							result = presence;
+						}
+						break;
+					default:
+						throw new RuntimeException("Unknown presenceOrdering");
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			return "Resources[presences=" + Arrays.toString(presences) + ", best=" + best + "]";
+		}
+	}
 }
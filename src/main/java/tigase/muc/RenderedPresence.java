@@ -0,0 +1,132 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Presence of an occupant rendered for delivery to other occupants, with <code>muc#user</code> items and filtered
+ * children. Instance is immutable and shared - for every destination only a shallow copy of the template with
+ * <code>to</code> attribute set is created, while child elements are reused.
+ * <br>
+ * Child elements of created presences are therefore read-only: they must not be modified in place by any code
+ * handling the packets later on (they have to be replaced with modified clones), while adding or removing children
+ * of a single packet does not affect other packets. Elements passed to the constructor must not be modified either.
+ * <br>
+ * Templates are rendered in two variants: for destinations which are allowed to see JIDs of occupants and for those
+ * which are not.
+ */
+public class RenderedPresence {
+
+	private final Template[] anonymous;
+	private final JID from;
+	private final Template[] withJids;
+
+	/**
+	 * @param from JID of occupant in the room
+	 * @param anonymous presences without occupants JIDs
+	 * @param withJids presences with occupants JIDs
+	 */
+	public RenderedPresence(JID from, List<Element> anonymous, List<Element> withJids) {
+		this.from = from;
+		this.anonymous = toTemplates(anonymous);
+		this.withJids = anonymous == withJids ? this.anonymous : toTemplates(withJids);
+	}
+
+	private static Template[] toTemplates(List<Element> elements) {
+		Template[] result = new Template[elements.size()];
+		Template previous = null;
+		for (int i = 0; i < result.length; i++) {
+			Element element = elements.get(i);
+			// the same element may be delivered more than once
+			result[i] = previous != null && previous.element == element ? previous : new Template(element);
+			previous = result[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Creates presences ready to be sent to <code>destinationJID</code>.
+	 *
+	 * @param jidVisible <code>true</code> if destination is allowed to see JIDs of occupants
+	 */
+	public List<Packet> createPackets(JID destinationJID, boolean jidVisible) {
+		final Template[] templates = jidVisible ? withJids : anonymous;
+		if (templates.length == 1) {
+			return Collections.singletonList(templates[0].createPacket(from, destinationJID));
+		}
+		final List<Packet> result = new ArrayList<>(templates.length);
+		for (Template template : templates) {
+			result.add(template.createPacket(from, destinationJID));
+		}
+		return result;
+	}
+
+	public JID getFrom() {
+		return from;
+	}
+
+	private static final class Template {
+
+		private final String[] attrNames;
+		private final String[] attrValues;
+		private final List<Element> children;
+		private final Element element;
+
+		private Template(Element element) {
+			this.element = element;
+			final Map<String, String> attributes = element.getAttributes();
+			final ArrayList<String> names = new ArrayList<>(attributes.size() + 1);
+			final ArrayList<String> values = new ArrayList<>(attributes.size() + 1);
+			attributes.forEach((name, value) -> {
+				if (!Packet.TO_ATT.equals(name)) {
+					names.add(name);
+					values.add(value);
+				}
+			});
+			// placeholder for "to" attribute, set for every destination
+			names.add(Packet.TO_ATT);
+			values.add(null);
+			this.attrNames = names.toArray(new String[0]);
+			this.attrValues = values.toArray(new String[0]);
+			final List<Element> children = element.getChildren();
+			this.children = children == null
+							? Collections.emptyList()
+							: Collections.unmodifiableList(new ArrayList<>(children));
+		}
+
+		private Packet createPacket(JID from, JID destinationJID) {
+			final String[] values = attrValues.clone();
+			values[values.length - 1] = destinationJID.toString();
+			final Element presence = new Element(element.getName(), attrNames, values);
+			if (!children.isEmpty()) {
+				presence.addChildren(children);
+			}
+			final Packet packet = Packet.packetInstance(presence, from, destinationJID);
+			packet.setXMLNS(Packet.CLIENT_XMLNS);
+			return packet;
+		}
+	}
+}
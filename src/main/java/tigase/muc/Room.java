@@ -29,6 +29,9 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -44,14 +47,25 @@ public class Room
 	protected final PresenceStore presences = new PresenceStore();
 
 	private final Map<BareJID, RoomAffiliation> affiliations = new ConcurrentHashMap<BareJID, RoomAffiliation>();
+	private final AtomicLong affiliationsVersion = new AtomicLong();
 	private final RoomConfig config;
 	private final Date creationDate;
 	private final BareJID creatorJid;
 	private final List<RoomListener> listeners = new CopyOnWriteArrayList<RoomListener>();
 	private final List<Room.RoomOccupantListener> occupantListeners = new CopyOnWriteArrayList<Room.RoomOccupantListener>();
 	private final Map<String, OccupantEntry> occupants = new ConcurrentHashMap<String, OccupantEntry>();
+	private final Map<JID, OccupantEntry> occupantsByJid = new ConcurrentHashMap<JID, OccupantEntry>();
+	private final Map<BareJID, Set<String>> occupantsNicknamesByBareJid = new ConcurrentHashMap<BareJID, Set<String>>();
+	private final AtomicLong occupantsVersion = new AtomicLong();
+	private final AtomicInteger offlinePersistentOccupantsCount = new AtomicInteger();
+	private final Map<String, BareJID> persistentOccupantsByNickname = new ConcurrentHashMap<String, BareJID>();
+	/**
+	 * Rendered presences of occupants or tokens of presences which are being rendered.
+	 */
+	private final Map<String, Object> renderedPresences = new ConcurrentHashMap<String, Object>();
 	private final Map<String, Object> roomCustomData = new ConcurrentHashMap<String, Object>();
-	private String avatarHash;
+	private volatile String avatarHash;
+	private volatile DeliveryRoster deliveryRoster;
 	private boolean roomLocked;
 	private String subject;
 	private Date subjectChangeDate;
@@ -105,12 +119,23 @@ public class Room
 	}
 
 	public void addAffiliationByJid(BareJID jid, RoomAffiliation affiliation) throws RepositoryException {
-		final RoomAffiliation oldAffiliation = getAffiliation(jid);
-		if (affiliation.getAffiliation() == Affiliation.none) {
-			this.affiliations.remove(jid);
-		} else {
-			this.affiliations.put(jid, affiliation);
+		final RoomAffiliation oldAffiliation;
+		synchronized (this.affiliations) {
+			oldAffiliation = getAffiliation(jid);
+			final RoomAffiliation previous;
+			// counter of offline persistent occupants depends on both maps, so they are changed under both locks
+			synchronized (this.occupants) {
+				if (affiliation.getAffiliation() == Affiliation.none) {
+					previous = this.affiliations.remove(jid);
+				} else {
+					previous = this.affiliations.put(jid, affiliation);
+				}
+				updateOfflinePersistentOccupantsCount(jid, previous, affiliation);
+			}
+			updatePersistentOccupantsIndex(jid, previous, affiliation);
+			this.affiliationsVersion.incrementAndGet();
 		}
+		invalidateRenderedPresencesOf(jid);
 		fireOnSetAffiliation(jid, oldAffiliation, affiliation);
 	}
 
@@ -120,23 +145,31 @@ public class Room
 
 	public void addOccupantByJid(JID senderJid, String nickName, Role role, Element pe)
 			throws TigaseStringprepException {
-		OccupantEntry entry = this.occupants.get(nickName);
 		this.presences.update(pe);
-		if (entry == null) {
-			entry = new OccupantEntry(nickName, senderJid.getBareJID());
-			this.occupants.put(nickName, entry);
-
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "Room {0}. Created OccupantEntry for {1}, nickname={2}",
-						new Object[]{config.getRoomJID(), senderJid, nickName});
+		boolean added = false;
+		synchronized (this.occupants) {
+			OccupantEntry entry = this.occupants.get(nickName);
+			if (entry == null) {
+				entry = new OccupantEntry(nickName, senderJid.getBareJID());
+				this.occupants.put(nickName, entry);
+				addToNicknamesIndex(entry.jid, nickName);
+
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Room {0}. Created OccupantEntry for {1}, nickname={2}",
+							new Object[]{config.getRoomJID(), senderJid, nickName});
+				}
 			}
-		}
 
-		entry.role = role;
-		boolean added = false;
-		synchronized (entry.jids) {
-			added = entry.jids.add(senderJid);
+			entry.role = role;
+			synchronized (entry.jids) {
+				added = entry.jids.add(senderJid);
+			}
+			if (added) {
+				this.occupantsByJid.put(senderJid, entry);
+			}
+			this.occupantsVersion.incrementAndGet();
 		}
+		invalidateRenderedPresences(senderJid.getBareJID(), nickName);
 
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Room {0}. {1} occupant {2} ({3}) to room with role={4}; filtering enabled: {5}",
@@ -145,9 +178,7 @@ public class Room
 		}
 
 		if (added) {
-			if (!config.isPresenceFilterEnabled() || (config.isPresenceFilterEnabled() &&
-					(!config.getPresenceFilteredAffiliations().isEmpty() && config.getPresenceFilteredAffiliations()
-							.contains(getAffiliation(senderJid.getBareJID()).getAffiliation())))) {
+			if (config.getSnapshot().isPresenceDelivered(getAffiliation(senderJid.getBareJID()).getAffiliation())) {
 				fireOnOccupantAdded(senderJid);
 				fireOnOccupantChangedPresence(senderJid, nickName, pe, true);
 			}
@@ -159,12 +190,23 @@ public class Room
 	}
 
 	public void changeNickName(JID senderJid, String nickName) {
-		OccupantEntry occ = getBySenderJid(senderJid);
-		String oldNickname = occ.nickname;
-
-		this.occupants.remove(oldNickname);
-		occ.nickname = nickName;
-		this.occupants.put(nickName, occ);
+		final String oldNickname;
+		synchronized (this.occupants) {
+			OccupantEntry occ = getBySenderJid(senderJid);
+			oldNickname = occ.nickname;
+
+			this.occupants.remove(oldNickname, occ);
+			occ.nickname = nickName;
+			this.occupants.put(nickName, occ);
+			// adding new nickname first, so bare JID is not seen as offline for a moment
+			addToNicknamesIndex(occ.jid, nickName);
+			if (!nickName.equals(oldNickname)) {
+				removeFromNicknamesIndex(occ.jid, oldNickname);
+			}
+			this.occupantsVersion.incrementAndGet();
+		}
+		invalidateRenderedPresences(oldNickname);
+		invalidateRenderedPresences(nickName);
 
 		if (log.isLoggable(Level.FINEST)) {
 			log.finest("Room " + config.getRoomJID() + ". Occupant " + senderJid + " changed nickname from " +
@@ -205,8 +247,23 @@ public class Room
 	}
 
 	public void setAffiliations(Map<BareJID, RoomAffiliation> affiliations) {
-		this.affiliations.clear();
-		this.affiliations.putAll(affiliations);
+		synchronized (this.affiliations) {
+			this.persistentOccupantsByNickname.clear();
+			synchronized (this.occupants) {
+				this.affiliations.clear();
+				this.affiliations.putAll(affiliations);
+				int offlinePersistentOccupants = 0;
+				for (Map.Entry<BareJID, RoomAffiliation> e : this.affiliations.entrySet()) {
+					if (e.getValue().isPersistentOccupant() && !occupantsNicknamesByBareJid.containsKey(e.getKey())) {
+						offlinePersistentOccupants++;
+					}
+				}
+				this.offlinePersistentOccupantsCount.set(offlinePersistentOccupants);
+			}
+			affiliations.forEach((jid, affiliation) -> updatePersistentOccupantsIndex(jid, null, affiliation));
+			this.affiliationsVersion.incrementAndGet();
+		}
+		invalidateRenderedPresences(null);
 	}
 
 	public Stream<BareJID> getAffiliationsMatching(Predicate<RoomAffiliation> predicate) {
@@ -238,6 +295,72 @@ public class Room
 									 createAvailableFilter()).map(JID::jidInstanceNS));
 	}
 
+	/**
+	 * Returns immutable snapshot of JIDs to which groupchat messages should be delivered. Snapshot is cached and
+	 * rebuilt only if occupants, their roles or room affiliations changed since it was created.
+	 */
+	public DeliveryRoster getDeliveryRoster() {
+		final long occupantsVersion = this.occupantsVersion.get();
+		final long affiliationsVersion = this.affiliationsVersion.get();
+		DeliveryRoster roster = this.deliveryRoster;
+		if (roster != null && roster.occupantsVersion == occupantsVersion &&
+				roster.affiliationsVersion == affiliationsVersion) {
+			return roster;
+		}
+		roster = new DeliveryRoster(occupantsVersion, affiliationsVersion,
+									getAllJidsForMessageDelivery().toArray(JID[]::new));
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Room {0}. Rebuilt delivery roster: {1}", new Object[]{config.getRoomJID(), roster});
+		}
+		this.deliveryRoster = roster;
+		return roster;
+	}
+
+	/**
+	 * @return <code>true</code> if there were no changes to occupants, roles or affiliations since snapshot was
+	 * created.
+	 */
+	public boolean isDeliveryRosterCurrent(DeliveryRoster roster) {
+		return roster.occupantsVersion == occupantsVersion.get() &&
+				roster.affiliationsVersion == affiliationsVersion.get();
+	}
+
+	/**
+	 * Returns cached presence of occupant rendered for delivery to other occupants or <code>null</code> if it was not
+	 * rendered yet or it was invalidated by change of presence, role or affiliation.
+	 */
+	public RenderedPresence getRenderedPresence(String nickname) {
+		final Object rendered = nickname == null ? null : renderedPresences.get(nickname);
+		return rendered instanceof RenderedPresence ? (RenderedPresence) rendered : null;
+	}
+
+	/**
+	 * Marks presence of occupant as being rendered. It has to be called before state of the occupant is read for
+	 * rendering and returned token has to be passed to {@link Room#putRenderedPresence(String, Object,
+	 * RenderedPresence)}.
+	 */
+	public Object startRenderingPresence(String nickname) {
+		final Object token = new Object();
+		renderedPresences.put(nickname, token);
+		return token;
+	}
+
+	/**
+	 * Caches rendered presence of occupant, unless presence of this occupant was invalidated since rendering was
+	 * started with {@link Room#startRenderingPresence(String)}.
+	 */
+	public void putRenderedPresence(String nickname, Object token, RenderedPresence presence) {
+		renderedPresences.replace(nickname, token, presence);
+	}
+
+	public long getAffiliationsVersion() {
+		return affiliationsVersion.get();
+	}
+
+	public long getOccupantsVersion() {
+		return occupantsVersion.get();
+	}
+
 	public RoomConfig getConfig() {
 		return config;
 	}
@@ -284,17 +407,11 @@ public class Room
 		return result;
 	}
 
+	/**
+	 * @return number of distinct bare JIDs of online occupants and offline persistent occupants
+	 */
 	public int getOccupantsCount() {
-		final HashSet<BareJID> tmp = new HashSet<>();
-
-		this.occupants.values().forEach(occupantEntry -> tmp.add(occupantEntry.jid));
-		this.affiliations.forEach((key, value) -> {
-			if (value.isPersistentOccupant()) {
-				tmp.add(key);
-			}
-		});
-
-		return tmp.size();
+		return this.occupantsNicknamesByBareJid.size() + this.offlinePersistentOccupantsCount.get();
 	}
 
 	public Stream<BareJID> getOccupantsBareJids() {
@@ -357,24 +474,15 @@ public class Room
 	}
 
 	public boolean isOccupantOnline(final BareJID jid) {
-		for (Map.Entry<String, OccupantEntry> e : this.occupants.entrySet()) {
-			if (e.getValue().jid.equals(jid)) {
-				return true;
-			}
-		}
-		return false;
+		return jid != null && this.occupantsNicknamesByBareJid.containsKey(jid);
 	}
 
 	public Collection<String> getOccupantsNicknames(BareJID bareJid) {
-		Set<String> result = new HashSet<>();
-
-		for (Map.Entry<String, OccupantEntry> e : this.occupants.entrySet()) {
-			if (e.getValue().jid.equals(bareJid)) {
-				result.add(e.getKey());
-			}
+		Set<String> nicknames = bareJid == null ? null : this.occupantsNicknamesByBareJid.get(bareJid);
+		if (nicknames == null) {
+			return Collections.emptySet();
 		}
-
-		return Collections.unmodifiableCollection(result);
+		return Collections.unmodifiableCollection(new HashSet<>(nicknames));
 	}
 
 	public PresenceFiltered getPresenceFiltered() {
@@ -464,6 +572,7 @@ public class Room
 	@Override
 	public void onConfigChanged(RoomConfig roomConfig, Set<String> modifiedVars) {
 		presences.setOrdening(roomConfig.getPresenceDeliveryLogic());
+		invalidateRenderedPresences(null);
 	}
 
 	@Override
@@ -481,20 +590,26 @@ public class Room
 		OccupantEntry e = getBySenderJid(jid);
 		if (e != null) {
 			try {
-				synchronized (e.jids) {
-					e.jids.remove(jid);
-					if (log.isLoggable(Level.FINEST)) {
-						log.finest("Room " + config.getRoomJID() + ". Removed JID " + jid + " of occupant");
-					}
-					if (e.jids.isEmpty()) {
-						this.occupants.remove(e.nickname);
+				synchronized (this.occupants) {
+					this.occupantsByJid.remove(jid, e);
+					this.occupantsVersion.incrementAndGet();
+					synchronized (e.jids) {
+						e.jids.remove(jid);
 						if (log.isLoggable(Level.FINEST)) {
-							log.finest("Room " + config.getRoomJID() + ". Removed occupant " + jid);
+							log.finest("Room " + config.getRoomJID() + ". Removed JID " + jid + " of occupant");
+						}
+						if (e.jids.isEmpty()) {
+							this.occupants.remove(e.nickname, e);
+							removeFromNicknamesIndex(e.jid, e.nickname);
+							if (log.isLoggable(Level.FINEST)) {
+								log.finest("Room " + config.getRoomJID() + ". Removed occupant " + jid);
+							}
+							return true;
 						}
-						return true;
 					}
 				}
 			} finally {
+				invalidateRenderedPresences(e.jid, e.nickname);
 				fireOnOccupantRemoved(jid);
 			}
 		}
@@ -502,26 +617,53 @@ public class Room
 	}
 
 	public void removeOccupant(String occupantNick) {
-		OccupantEntry e = this.occupants.remove(occupantNick);
-		if (e != null) {
-			if (log.isLoggable(Level.FINEST)) {
-				log.finest("Room " + config.getRoomJID() + ". Removed occupant " + occupantNick);
+		final OccupantEntry e;
+		final List<JID> removedJids;
+		synchronized (this.occupants) {
+			e = this.occupants.remove(occupantNick);
+			if (e == null) {
+				return;
 			}
-
-			for (JID jid : e.jids) {
-				fireOnOccupantRemoved(jid);
+			removeFromNicknamesIndex(e.jid, e.nickname);
+			synchronized (e.jids) {
+				removedJids = new ArrayList<>(e.jids);
 			}
+			for (JID jid : removedJids) {
+				this.occupantsByJid.remove(jid, e);
+			}
+			this.occupantsVersion.incrementAndGet();
+		}
+		invalidateRenderedPresences(e.jid, occupantNick);
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Room " + config.getRoomJID() + ". Removed occupant " + occupantNick);
+		}
+
+		for (JID jid : removedJids) {
+			fireOnOccupantRemoved(jid);
 		}
 	}
 
 	public void setNewAffiliation(BareJID user, RoomAffiliation affiliation) {
-		this.affiliations.put(user, affiliation);
+		synchronized (this.affiliations) {
+			final RoomAffiliation previous;
+			synchronized (this.occupants) {
+				previous = this.affiliations.put(user, affiliation);
+				updateOfflinePersistentOccupantsCount(user, previous, affiliation);
+			}
+			updatePersistentOccupantsIndex(user, previous, affiliation);
+			this.affiliationsVersion.incrementAndGet();
+		}
+		invalidateRenderedPresencesOf(user);
 	}
 
 	public void setNewRole(String nickname, Role newRole) {
 		OccupantEntry entry = this.occupants.get(nickname);
 		if (entry != null) {
-			entry.role = newRole;
+			synchronized (this.occupants) {
+				entry.role = newRole;
+				this.occupantsVersion.incrementAndGet();
+			}
+			invalidateRenderedPresences(nickname);
 			if (log.isLoggable(Level.FINEST)) {
 				log.finest("Room " + config.getRoomJID() + ". Changed role of occupant " + nickname + " to " + newRole);
 			}
@@ -553,6 +695,7 @@ public class Room
 			}
 			this.presences.update(cp);
 		}
+		invalidateRenderedPresences(jid == null ? null : jid.getBareJID(), nickname);
 
 		fireOnOccupantChangedPresence(jid, nickname, cp, false);
 	}
@@ -576,14 +719,9 @@ public class Room
 	}
 
 	protected BareJID getPersistentOccupantJidByNickname(final String nickname) {
-		Optional<BareJID> optionalJid = this.affiliations.entrySet()
-				.stream()
-				.filter(e -> e.getValue().isPersistentOccupant())
-				.filter(e -> nickname.equals(e.getValue().getRegisteredNickname()))
-				.map(Map.Entry::getKey)
-				.findAny();
-		if (optionalJid.isPresent()) {
-			return optionalJid.get();
+		BareJID registered = this.persistentOccupantsByNickname.get(nickname);
+		if (registered != null) {
+			return registered;
 		}
 
 		BareJID candidate = nicknameToJid(nickname);
@@ -604,6 +742,44 @@ public class Room
 		return (jid) -> !occupants.contains(jid);
 	}
 
+	private void invalidateRenderedPresences(String nickname) {
+		// removal of token of presence being rendered prevents caching of outdated presence
+		if (nickname == null) {
+			renderedPresences.clear();
+		} else {
+			renderedPresences.remove(nickname);
+		}
+	}
+
+	private void invalidateRenderedPresences(BareJID jid, String nickname) {
+		if (nickname == null) {
+			invalidateRenderedPresences(null);
+			return;
+		}
+		invalidateRenderedPresences(nickname);
+		// best presence is selected for bare JID, so it is used by all nicknames of the same user
+		Set<String> nicknames = jid == null ? null : this.occupantsNicknamesByBareJid.get(jid);
+		if (nicknames != null) {
+			for (String other : nicknames) {
+				if (!other.equals(nickname)) {
+					invalidateRenderedPresences(other);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Invalidates rendered presences of all nicknames of the user, ie. after change of its affiliation.
+	 */
+	private void invalidateRenderedPresencesOf(BareJID jid) {
+		Set<String> nicknames = jid == null ? null : this.occupantsNicknamesByBareJid.get(jid);
+		if (nicknames != null) {
+			for (String nickname : nicknames) {
+				invalidateRenderedPresences(nickname);
+			}
+		}
+	}
+
 	private void fireOnOccupantAdded(JID occupantJid) {
 		for (Room.RoomOccupantListener listener : this.occupantListeners) {
 			listener.onOccupantAdded(this, occupantJid);
@@ -635,14 +811,86 @@ public class Room
 	}
 
 	private OccupantEntry getBySenderJid(JID sender) {
-		for (Map.Entry<String, OccupantEntry> e : occupants.entrySet()) {
-			synchronized (e.getValue().jids) {
-				if (e.getValue().jids.contains(sender)) {
-					return e.getValue();
-				}
+		if (sender == null) {
+			return null;
+		}
+		return occupantsByJid.get(sender);
+	}
+
+	/**
+	 * Has to be called while holding lock on <code>affiliations</code>.
+	 */
+	private void updatePersistentOccupantsIndex(BareJID jid, RoomAffiliation oldAffiliation,
+												RoomAffiliation newAffiliation) {
+		String oldNickname = registeredNickname(oldAffiliation);
+		String newNickname = registeredNickname(newAffiliation);
+		if (oldNickname != null && !oldNickname.equals(newNickname) &&
+				persistentOccupantsByNickname.remove(oldNickname, jid)) {
+			// other persistent occupant may have registered the same nickname
+			this.affiliations.entrySet()
+					.stream()
+					.filter(e -> oldNickname.equals(registeredNickname(e.getValue())))
+					.findAny()
+					.ifPresent(e -> persistentOccupantsByNickname.put(oldNickname, e.getKey()));
+		}
+		if (newNickname != null) {
+			persistentOccupantsByNickname.put(newNickname, jid);
+		}
+	}
+
+	private static String registeredNickname(RoomAffiliation affiliation) {
+		if (affiliation == null || !affiliation.isPersistentOccupant()) {
+			return null;
+		}
+		return affiliation.getRegisteredNickname();
+	}
+
+	/**
+	 * Has to be called while holding lock on <code>occupants</code>.
+	 */
+	private void addToNicknamesIndex(BareJID jid, String nickname) {
+		Set<String> nicknames = occupantsNicknamesByBareJid.get(jid);
+		if (nicknames == null) {
+			nicknames = ConcurrentHashMap.newKeySet();
+			occupantsNicknamesByBareJid.put(jid, nicknames);
+			if (isPersistentOccupant(affiliations.get(jid))) {
+				offlinePersistentOccupantsCount.decrementAndGet();
 			}
 		}
-		return null;
+		nicknames.add(nickname);
+	}
+
+	/**
+	 * Has to be called while holding lock on <code>occupants</code>.
+	 */
+	private void removeFromNicknamesIndex(BareJID jid, String nickname) {
+		Set<String> nicknames = occupantsNicknamesByBareJid.get(jid);
+		if (nicknames != null && nicknames.remove(nickname) && nicknames.isEmpty()) {
+			occupantsNicknamesByBareJid.remove(jid);
+			if (isPersistentOccupant(affiliations.get(jid))) {
+				offlinePersistentOccupantsCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Has to be called while holding locks on <code>affiliations</code> and <code>occupants</code>, right after
+	 * affiliation was changed under the same locks.
+	 */
+	private void updateOfflinePersistentOccupantsCount(BareJID jid, RoomAffiliation oldAffiliation,
+													   RoomAffiliation newAffiliation) {
+		boolean wasPersistent = isPersistentOccupant(oldAffiliation);
+		boolean isPersistent = isPersistentOccupant(newAffiliation);
+		if (wasPersistent == isPersistent) {
+			return;
+		}
+		if (!occupantsNicknamesByBareJid.containsKey(jid)) {
+			offlinePersistentOccupantsCount.addAndGet(isPersistent ? 1 : -1);
+		}
+	}
+
+	private static boolean isPersistentOccupant(RoomAffiliation affiliation) {
+		return affiliation != null && affiliation.isPersistentOccupant();
 	}
 
 	public interface RoomFactory {
@@ -670,6 +918,47 @@ public class Room
 		void onOccupantRemoved(Room room, JID occupantJid);
 	}
 
+	public static final class DeliveryRoster {
+
+		private final long affiliationsVersion;
+		private final JID[] jids;
+		private final long occupantsVersion;
+
+		private DeliveryRoster(long occupantsVersion, long affiliationsVersion, JID[] jids) {
+			this.occupantsVersion = occupantsVersion;
+			this.affiliationsVersion = affiliationsVersion;
+			this.jids = jids;
+		}
+
+		public void forEach(Consumer<JID> consumer) {
+			for (JID jid : jids) {
+				consumer.accept(jid);
+			}
+		}
+
+		public JID get(int idx) {
+			return jids[idx];
+		}
+
+		public long getAffiliationsVersion() {
+			return affiliationsVersion;
+		}
+
+		public long getOccupantsVersion() {
+			return occupantsVersion;
+		}
+
+		public int size() {
+			return jids.length;
+		}
+
+		@Override
+		public String toString() {
+			return "[occupantsVersion=" + occupantsVersion + "; affiliationsVersion=" + affiliationsVersion +
+					"; jids=" + Arrays.toString(jids) + "]";
+		}
+	}
+
 	private static class OccupantEntry {
 
 		private final BareJID jid;
@@ -102,6 +102,8 @@ public class RoomConfig {
 	protected final Form form = new Form("form", null, null);
 	private final ArrayList<RoomConfigListener> listeners = new ArrayList<RoomConfigListener>();
 	private final BareJID roomJID;
+	private final Object snapshotLock = new Object();
+	private volatile Snapshot snapshot;
 
 	protected static <T extends Enum<T>> List<T> asEnum(Class<T> clazz, String[] values, Enum<?>[] defaultValues) {
 		List<T> list = new ArrayList<>();
@@ -173,6 +175,7 @@ public class RoomConfig {
 		final Set<String> modifiedVars = fireEvents ? findFieldsWithDifferentValues(configForm) : null;
 		form.copyValuesFrom(configForm);
 		convertDeprecatedFields(configForm);
+		invalidateSnapshot();
 		if (modifiedVars != null && modifiedVars.size() > 0) {
 			fireConfigChanged(modifiedVars);
 		}
@@ -196,82 +199,70 @@ public class RoomConfig {
 		return form.getElement();
 	}
 
+	/**
+	 * Returns form with room configuration. If values of the form are modified directly,
+	 * {@link #notifyConfigUpdate()} must be called afterwards, as it invalidates {@link Snapshot} which may have been
+	 * built from previous values in the meantime.
+	 */
 	public Form getConfigForm() {
 		return form;
 	}
 
 	public LogFormat getLoggingFormat() {
-		try {
-			String tmp = form.getAsString(LOGGING_FORMAT_KEY);
-			return tmp == null ? LogFormat.html : LogFormat.valueOf(tmp);
-		} catch (Exception e) {
-			return LogFormat.html;
-		}
+		return getSnapshot().getLoggingFormat();
 	}
 
 	public Integer getMaxHistory() {
-		try {
-			return form.getAsInteger(MUC_ROOMCONFIG_MAXHISTORY_KEY);
-		} catch (Exception e) {
-			return 50;
-		}
+		return getSnapshot().getMaxHistory();
 	}
 
 	public Integer getMaxUserResources() {
-		try {
-			String v = form.getAsString(MUC_ROOMCONFIG_MAX_USER_RESOURCES_KEY);
-			if (v == null || v.isEmpty() || "none".equals(v)) {
-				return null;
-			}
-			return Integer.valueOf(v);
-		} catch (Exception e) {
-			return null;
-		}
+		return getSnapshot().getMaxUserResources();
 	}
 
 	public Integer getMaxUsers() {
-		try {
-			String v = form.getAsString(MUC_ROOMCONFIG_MAXUSERS_KEY);
-			if (v == null || v.isEmpty() || "none".equals(v)) {
-				return null;
-			}
-			return Integer.valueOf(v);
-		} catch (Exception e) {
-			return null;
-		}
+		return getSnapshot().getMaxUsers();
 	}
 
 	public String getPassword() {
-		return asString(form.getAsString(MUC_ROOMCONFIG_ROOMSECRET_KEY), "");
+		return getSnapshot().getPassword();
 	}
 
 	public PresenceStore.PresenceDeliveryLogic getPresenceDeliveryLogic() {
-		String PDLasString = form.getAsString(TIGASE_ROOMCONFIG_PRESENCE_DELIVERY_LOGIC);
-		PresenceStore.PresenceDeliveryLogic pdl = PresenceStore.PresenceDeliveryLogic.valueOf(PDLasString);
-		return pdl;
+		return getSnapshot().getPresenceDeliveryLogic();
 	}
 
+	/**
+	 * @return unmodifiable collection of affiliations
+	 */
 	public Collection<Affiliation> getPresenceFilteredAffiliations() {
-		String[] presenceFrom = form.getAsStrings(TIGASE_ROOMCONFIG_PRESENCE_FILTERED_AFFILIATIONS);
-		return asEnum(Affiliation.class, presenceFrom, null);
+		return getSnapshot().getPresenceFilteredAffiliations();
 	}
 
 	public PrivateMessageACL getPrivateMessageACL() {
-		try {
-			String tmp = form.getAsString(MUC_ROOMCONFIG_ALLOWPM_KEY);
-			return tmp == null ? PrivateMessageACL.anyone : PrivateMessageACL.valueOf(tmp);
-		} catch (Exception e) {
-			return PrivateMessageACL.anyone;
+		return getSnapshot().getPrivateMessageACL();
+	}
+
+	/**
+	 * Returns typed values of room configuration. Returned snapshot is immutable and is replaced when configuration
+	 * is changed, so it should not be kept for later use.
+	 */
+	public Snapshot getSnapshot() {
+		Snapshot current = snapshot;
+		if (current == null) {
+			synchronized (snapshotLock) {
+				current = snapshot;
+				if (current == null) {
+					current = new Snapshot(form);
+					snapshot = current;
+				}
+			}
 		}
+		return current;
 	}
 
 	public WhoisPrivilege getWhois() {
-		try {
-			String tmp = form.getAsString(MUC_ROOMCONFIG_WHOIS_KEY);
-			return tmp == null ? WhoisPrivilege.moderators : WhoisPrivilege.valueOf(tmp);
-		} catch (Exception ignored) {
-			return WhoisPrivilege.moderators;
-		}
+		return getSnapshot().getWhois();
 	}
 
 	/**
@@ -288,7 +279,7 @@ public class RoomConfig {
 	}
 
 	public String getRoomDesc() {
-		return form.getAsString(MUC_ROOMCONFIG_ROOMDESC_KEY);
+		return getSnapshot().getRoomDesc();
 	}
 
 	public BareJID getRoomJID() {
@@ -296,50 +287,50 @@ public class RoomConfig {
 	}
 
 	public String getRoomName() {
-		return form.getAsString(MUC_ROOMCONFIG_ROOMNAME_KEY);
+		return getSnapshot().getRoomName();
 	}
 
 	public boolean isChangeSubject() {
-		return asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_CHANGESUBJECT_KEY), false);
+		return getSnapshot().isChangeSubject();
 	}
 
 	public boolean isInvitingAllowed() {
-		return asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_ALLOWINVITES_KEY), true);
+		return getSnapshot().isInvitingAllowed();
 	}
 
 	public boolean isLoggingEnabled() {
-		return asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_ENABLELOGGING_KEY), false);
+		return getSnapshot().isLoggingEnabled();
 	}
 
 	public boolean isPasswordProtectedRoom() {
-		return asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_PASSWORDPROTECTEDROOM_KEY), false);
+		return getSnapshot().isPasswordProtectedRoom();
 	}
 
 	public boolean isPersistentRoom() {
-		return asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_PERSISTENTROOM_KEY), false);
+		return getSnapshot().isPersistentRoom();
 	}
 
 	public boolean isPresenceFilterEnabled() {
-		return asBoolean(form.getAsBoolean(TIGASE_ROOMCONFIG_PRESENCE_FILTERING), false);
+		return getSnapshot().isPresenceFilterEnabled();
 	}
 
 	public boolean isRoomMembersOnly() {
-		return asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_MEMBERSONLY_KEY), false);
+		return getSnapshot().isRoomMembersOnly();
 	}
 
 	public boolean isRoomModerated() {
-		return asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_MODERATEDROOM_KEY), false);
+		return getSnapshot().isRoomModerated();
 	}
 
 	/**
 	 * Make Room Publicly Searchable
 	 */
 	public boolean isRoomconfigPublicroom() {
-		return asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_PUBLICROOM_KEY), true);
+		return getSnapshot().isRoomconfigPublicroom();
 	}
 
 	public boolean isWelcomeMessageEnabled() {
-		return asBoolean(form.getAsBoolean(TIGASE_ROOMCONFIG_WELCOME_MESSAGES), true);
+		return getSnapshot().isWelcomeMessageEnabled();
 	}
 
 	public void notifyConfigUpdate() {
@@ -347,6 +338,7 @@ public class RoomConfig {
 	}
 
 	public void notifyConfigUpdate(boolean initialConfigUpdate) {
+		invalidateSnapshot();
 		HashSet<String> vars = new HashSet<String>();
 		for (Field f : form.getAllFields()) {
 			vars.add(f.getVar());
@@ -355,6 +347,7 @@ public class RoomConfig {
 	}
 
 	public void notifyConfigUpdate(Set<String> modifiedVars) {
+		invalidateSnapshot();
 		fireConfigChanged(modifiedVars, false);
 	}
 
@@ -375,6 +368,7 @@ public class RoomConfig {
 
 	public void readFromElement(Element element) {
 		form.copyValuesFrom(element);
+		invalidateSnapshot();
 	}
 
 	public void removeListener(RoomConfigListener listener) {
@@ -406,7 +400,7 @@ public class RoomConfig {
 			throw new RuntimeException(
 					"Cannot match type " + data.getClass().getCanonicalName() + " to field type " + f.getType().name());
 		}
-
+		invalidateSnapshot();
 	}
 
 	public void setValues(String var, String[] data) {
@@ -526,14 +520,43 @@ public class RoomConfig {
 		}
 	}
 
-	private boolean asBoolean(Boolean value, boolean defaultValue) {
+	private static boolean asBoolean(Boolean value, boolean defaultValue) {
 		return value == null ? defaultValue : value.booleanValue();
 	}
 
-	private String asString(String value, String defaultValue) {
+	private static String asString(String value, String defaultValue) {
 		return value == null ? defaultValue : value;
 	}
 
+	private static <T extends Enum<T>> T asEnum(Class<T> clazz, String value, T defaultValue) {
+		try {
+			return value == null ? defaultValue : Enum.valueOf(clazz, value);
+		} catch (IllegalArgumentException e) {
+			return defaultValue;
+		}
+	}
+
+	private static Integer asLimit(String value) {
+		if (value == null || value.isEmpty() || "none".equals(value)) {
+			return null;
+		}
+		try {
+			return Integer.valueOf(value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Makes next call to {@link #getSnapshot()} read values from the form. It has to be called after values of the
+	 * form are changed.
+	 */
+	private void invalidateSnapshot() {
+		synchronized (snapshotLock) {
+			snapshot = null;
+		}
+	}
+
 	private Set<String> findFieldsWithDifferentValues(Form form) {
 		final HashSet<String> result = new HashSet<String>();
 		/*
@@ -572,6 +595,181 @@ public class RoomConfig {
 		}
 	}
 
+	/**
+	 * Immutable values of room configuration converted to proper types, so they are not parsed from the form on
+	 * every access.
+	 */
+	public static final class Snapshot {
+
+		private final boolean changeSubject;
+		private final boolean invitingAllowed;
+		private final boolean loggingEnabled;
+		private final LogFormat loggingFormat;
+		private final Integer maxHistory;
+		private final Integer maxUserResources;
+		private final Integer maxUsers;
+		private final String password;
+		private final boolean passwordProtectedRoom;
+		private final boolean persistentRoom;
+		private final PresenceStore.PresenceDeliveryLogic presenceDeliveryLogic;
+		private final boolean presenceFilterEnabled;
+		private final Set<Affiliation> presenceFilteredAffiliations;
+		private final PrivateMessageACL privateMessageACL;
+		private final boolean publicRoom;
+		private final String roomDesc;
+		private final boolean roomMembersOnly;
+		private final boolean roomModerated;
+		private final String roomName;
+		private final boolean welcomeMessageEnabled;
+		private final WhoisPrivilege whois;
+
+		private Snapshot(Form form) {
+			changeSubject = asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_CHANGESUBJECT_KEY), false);
+			invitingAllowed = asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_ALLOWINVITES_KEY), true);
+			loggingEnabled = asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_ENABLELOGGING_KEY), false);
+			loggingFormat = asEnum(LogFormat.class, form.getAsString(LOGGING_FORMAT_KEY), LogFormat.html);
+			maxHistory = readMaxHistory(form);
+			maxUserResources = asLimit(form.getAsString(MUC_ROOMCONFIG_MAX_USER_RESOURCES_KEY));
+			maxUsers = asLimit(form.getAsString(MUC_ROOMCONFIG_MAXUSERS_KEY));
+			password = asString(form.getAsString(MUC_ROOMCONFIG_ROOMSECRET_KEY), "");
+			passwordProtectedRoom = asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_PASSWORDPROTECTEDROOM_KEY), false);
+			persistentRoom = asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_PERSISTENTROOM_KEY), false);
+			presenceDeliveryLogic = asEnum(PresenceStore.PresenceDeliveryLogic.class,
+										   form.getAsString(TIGASE_ROOMCONFIG_PRESENCE_DELIVERY_LOGIC),
+										   PresenceStore.PresenceDeliveryLogic.PREFERE_PRIORITY);
+			presenceFilterEnabled = asBoolean(form.getAsBoolean(TIGASE_ROOMCONFIG_PRESENCE_FILTERING), false);
+			presenceFilteredAffiliations = readAffiliations(
+					form.getAsStrings(TIGASE_ROOMCONFIG_PRESENCE_FILTERED_AFFILIATIONS));
+			privateMessageACL = asEnum(PrivateMessageACL.class, form.getAsString(MUC_ROOMCONFIG_ALLOWPM_KEY),
+									   PrivateMessageACL.anyone);
+			publicRoom = asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_PUBLICROOM_KEY), true);
+			roomDesc = form.getAsString(MUC_ROOMCONFIG_ROOMDESC_KEY);
+			roomMembersOnly = asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_MEMBERSONLY_KEY), false);
+			roomModerated = asBoolean(form.getAsBoolean(MUC_ROOMCONFIG_MODERATEDROOM_KEY), false);
+			roomName = form.getAsString(MUC_ROOMCONFIG_ROOMNAME_KEY);
+			welcomeMessageEnabled = asBoolean(form.getAsBoolean(TIGASE_ROOMCONFIG_WELCOME_MESSAGES), true);
+			whois = asEnum(WhoisPrivilege.class, form.getAsString(MUC_ROOMCONFIG_WHOIS_KEY),
+						   WhoisPrivilege.moderators);
+		}
+
+		private static Integer readMaxHistory(Form form) {
+			String value = form.getAsString(MUC_ROOMCONFIG_MAXHISTORY_KEY);
+			if (value == null) {
+				return null;
+			}
+			try {
+				return Integer.valueOf(value.trim());
+			} catch (NumberFormatException e) {
+				return 50;
+			}
+		}
+
+		private static Set<Affiliation> readAffiliations(String[] values) {
+			EnumSet<Affiliation> affiliations = EnumSet.noneOf(Affiliation.class);
+			if (values != null) {
+				for (String value : values) {
+					Affiliation affiliation = asEnum(Affiliation.class, value, null);
+					if (affiliation != null) {
+						affiliations.add(affiliation);
+					}
+				}
+			}
+			return Collections.unmodifiableSet(affiliations);
+		}
+
+		public LogFormat getLoggingFormat() {
+			return loggingFormat;
+		}
+
+		public Integer getMaxHistory() {
+			return maxHistory;
+		}
+
+		public Integer getMaxUserResources() {
+			return maxUserResources;
+		}
+
+		public Integer getMaxUsers() {
+			return maxUsers;
+		}
+
+		public String getPassword() {
+			return password;
+		}
+
+		public PresenceStore.PresenceDeliveryLogic getPresenceDeliveryLogic() {
+			return presenceDeliveryLogic;
+		}
+
+		public Set<Affiliation> getPresenceFilteredAffiliations() {
+			return presenceFilteredAffiliations;
+		}
+
+		public PrivateMessageACL getPrivateMessageACL() {
+			return privateMessageACL;
+		}
+
+		public String getRoomDesc() {
+			return roomDesc;
+		}
+
+		public String getRoomName() {
+			return roomName;
+		}
+
+		public WhoisPrivilege getWhois() {
+			return whois;
+		}
+
+		public boolean isChangeSubject() {
+			return changeSubject;
+		}
+
+		public boolean isInvitingAllowed() {
+			return invitingAllowed;
+		}
+
+		public boolean isLoggingEnabled() {
+			return loggingEnabled;
+		}
+
+		public boolean isPasswordProtectedRoom() {
+			return passwordProtectedRoom;
+		}
+
+		public boolean isPersistentRoom() {
+			return persistentRoom;
+		}
+
+		/**
+		 * Returns <code>true</code> if presence of occupant with this affiliation should be delivered when presence
+		 * filtering is enabled.
+		 */
+		public boolean isPresenceDelivered(Affiliation affiliation) {
+			return !presenceFilterEnabled || presenceFilteredAffiliations.contains(affiliation);
+		}
+
+		public boolean isPresenceFilterEnabled() {
+			return presenceFilterEnabled;
+		}
+
+		public boolean isRoomMembersOnly() {
+			return roomMembersOnly;
+		}
+
+		public boolean isRoomModerated() {
+			return roomModerated;
+		}
+
+		public boolean isRoomconfigPublicroom() {
+			return publicRoom;
+		}
+
+		public boolean isWelcomeMessageEnabled() {
+			return welcomeMessageEnabled;
+		}
+	}
+
 	public interface RoomConfigListener {
 
 		void onConfigChanged(RoomConfig roomConfig, Set<String> modifiedVars);
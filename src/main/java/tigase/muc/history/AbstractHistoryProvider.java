@@ -49,7 +49,11 @@ public abstract class AbstractHistoryProvider<DS extends DataSource>
 
 	private final TimestampHelper timestampHelper = new TimestampHelper();
 
-	protected static <Q extends Query> void calculateOffsetAndPosition(Q query, int count, Integer before,
+	/**
+	 * Calculates offset and limit of requested page of results. <code>count</code> may be <code>null</code>, if it is
+	 * not required to calculate position of the page, ie. if last page is not requested.
+	 */
+	protected static <Q extends Query> void calculateOffsetAndPosition(Q query, Integer count, Integer before,
 																	   Integer after) {
 		RSM rsm = query.getRsm();
 		int index = rsm.getIndex() == null ? 0 : rsm.getIndex();
@@ -74,7 +78,9 @@ public abstract class AbstractHistoryProvider<DS extends DataSource>
 		}
 		rsm.setIndex(index);
 		rsm.setMax(limit);
-		rsm.setCount(count);
+		if (count != null) {
+			rsm.setCount(count);
+		}
 	}
 
 	public Packet createMessage(BareJID roomJID, JID senderJID, String msgSenderNickname, String originalMessage,
@@ -86,9 +92,24 @@ public abstract class AbstractHistoryProvider<DS extends DataSource>
 	public Packet createMessage(BareJID roomJID, JID senderJID, String msgSenderNickname, String originalMessage,
 								String body, String msgSenderJid, boolean addRealJids, Date msgTimestamp, String stableId)
 			throws TigaseStringprepException {
+		return createMessage(roomJID,
+							 createMessageElement(roomJID, senderJID, msgSenderNickname, originalMessage, body, stableId),
+							 msgTimestamp);
+	}
+
+	/**
+	 * Creates message from a copy of already parsed message stored in history.
+	 */
+	public Packet createMessage(BareJID roomJID, JID senderJID, String msgSenderNickname, Element parsedMessage,
+								String body, Date msgTimestamp, String stableId) throws TigaseStringprepException {
+		return createMessage(roomJID, prepareMessageElement(roomJID, senderJID, msgSenderNickname,
+															parsedMessage == null ? null : parsedMessage.clone(), body,
+															stableId), msgTimestamp);
+	}
 
-		Packet message = Packet.packetInstance(
-				createMessageElement(roomJID, senderJID, msgSenderNickname, originalMessage, body, stableId));
+	protected Packet createMessage(BareJID roomJID, Element messageElement, Date msgTimestamp)
+			throws TigaseStringprepException {
+		Packet message = Packet.packetInstance(messageElement);
 
 		// The 'from' attribute MUST be set to the JID of the room itself.
 		Element delay = new Element("delay", new String[]{"xmlns", "from", "stamp"},
@@ -109,22 +130,25 @@ public abstract class AbstractHistoryProvider<DS extends DataSource>
 
 	public Element createMessageElement(BareJID roomJID, JID senderJID, String msgSenderNickname,
 										String originalMessage, String body, String stableId) throws TigaseStringprepException {
-		Element message = null;
-		if (originalMessage != null) {
-			message = parseMessage(originalMessage);
-			if (message != null) {
-				message.setAttribute("type", "groupchat");
-				message.setAttribute("from", JID.jidInstance(roomJID, msgSenderNickname).toString());
-				message.setAttribute("to", senderJID.toString());
-
-				message.setXMLNS(Packet.CLIENT_XMLNS);
-				Element stableIdEl = message.findChild(el -> el.getName() == "stanza-id" && el.getXMLNS() == "urn:xmpp:sid:0" && roomJID.toString().equals(el.getAttributeStaticStr("by")));
-				if (stableIdEl != null) {
-					message.removeChild(stableIdEl);
-				}
-				if (stableId != null) {
-					message.addChild(new Element("stanza-id", new String[]{"xmlns", "id", "by"}, new String[]{"urn:xmpp:sid:0", stableId, roomJID.toString()}));
-				}
+		return prepareMessageElement(roomJID, senderJID, msgSenderNickname,
+									 originalMessage == null ? null : parseMessage(originalMessage), body, stableId);
+	}
+
+	protected Element prepareMessageElement(BareJID roomJID, JID senderJID, String msgSenderNickname,
+											Element message, String body, String stableId)
+			throws TigaseStringprepException {
+		if (message != null) {
+			message.setAttribute("type", "groupchat");
+			message.setAttribute("from", JID.jidInstance(roomJID, msgSenderNickname).toString());
+			message.setAttribute("to", senderJID.toString());
+
+			message.setXMLNS(Packet.CLIENT_XMLNS);
+			Element stableIdEl = message.findChild(el -> el.getName() == "stanza-id" && el.getXMLNS() == "urn:xmpp:sid:0" && roomJID.toString().equals(el.getAttributeStaticStr("by")));
+			if (stableIdEl != null) {
+				message.removeChild(stableIdEl);
+			}
+			if (stableId != null) {
+				message.addChild(new Element("stanza-id", new String[]{"xmlns", "id", "by"}, new String[]{"urn:xmpp:sid:0", stableId, roomJID.toString()}));
 			}
 		}
 
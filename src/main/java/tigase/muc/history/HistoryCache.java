@@ -0,0 +1,247 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Cache of the newest messages of recently used rooms, used by persistent history providers to serve room history
+ * sent to joining occupants without accessing the database.
+ * <br>
+ * History of a room is loaded from the database on the first request and later on it is updated with every stored
+ * message. Loading is done once for a room, even if many occupants join at the same time. Messages added before
+ * history is loaded are kept and merged with the loaded history, as they may not be stored in the database yet.
+ */
+public class HistoryCache {
+
+	private final AtomicLong accessCounter = new AtomicLong();
+	private final Map<BareJID, RoomHistory> cache = new ConcurrentHashMap<>();
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final int maxRooms;
+	private final int roomHistorySize;
+
+	public interface Loader {
+
+		/**
+		 * Loads up to <code>limit</code> newest messages of the room ordered from the oldest one.
+		 */
+		List<Item> load(BareJID roomJID, int limit) throws Exception;
+
+	}
+
+	public HistoryCache(int roomHistorySize, int maxRooms) {
+		this.roomHistorySize = roomHistorySize;
+		this.maxRooms = maxRooms;
+	}
+
+	/**
+	 * Adds message to the history of the room. If history of the room is not loaded yet, message will be merged with
+	 * the loaded history.
+	 */
+	public void add(BareJID roomJID, Item item) {
+		RoomHistory roomHistory = cache.get(roomJID);
+		if (roomHistory == null) {
+			roomHistory = cache.computeIfAbsent(roomJID, jid -> new RoomHistory());
+			if (cache.size() > maxRooms) {
+				evictRooms(roomJID);
+			}
+		}
+		roomHistory.add(item);
+	}
+
+	/**
+	 * Returns up to <code>limit</code> newest messages with timestamp not older than <code>since</code> (may be
+	 * <code>null</code>), ordered from the oldest one. If cached messages are not sufficient to answer the request,
+	 * <code>null</code> is returned.
+	 */
+	public List<Item> getMessages(BareJID roomJID, int limit, Date since, Loader loader) throws Exception {
+		RoomHistory roomHistory = cache.computeIfAbsent(roomJID, jid -> new RoomHistory());
+		if (!roomHistory.loaded) {
+			roomHistory.load(roomJID, loader);
+			if (cache.size() > maxRooms) {
+				evictRooms(roomJID);
+			}
+		}
+		return roomHistory.getMessages(limit, since == null ? Long.MIN_VALUE : since.getTime());
+	}
+
+	public void invalidate(BareJID roomJID) {
+		cache.remove(roomJID);
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	private void evictRooms(BareJID currentRoomJID) {
+		if (!evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			List<Map.Entry<BareJID, RoomHistory>> candidates = new ArrayList<>(cache.entrySet());
+			candidates.sort((e1, e2) -> Long.compare(e1.getValue().lastAccess, e2.getValue().lastAccess));
+			Iterator<Map.Entry<BareJID, RoomHistory>> it = candidates.iterator();
+			while (cache.size() > maxRooms && it.hasNext()) {
+				Map.Entry<BareJID, RoomHistory> e = it.next();
+				if (!e.getKey().equals(currentRoomJID)) {
+					cache.remove(e.getKey(), e.getValue());
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	public static class Item {
+
+		private final String body;
+		private final String msg;
+		private final String senderJid;
+		private final String senderNickname;
+		private final String stableId;
+		private final long timestamp;
+		private volatile Element parsedMessage;
+
+		public Item(String senderNickname, String stableId, long timestamp, String senderJid, String body,
+					String msg) {
+			this.senderNickname = senderNickname;
+			this.stableId = stableId;
+			this.timestamp = timestamp;
+			this.senderJid = senderJid;
+			this.body = body;
+			this.msg = msg;
+		}
+
+		public String getBody() {
+			return body;
+		}
+
+		public String getMsg() {
+			return msg;
+		}
+
+		/**
+		 * Returns parsed message. Returned element is shared and must not be modified.
+		 */
+		public Element getParsedMessage(Function<String, Element> parser) {
+			Element parsed = parsedMessage;
+			if (parsed == null && msg != null) {
+				parsed = parser.apply(msg);
+				parsedMessage = parsed;
+			}
+			return parsed;
+		}
+
+		public String getSenderJid() {
+			return senderJid;
+		}
+
+		public String getSenderNickname() {
+			return senderNickname;
+		}
+
+		public String getStableId() {
+			return stableId;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+	}
+
+	private class RoomHistory {
+
+		private final ArrayDeque<Item> items = new ArrayDeque<>();
+		private final Object loadLock = new Object();
+		/**
+		 * <code>true</code> if all messages of the room are cached.
+		 */
+		private boolean complete = false;
+		private volatile long lastAccess = accessCounter.incrementAndGet();
+		private volatile boolean loaded = false;
+
+		private synchronized void add(Item item) {
+			lastAccess = accessCounter.incrementAndGet();
+			items.addLast(item);
+			while (items.size() > roomHistorySize) {
+				items.removeFirst();
+				complete = false;
+			}
+		}
+
+		private synchronized List<Item> getMessages(int limit, long since) {
+			lastAccess = accessCounter.incrementAndGet();
+			if (limit <= 0) {
+				return Collections.emptyList();
+			}
+			final LinkedList<Item> result = new LinkedList<>();
+			Iterator<Item> it = items.descendingIterator();
+			boolean olderFound = false;
+			while (it.hasNext() && result.size() < limit) {
+				Item item = it.next();
+				if (item.timestamp < since) {
+					olderFound = true;
+					break;
+				}
+				result.addFirst(item);
+			}
+			if (result.size() < limit && !olderFound && !complete) {
+				// older messages matching request may exist only in the database
+				return null;
+			}
+			return result;
+		}
+
+		private void load(BareJID roomJID, Loader loader) throws Exception {
+			synchronized (loadLock) {
+				if (loaded) {
+					return;
+				}
+				List<Item> loadedItems = loader.load(roomJID, roomHistorySize);
+				synchronized (this) {
+					// messages added while history was loaded, may be already in the loaded history
+					Set<String> loadedIds = new HashSet<>();
+					for (Item item : loadedItems) {
+						loadedIds.add(item.stableId);
+					}
+					List<Item> added = new ArrayList<>(items);
+					items.clear();
+					items.addAll(loadedItems);
+					complete = loadedItems.size() < roomHistorySize;
+					for (Item item : added) {
+						if (!loadedIds.contains(item.stableId)) {
+							items.addLast(item);
+						}
+					}
+					while (items.size() > roomHistorySize) {
+						items.removeFirst();
+						complete = false;
+					}
+					loaded = true;
+				}
+			}
+		}
+	}
+}
@@ -23,10 +23,12 @@ import tigase.db.DataSource;
 import tigase.db.DataSourceAware;
 import tigase.kernel.beans.Bean;
 import tigase.muc.Room;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.jid.JID;
 
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author bmalkow
@@ -50,6 +52,16 @@ public interface HistoryProvider<DS extends DataSource>
 		addMessage(room, message, body, senderJid, senderNickname, time);
 	}
 
+	/**
+	 * Adds message to history. Returned future is completed when message is stored, which may happen after this
+	 * method returns if provider stores messages asynchronously (ie. in batches).
+	 */
+	default CompletableFuture<Void> addMessageWithAck(Room room, Element message, String body, JID senderJid,
+													  String senderNickname, Date time, String stableId) {
+		addMessage(room, message, body, senderJid, senderNickname, time, stableId);
+		return CompletableFuture.completedFuture(null);
+	}
+
 	/**
 	 * Adds subject changes to log/history.
 	 */
@@ -64,6 +76,12 @@ public interface HistoryProvider<DS extends DataSource>
 	void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds, Date since,
 							PacketWriter writer);
 
+	/**
+	 * Adds statistics of this provider to statistics of the component.
+	 */
+	default void getHistoryStatistics(String compName, StatisticsList list) {
+	}
+
 	boolean isPersistent(Room room);
 
 	void removeHistory(Room room);
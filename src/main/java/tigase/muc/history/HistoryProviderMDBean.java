@@ -31,6 +31,7 @@ import tigase.muc.MUCComponent;
 import tigase.muc.Room;
 import tigase.osgi.ModulesManagerImpl;
 import tigase.server.BasicComponent;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.jid.BareJID;
@@ -40,6 +41,7 @@ import tigase.xmpp.mam.Query;
 import tigase.xmpp.mam.QueryImpl;
 
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by andrzej on 25.08.2016.
@@ -111,6 +113,12 @@ public class HistoryProviderMDBean
 		getRepository(room).addMessage(room, message, body, senderJid, senderNickname, time);
 	}
 
+	@Override
+	public CompletableFuture<Void> addMessageWithAck(Room room, Element message, String body, JID senderJid,
+													 String senderNickname, Date time, String stableId) {
+		return getRepository(room).addMessageWithAck(room, message, body, senderJid, senderNickname, time, stableId);
+	}
+
 	@Override
 	public void addSubjectChange(Room room, Element message, String subject, JID senderJid, String senderNickname,
 								 Date time) {
@@ -128,6 +136,11 @@ public class HistoryProviderMDBean
 		getRepository(room).getHistoryMessages(room, senderJID, maxchars, maxstanzas, seconds, since, writer);
 	}
 
+	@Override
+	public void getHistoryStatistics(String compName, StatisticsList list) {
+		repositoriesStream().forEach(repo -> repo.getHistoryStatistics(compName, list));
+	}
+
 	@Override
 	public boolean isPersistent(Room room) {
 		return getRepository(room).isPersistent(room);
@@ -0,0 +1,262 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.muc.MUCComponent;
+import tigase.muc.Room;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write-behind stage placed between modules and {@link HistoryProvider}. Messages are put into bounded queues and
+ * stored by dedicated writer threads, so storing message in the database is not a part of message delivery.
+ * <br>
+ * Each room is always handled by the same writer, so order of messages within a room is retained. If a queue is
+ * full, message is stored synchronously by the calling thread (so it may be stored before messages of the same room
+ * which are still queued). On shutdown, writers store all queued messages before they are stopped (for at most
+ * <code>shutdown-timeout</code>).
+ */
+@Bean(name = HistoryWriteBehind.ID, parent = MUCComponent.class, active = false)
+public class HistoryWriteBehind
+		implements Initializable, UnregisterAware {
+
+	public static final String ID = "history-write-behind";
+
+	private static final Logger log = Logger.getLogger(HistoryWriteBehind.class.getName());
+	// marks end of the queue, writer exits after reaching it
+	private static final Task SHUTDOWN = new Task(null, null, null, null, null, null, null, null);
+
+	public enum Durability {
+		/**
+		 * Caller returns as soon as message is queued.
+		 */
+		fireAndForget,
+		/**
+		 * Caller waits until message is stored (or until <code>ack-timeout</code> passes). If history provider stores
+		 * messages in batches, caller waits until the batch containing the message is stored.
+		 */
+		waitForAck
+	}
+
+	@ConfigField(desc = "Maximal time to wait for confirmation of storage in milliseconds", alias = "ack-timeout")
+	private long ackTimeout = 5000;
+	@ConfigField(desc = "Durability of stored messages", alias = "durability")
+	private Durability durability = Durability.fireAndForget;
+	@Inject
+	private HistoryProvider historyProvider;
+	@ConfigField(desc = "Size of queue of each writer", alias = "queue-size")
+	private int queueSize = 10000;
+	@ConfigField(desc = "Maximal time to wait for queued messages to be stored on shutdown in milliseconds", alias = "shutdown-timeout")
+	private long shutdownTimeout = 10000;
+	@ConfigField(desc = "Number of writer threads", alias = "writers")
+	private int writersCount = 2;
+	private Writer[] writers = new Writer[0];
+
+	public HistoryWriteBehind() {
+	}
+
+	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time,
+						   String stableId) {
+		final CompletableFuture<Void> ack = durability == Durability.waitForAck ? new CompletableFuture<>() : null;
+		final Writer[] writers = this.writers;
+		if (writers.length == 0) {
+			new Task(room, message, body, senderJid, senderNickname, time, stableId, ack).run(historyProvider);
+		} else {
+			// children of the message are shared with delivered packets, so queued message has to be independent
+			final Task task = new Task(room, message == null ? null : message.clone(), body, senderJid,
+									   senderNickname, time, stableId, ack);
+			final Writer writer = writers[Math.abs(room.getRoomJID().hashCode() % writers.length)];
+			if (!writer.queue.offer(task)) {
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "Queue of {0} is full, storing message from room {1} synchronously",
+							new Object[]{writer.getName(), room.getRoomJID()});
+				}
+				task.run(historyProvider);
+			}
+		}
+
+		// even if message was passed to history provider by this thread, it still may be stored asynchronously
+		if (ack != null) {
+			try {
+				ack.get(ackTimeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException ex) {
+				throw new RuntimeException(ex.getCause());
+			} catch (TimeoutException ex) {
+				log.log(Level.WARNING, "Message " + stableId + " from room " + room.getRoomJID() +
+						" was not stored within " + ackTimeout + "ms");
+			}
+		}
+	}
+
+	public int getQueueSize() {
+		int size = 0;
+		for (Writer writer : writers) {
+			size += writer.queue.size();
+		}
+		return size;
+	}
+
+	@Override
+	public void initialize() {
+		Writer[] writers = new Writer[Math.max(1, writersCount)];
+		int capacity = Math.max(1, queueSize);
+		for (int i = 0; i < writers.length; i++) {
+			writers[i] = new Writer("muc-history-writer-" + i, capacity);
+			writers[i].start();
+		}
+		this.writers = writers;
+	}
+
+	@Override
+	public void beforeUnregister() {
+		final Writer[] writers = this.writers;
+		this.writers = new Writer[0];
+		final long deadline = System.currentTimeMillis() + shutdownTimeout;
+		for (Writer writer : writers) {
+			writer.shutdown(deadline);
+		}
+	}
+
+	private static class Task {
+
+		private final CompletableFuture<Void> ack;
+		private final String body;
+		private final Element message;
+		private final Room room;
+		private final JID senderJid;
+		private final String senderNickname;
+		private final String stableId;
+		private final Date time;
+
+		private Task(Room room, Element message, String body, JID senderJid, String senderNickname, Date time,
+					 String stableId, CompletableFuture<Void> ack) {
+			this.room = room;
+			this.message = message;
+			this.body = body;
+			this.senderJid = senderJid;
+			this.senderNickname = senderNickname;
+			this.time = time;
+			this.stableId = stableId;
+			this.ack = ack;
+		}
+
+		private void run(HistoryProvider historyProvider) {
+			if (ack == null) {
+				historyProvider.addMessage(room, message, body, senderJid, senderNickname, time, stableId);
+				return;
+			}
+			try {
+				historyProvider.addMessageWithAck(room, message, body, senderJid, senderNickname, time, stableId)
+						.whenComplete((result, ex) -> {
+							if (ex != null) {
+								ack.completeExceptionally(ex);
+							} else {
+								ack.complete(null);
+							}
+						});
+			} catch (RuntimeException ex) {
+				if (ack != null) {
+					ack.completeExceptionally(ex);
+				}
+				throw ex;
+			}
+		}
+	}
+
+	private class Writer
+			extends Thread {
+
+		private final BlockingQueue<Task> queue;
+
+		private Writer(String name, int capacity) {
+			super(name);
+			setDaemon(true);
+			this.queue = new ArrayBlockingQueue<>(capacity);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				final Task task;
+				try {
+					task = queue.take();
+				} catch (InterruptedException ex) {
+					log.log(Level.WARNING, getName() + " interrupted, " + queue.size() + " messages were not stored");
+					return;
+				}
+				if (task == SHUTDOWN) {
+					return;
+				}
+				try {
+					task.run(historyProvider);
+				} catch (Exception ex) {
+					log.log(Level.WARNING, "Can't add message to history!", ex);
+				}
+			}
+		}
+
+		/**
+		 * Stops writer after all queued messages are stored, waiting for it until <code>deadline</code>. Messages
+		 * queued after the writer stopped are stored by the calling thread.
+		 */
+		private void shutdown(long deadline) {
+			try {
+				if (!queue.offer(SHUTDOWN, Math.max(0, deadline - System.currentTimeMillis()),
+								 TimeUnit.MILLISECONDS)) {
+					interrupt();
+				}
+				join(Math.max(1, deadline - System.currentTimeMillis()));
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			if (isAlive()) {
+				log.log(Level.WARNING, getName() + " did not store queued messages within " + shutdownTimeout +
+						"ms, " + queue.size() + " messages were not stored");
+				interrupt();
+				return;
+			}
+			Task task;
+			while ((task = queue.poll()) != null) {
+				if (task != SHUTDOWN) {
+					try {
+						task.run(historyProvider);
+					} catch (Exception ex) {
+						log.log(Level.WARNING, "Can't add message to history!", ex);
+					}
+				}
+			}
+		}
+	}
+}
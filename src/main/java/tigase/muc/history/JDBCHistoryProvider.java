@@ -28,6 +28,8 @@ import tigase.kernel.beans.config.ConfigField;
 import tigase.muc.Room;
 import tigase.muc.repository.Schema;
 import tigase.server.Packet;
+import tigase.stats.StatisticHolder;
+import tigase.stats.StatisticsList;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.Authorization;
@@ -35,13 +37,26 @@ import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 import tigase.xmpp.mam.Query;
 import tigase.xmpp.mam.QueryImpl;
+import tigase.xmpp.rsm.RSM;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,12 +67,49 @@ import java.util.logging.Logger;
 @Repository.SchemaId(id = Schema.MUC_SCHEMA_ID, name = Schema.MUC_SCHEMA_NAME)
 public class JDBCHistoryProvider
 		extends AbstractHistoryProvider<DataRepository>
-		implements HistoryProvider<DataRepository>, ExtendedMAMRepository, RepositoryVersionAware {
+		implements HistoryProvider<DataRepository>, ExtendedMAMRepository, RepositoryVersionAware, StatisticHolder {
+
+	public enum MAMCountMode {
+		/**
+		 * Number of matching messages is always counted in the database.
+		 */
+		exact,
+		/**
+		 * Number of all messages in the room is counted once and later maintained in memory, so it may not be exact.
+		 * It is used only as reported number of messages. Queries with filters and queries for the last page, which
+		 * position depends on number of messages, are counted in the database.
+		 */
+		cached,
+		/**
+		 * Number of matching messages is not reported, unless it is required to find the last page of results.
+		 */
+		skip
+	}
 
 	private static final Logger log = Logger.getLogger(JDBCHistoryProvider.class.getCanonicalName());
+	private static final long BATCH_WRITER_STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
 	protected DataRepository data_repo;
 	@ConfigField(desc = "Query to append message to history", alias = "add-message-query")
 	private String addMessageQuery = "{ call Tig_MUC_AddMessage(?,?,?,?,?,?,?,?) }";
+	@ConfigField(desc = "Maximal number of messages stored in a single batch (batching is disabled if lower than 2)", alias = "batch-size")
+	private int batchSize = 0;
+	@ConfigField(desc = "Maximal time in milliseconds for which messages are collected before batch is stored", alias = "batch-window")
+	private long batchWindow = 50;
+	private final AtomicLong batchedMessagesCount = new AtomicLong();
+	private final AtomicLong batchesCount = new AtomicLong();
+	private final AtomicLong batchesFailedCount = new AtomicLong();
+	private final AtomicLong batchesFlushTime = new AtomicLong();
+	private final ReentrantLock batchLock = new ReentrantLock(true);
+	private BatchWriter batchWriter;
+	private HistoryCache historyCache;
+	@ConfigField(desc = "Maximal number of rooms which history is cached", alias = "history-cache-rooms")
+	private int historyCacheRooms = 1000;
+	@ConfigField(desc = "Number of newest messages of a room kept in cache (cache is disabled if 0)", alias = "history-cache-size")
+	private int historyCacheSize = 0;
+	private volatile long lastBatchFlushTime = 0;
+	private volatile int lastBatchSize = 0;
+	private BlockingQueue<PendingMessage> pendingMessages;
+	private String statisticsPrefix = "muc-history";
 	@ConfigField(desc = "Delete messages from history", alias = "delete-messages-query")
 	private String deleteMessagesQuery = "{ call Tig_MUC_DeleteMessages(?) }";
 	@ConfigField(desc = "Retrieve messages from history", alias = "get-messages-query")
@@ -68,6 +120,23 @@ public class JDBCHistoryProvider
 	private String mamGetMessagesCountQuery = "{ call Tig_MUC_MAM_GetMessagesCount(?,?,?,?) }";
 	@ConfigField(desc = "Retrieve messages from archive", alias = "mam-get-messages-query")
 	private String mamGetMessagesQuery = "{ call Tig_MUC_MAM_GetMessages(?,?,?,?,?,?) }";
+	@ConfigField(desc = "Retrieve messages from archive after or before message", alias = "mam-get-messages-by-key-query")
+	private String mamGetMessagesByKeyQuery = "{ call Tig_MUC_MAM_GetMessagesByKey(?,?,?,?,?,?,?,?) }";
+	@ConfigField(desc = "Use keyset pagination for MAM queries", alias = "mam-keyset-pagination")
+	private boolean mamKeysetPagination = false;
+	@ConfigField(desc = "Maximal number of MAM results read from database before they are sent (0 - no limit)", alias = "mam-chunk-size")
+	private int mamChunkSize = 50;
+	@ConfigField(desc = "Method of counting messages matching MAM query", alias = "mam-count-mode")
+	private MAMCountMode mamCountMode = MAMCountMode.exact;
+	@ConfigField(desc = "Maximal number of rooms for which number of messages is cached in 'cached' count mode", alias = "mam-count-cache-rooms")
+	private int mamCountCacheRooms = 10000;
+	private final Map<BareJID, RoomMessagesCount> roomMessagesCount = Collections.synchronizedMap(
+			new LinkedHashMap<BareJID, RoomMessagesCount>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<BareJID, RoomMessagesCount> eldest) {
+					return size() > mamCountCacheRooms;
+				}
+			});
 	@ConfigField(desc = "Retrieve message from archive", alias = "get-message-query")
 	private String getMessageQuery = "{ call Tig_MUC_MAM_GetMessage(?,?) }";
 	@ConfigField(desc = "Update message in archive", alias = "update-message-query")
@@ -93,23 +162,51 @@ public class JDBCHistoryProvider
 
 	@Override
 	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time, String stableId) {
+		queueMessage(room, new PendingMessage(room, message, body, senderJid, senderNickname, time, stableId, null));
+	}
+
+	/**
+	 * If batching is enabled, returned future is completed after batch containing the message is stored.
+	 */
+	@Override
+	public CompletableFuture<Void> addMessageWithAck(Room room, Element message, String body, JID senderJid,
+													 String senderNickname, Date time, String stableId) {
+		final CompletableFuture<Void> stored = new CompletableFuture<>();
+		queueMessage(room, new PendingMessage(room, message, body, senderJid, senderNickname, time, stableId, stored));
+		return stored;
+	}
+
+	private void queueMessage(Room room, PendingMessage pendingMessage) {
+		final RoomMessagesCount messagesCount = roomMessagesCount.get(room.getRoomJID());
+		if (messagesCount != null) {
+			messagesCount.added(pendingMessage.timestamp.getTime());
+		}
+		if (historyCache != null) {
+			historyCache.add(room.getRoomJID(),
+							 new HistoryCache.Item(pendingMessage.senderNickname, pendingMessage.stableId,
+												   pendingMessage.timestamp.getTime(),
+												   pendingMessage.senderJid.toString(), pendingMessage.body,
+												   pendingMessage.message));
+		}
+		BlockingQueue<PendingMessage> pendingMessages = this.pendingMessages;
+		if (pendingMessages != null && pendingMessages.offer(pendingMessage)) {
+			return;
+		}
+		addMessage(pendingMessage);
+	}
+
+	private void addMessage(PendingMessage pendingMessage) {
 		PreparedStatement st = null;
 		try {
-			st = this.data_repo.getPreparedStatement(senderJid.getBareJID(), addMessageQuery);
+			st = this.data_repo.getPreparedStatement(pendingMessage.senderJid.getBareJID(), addMessageQuery);
 
 			synchronized (st) {
-				st.setString(1, room.getRoomJID().toString());
-				st.setString(2, stableId);
-				data_repo.setTimestamp(st, 3, new Timestamp(time.getTime()));
-				st.setString(4, senderJid.toString());
-				st.setString(5, senderNickname);
-				st.setString(6, body);
-				st.setBoolean(7, room.getConfig().isLoggingEnabled());
-				st.setString(8, message == null ? null : message.toString());
-
+				setAddMessageParams(data_repo, st, pendingMessage);
 				st.executeUpdate();
 			}
+			pendingMessage.stored();
 		} catch (SQLException e) {
+			pendingMessage.failed(e);
 			if (e.getErrorCode() == 1366 ||
 					e.getMessage() != null && e.getMessage().startsWith("Incorrect string value")) {
 				log.log(Level.WARNING,
@@ -132,7 +229,54 @@ public class JDBCHistoryProvider
 
 	@Override
 	public void destroy() {
+		BatchWriter batchWriter = this.batchWriter;
+		this.batchWriter = null;
+		if (batchWriter != null) {
+			batchWriter.shutdown();
+		}
+	}
+
+	@Override
+	public void everyHour() {
+	}
 
+	@Override
+	public void everyMinute() {
+	}
+
+	@Override
+	public void everySecond() {
+	}
+
+	@Override
+	public void getHistoryStatistics(String compName, StatisticsList list) {
+		getStatistics(compName, list);
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		if (pendingMessages == null) {
+			return;
+		}
+		long batches = batchesCount.get();
+		list.add(compName, statisticsPrefix + "/Batch queue size", pendingMessages.size(), Level.FINE);
+		list.add(compName, statisticsPrefix + "/Batches stored", batches, Level.FINE);
+		list.add(compName, statisticsPrefix + "/Batches failed", batchesFailedCount.get(), Level.FINE);
+		list.add(compName, statisticsPrefix + "/Last batch size", lastBatchSize, Level.FINE);
+		list.add(compName, statisticsPrefix + "/Average batch size",
+				 batches == 0 ? 0f : ((float) batchedMessagesCount.get()) / batches, Level.FINE);
+		list.add(compName, statisticsPrefix + "/Last batch flush time [ms]", lastBatchFlushTime, Level.FINE);
+		list.add(compName, statisticsPrefix + "/Average batch flush time [ms]",
+				 batches == 0 ? 0f : ((float) batchesFlushTime.get()) / batches, Level.FINE);
+	}
+
+	@Override
+	public void setStatisticsPrefix(String prefix) {
+		this.statisticsPrefix = prefix;
+	}
+
+	@Override
+	public void statisticExecutedIn(long executionTime) {
 	}
 
 	@Override
@@ -144,7 +288,12 @@ public class JDBCHistoryProvider
 		try {
 			if (maxchars != null && maxchars == 0) {
 				return;
-			} else if (since != null) {
+			}
+			if (historyCache != null && getCachedHistoryMessages(room, senderJID, maxMessages, maxstanzas, seconds,
+																  since, writer)) {
+				return;
+			}
+			if (since != null) {
 				if (log.isLoggable(Level.FINEST)) {
 					log.finest(
 							"Using SINCE selector: roomJID=" + roomJID + ", since=" + since.getTime() + " (" + since +
@@ -239,6 +388,9 @@ public class JDBCHistoryProvider
 				st.setString(4, msg.toString());
 				st.executeUpdate();
 			}
+			if (historyCache != null) {
+				historyCache.invalidate(owner);
+			}
 		} catch (SQLException ex) {
 			throw new TigaseDBException("Failed to update message", ex);
 		}
@@ -252,7 +404,20 @@ public class JDBCHistoryProvider
 	@Override
 	public void removeHistory(Room room) {
 		PreparedStatement st = null;
+		// messages waiting in a batch have to be stored before history is removed, so they will be removed as well
+		batchLock.lock();
 		try {
+			if (pendingMessages != null) {
+				List<PendingMessage> batch = new ArrayList<>();
+				BatchWriter batchWriter = this.batchWriter;
+				if (batchWriter != null) {
+					batchWriter.drainCollected(batch);
+				}
+				pendingMessages.drainTo(batch);
+				if (!batch.isEmpty()) {
+					flushBatch(batch);
+				}
+			}
 			st = this.data_repo.getPreparedStatement(null, deleteMessagesQuery);
 
 			synchronized (st) {
@@ -267,86 +432,79 @@ public class JDBCHistoryProvider
 
 				st.executeUpdate();
 			}
+			if (historyCache != null) {
+				historyCache.invalidate(room.getRoomJID());
+			}
+			roomMessagesCount.remove(room.getRoomJID());
 		} catch (SQLException e) {
 			if (log.isLoggable(Level.WARNING)) {
 				log.log(Level.WARNING, "Can't delete MUC messages from database", e);
 			}
 			throw new RuntimeException(e);
 		} finally {
+			batchLock.unlock();
 			data_repo.release(null, null);
 		}
 	}
 
 	@Override
 	public void queryItems(Query query, ItemHandler itemHandler) throws TigaseDBException, ComponentException {
+		if (mamKeysetPagination && query.getRsm().getIndex() == null) {
+			queryItemsByKey(query, itemHandler);
+			return;
+		}
 		try {
-			Integer count = countItems(query);
-			if (count == null) {
-				count = 0;
-			}
-
 			Integer after = getItemPosition(query.getRsm().getAfter(), query);
 			Integer before = getItemPosition(query.getRsm().getBefore(), query);
+			// number of messages is needed to find the last page, if it is not positioned by another message
+			Integer count = getItemsCount(query, after == null && before == null && query.getRsm().hasBefore());
 
 			AbstractHistoryProvider.calculateOffsetAndPosition(query, count, before, after);
 
-			PreparedStatement st = data_repo.getPreparedStatement(query.getQuestionerJID().getBareJID(),
-																  mamGetMessagesQuery);
-
-			synchronized (st) {
-				ResultSet rs = null;
-				try {
-					int i = setStatementParamsForMAM(st, query);
-					st.setInt(i++, query.getRsm().getMax());
-					st.setInt(i++, query.getRsm().getIndex());
-
-					rs = st.executeQuery();
+			final int limit = query.getRsm().getMax();
+			final int offset = query.getRsm().getIndex();
+			fetchMAMRows(query, mamGetMessagesQuery, (st, i) -> {
+				st.setInt(i++, limit);
+				st.setInt(i++, offset);
+			}, rows -> deliverMAMRows(query, rows, itemHandler));
+		} catch (SQLException | TigaseStringprepException ex) {
+			throw new TigaseDBException("Cound not retrieve items", ex);
+		}
 
-					while (rs.next()) {
-						String msgSenderNickname = rs.getString("sender_nickname");
-						String stableId = rs.getString("stable_id").toLowerCase();
-						Date msgTimestamp = data_repo.getTimestamp(rs, "ts");
-						String msgSenderJid = rs.getString("sender_jid");
-						String body = rs.getString("body");
-						String msg = rs.getString("msg");
-
-						Element msgEl = createMessageElement(query.getComponentJID().getBareJID(),
-															 query.getQuestionerJID(), msgSenderNickname, msg, body, stableId);
-
-						Item item = new Item() {
-							@Override
-							public String getId() {
-								return stableId;
-							}
+	}
 
-							@Override
-							public Element getMessage() {
-								return msgEl;
-							}
+	/**
+	 * Retrieves items located after or before item with passed stable id, using timestamp and stable id of this item
+	 * as a key instead of calculating its position in the archive. Index of the first returned item is reported only
+	 * if it is known without calculating it. If item used as a key does not exist, <code>item-not-found</code> error
+	 * is reported, as when position of the item is calculated.
+	 */
+	protected void queryItemsByKey(Query query, ItemHandler itemHandler) throws TigaseDBException, ComponentException {
+		final RSM rsm = query.getRsm();
+		final String after = rsm.getAfter();
+		final String before = rsm.getBefore();
+		final boolean backward = before != null || rsm.hasBefore();
+		checkItemExists(after, query);
+		checkItemExists(before, query);
+		try {
+			Integer count = getItemsCount(query, before == null && after == null && backward);
 
-							@Override
-							public Date getTimestamp() {
-								return msgTimestamp;
-							}
+			final int found = fetchMAMRows(query, mamGetMessagesByKeyQuery, (st, i) -> {
+				st.setString(i++, after);
+				st.setString(i++, before);
+				st.setBoolean(i++, backward);
+				st.setInt(i++, rsm.getMax());
+			}, rows -> deliverMAMRows(query, rows, itemHandler));
 
-							@Override
-							public JID getSenderJID() {
-								if (msgSenderJid != null) {
-									return JID.jidInstanceNS(msgSenderJid);
-								}
-								return null;
-							}
-						};
-						itemHandler.itemFound(query, item);
-					}
-				} finally {
-					data_repo.release(null, rs);
-				}
+			if (after == null && before == null) {
+				rsm.setIndex(backward ? Math.max(0, count - found) : 0);
+			}
+			if (count != null) {
+				rsm.setCount(count);
 			}
 		} catch (SQLException | TigaseStringprepException ex) {
 			throw new TigaseDBException("Cound not retrieve items", ex);
 		}
-
 	}
 
 	@Override
@@ -361,6 +519,140 @@ public class JDBCHistoryProvider
 			new RuntimeException("Failed to initialize access to SQL database for PubSubDAOJDBC", ex);
 		}
 		this.data_repo = dataSource;
+		if (batchSize > 1 && batchWriter == null) {
+			// queue is bounded, if batch writer is not able to keep up, messages will be stored synchronously
+			pendingMessages = new ArrayBlockingQueue<>(batchSize * 10);
+			batchWriter = new BatchWriter(pendingMessages);
+			batchWriter.start();
+		}
+		if (historyCacheSize > 0 && historyCache == null) {
+			historyCache = new HistoryCache(historyCacheSize, historyCacheRooms);
+		}
+	}
+
+	/**
+	 * Stores all messages in a single transaction. JDBC batch execution is used for databases which driver supports
+	 * batching calls to stored procedures without result. If storing batch fails, messages are stored one by one, so
+	 * a single invalid message will not cause loss of whole batch.
+	 */
+	protected void flushBatch(List<PendingMessage> batch) {
+		final long start = System.currentTimeMillis();
+		// PostgreSQL JDBC driver executes procedures as queries returning results, which are not allowed in a batch
+		final boolean useJdbcBatch = data_repo.getDatabaseType() != DataRepository.dbTypes.postgresql;
+		final BareJID hint = batch.get(0).senderJid.getBareJID();
+		DataRepository repo = data_repo.takeRepoHandle(hint);
+		try {
+			synchronized (repo) {
+				PreparedStatement st = repo.getPreparedStatement(hint, addMessageQuery);
+				synchronized (st) {
+					repo.startTransaction();
+					try {
+						for (PendingMessage pendingMessage : batch) {
+							setAddMessageParams(repo, st, pendingMessage);
+							if (useJdbcBatch) {
+								st.addBatch();
+							} else {
+								st.executeUpdate();
+							}
+						}
+						if (useJdbcBatch) {
+							st.executeBatch();
+						}
+						repo.commit();
+						batch.forEach(PendingMessage::stored);
+					} catch (SQLException ex) {
+						repo.rollback();
+						throw ex;
+					} finally {
+						if (useJdbcBatch) {
+							st.clearBatch();
+						}
+						repo.endTransaction();
+					}
+				}
+			}
+		} catch (SQLException ex) {
+			batchesFailedCount.incrementAndGet();
+			log.log(Level.WARNING, "Can't add batch of " + batch.size() +
+					" MUC messages to database, storing them one by one", ex);
+			for (PendingMessage pendingMessage : batch) {
+				try {
+					addMessage(pendingMessage);
+				} catch (RuntimeException ex1) {
+					// already logged
+				}
+			}
+		} finally {
+			data_repo.releaseRepoHandle(repo);
+		}
+
+		long flushTime = System.currentTimeMillis() - start;
+		lastBatchSize = batch.size();
+		lastBatchFlushTime = flushTime;
+		batchesCount.incrementAndGet();
+		batchedMessagesCount.addAndGet(batch.size());
+		batchesFlushTime.addAndGet(flushTime);
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Stored batch of {0} messages in {1}ms", new Object[]{batch.size(), flushTime});
+		}
+	}
+
+	/**
+	 * Sends history from cache, if cached messages are sufficient to fulfill the request.
+	 *
+	 * @return <code>true</code> if history was sent
+	 */
+	protected boolean getCachedHistoryMessages(Room room, JID senderJID, int maxMessages, Integer maxstanzas,
+											   Integer seconds, Date since, PacketWriter writer) throws Exception {
+		int limit = maxMessages;
+		Date cacheSince = null;
+		if (since != null) {
+			cacheSince = since.getTime() == 0 ? null : since;
+		} else if (maxstanzas != null) {
+			limit = Math.min(maxstanzas, maxMessages);
+		} else if (seconds != null) {
+			cacheSince = new Date(System.currentTimeMillis() - seconds * 1000);
+		}
+
+		List<HistoryCache.Item> items = historyCache.getMessages(room.getRoomJID(), limit, cacheSince,
+																	this::loadCachedMessages);
+		if (items == null) {
+			return false;
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.finest("Sending " + items.size() + " cached messages from room " + room.getRoomJID() + " to " +
+							   senderJID);
+		}
+		for (HistoryCache.Item item : items) {
+			writer.write(createMessage(room.getRoomJID(), senderJID, item.getSenderNickname(),
+									   item.getParsedMessage(this::parseMessage), item.getBody(),
+									   new Date(item.getTimestamp()), item.getStableId()));
+		}
+		return true;
+	}
+
+	protected List<HistoryCache.Item> loadCachedMessages(BareJID roomJID, int limit) throws SQLException {
+		List<HistoryCache.Item> items = new ArrayList<>();
+		PreparedStatement st = data_repo.getPreparedStatement(roomJID, getMessagesQuery);
+		synchronized (st) {
+			ResultSet rs = null;
+			try {
+				st.setString(1, roomJID.toString());
+				st.setInt(2, limit);
+				data_repo.setTimestamp(st, 3, (Timestamp) null);
+				rs = st.executeQuery();
+				while (rs.next()) {
+					items.add(new HistoryCache.Item(rs.getString("sender_nickname"),
+													rs.getString("stable_id").toLowerCase(),
+													data_repo.getTimestamp(rs, "ts").getTime(),
+													rs.getString("sender_jid"), rs.getString("body"),
+													rs.getString("msg")));
+				}
+			} finally {
+				data_repo.release(null, rs);
+			}
+		}
+		return items;
 	}
 
 	protected void getMessagesSince(Room room, JID senderJID, int maxMessages, Timestamp since, PacketWriter writer)
@@ -411,12 +703,137 @@ public class JDBCHistoryProvider
 		repo.initPreparedStatement(deleteMessagesQuery, deleteMessagesQuery);
 		repo.initPreparedStatement(getMessagesQuery, getMessagesQuery);
 		repo.initPreparedStatement(mamGetMessagesQuery, mamGetMessagesQuery);
+		repo.initPreparedStatement(mamGetMessagesByKeyQuery, mamGetMessagesByKeyQuery);
 		repo.initPreparedStatement(mamGetMessagesCountQuery, mamGetMessagesCountQuery);
 		repo.initPreparedStatement(mamGetMessagePositionQuery, mamGetMessagePositionQuery);
 		repo.initPreparedStatement(getMessageQuery, getMessageQuery);
 		repo.initPreparedStatement(updateMessageQuery, updateMessageQuery);
 	}
 
+	private void setAddMessageParams(DataRepository repo, PreparedStatement st, PendingMessage pendingMessage)
+			throws SQLException {
+		st.setString(1, pendingMessage.roomJid);
+		st.setString(2, pendingMessage.stableId);
+		repo.setTimestamp(st, 3, pendingMessage.timestamp);
+		st.setString(4, pendingMessage.senderJid.toString());
+		st.setString(5, pendingMessage.senderNickname);
+		st.setString(6, pendingMessage.body);
+		st.setBoolean(7, pendingMessage.publicEvent);
+		st.setString(8, pendingMessage.message);
+	}
+
+	private int getMAMChunkSize() {
+		return mamChunkSize > 0 ? mamChunkSize : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Reads rows of MAM results using a dedicated database handle, so other queries are not blocked while results are
+	 * sent. Rows are read from a single result set in chunks of <code>mam-chunk-size</code> rows and each chunk is
+	 * passed to the handler before next one is read. JDBC drivers load whole result set on execution unless told
+	 * otherwise, so results are streamed by MySQL driver with {@link Integer#MIN_VALUE} fetch size and by PostgreSQL
+	 * driver within a transaction. Handle is kept until the last chunk is passed to the handler.
+	 *
+	 * @return number of read rows
+	 */
+	private int fetchMAMRows(Query query, String queryKey, MAMStatementParams params, MAMRowsHandler handler)
+			throws SQLException, TigaseStringprepException {
+		final int chunkSize = getMAMChunkSize();
+		final BareJID hint = query.getQuestionerJID().getBareJID();
+		int found = 0;
+		DataRepository repo = data_repo.takeRepoHandle(hint);
+		try {
+			final DataRepository.dbTypes databaseType = repo.getDatabaseType();
+			// PostgreSQL driver uses fetch size only if auto-commit is disabled
+			final boolean inTransaction = mamChunkSize > 0 && databaseType == DataRepository.dbTypes.postgresql;
+			synchronized (repo) {
+				PreparedStatement st = repo.getPreparedStatement(hint, queryKey);
+				synchronized (st) {
+					if (inTransaction) {
+						repo.startTransaction();
+					}
+					ResultSet rs = null;
+					try {
+						int i = setStatementParamsForMAM(st, query);
+						params.set(st, i);
+						if (mamChunkSize > 0) {
+							// MySQL driver streams results only with this fetch size, unless cursor fetch is enabled in URI
+							st.setFetchSize(
+									databaseType == DataRepository.dbTypes.mysql ? Integer.MIN_VALUE : mamChunkSize);
+						}
+
+						rs = st.executeQuery();
+						List<MAMRow> rows = new ArrayList<>();
+						while (rs.next()) {
+							rows.add(new MAMRow(rs.getString("sender_nickname"),
+												rs.getString("stable_id").toLowerCase(), repo.getTimestamp(rs, "ts"),
+												rs.getString("sender_jid"), rs.getString("body"),
+												rs.getString("msg")));
+							if (rows.size() >= chunkSize) {
+								handler.handle(rows);
+								found += rows.size();
+								rows = new ArrayList<>();
+							}
+						}
+						if (!rows.isEmpty()) {
+							handler.handle(rows);
+							found += rows.size();
+						}
+						if (inTransaction) {
+							repo.commit();
+						}
+					} catch (SQLException ex) {
+						if (inTransaction) {
+							repo.rollback();
+						}
+						throw ex;
+					} finally {
+						repo.release(null, rs);
+						if (inTransaction) {
+							repo.endTransaction();
+						}
+					}
+				}
+			}
+		} finally {
+			data_repo.releaseRepoHandle(repo);
+		}
+		return found;
+	}
+
+	private void deliverMAMRows(Query query, List<MAMRow> rows, ItemHandler itemHandler)
+			throws TigaseStringprepException {
+		for (MAMRow row : rows) {
+			final Element msgEl = createMessageElement(query.getComponentJID().getBareJID(), query.getQuestionerJID(),
+													   row.senderNickname, row.msg, row.body, row.stableId);
+
+			Item item = new Item() {
+				@Override
+				public String getId() {
+					return row.stableId;
+				}
+
+				@Override
+				public Element getMessage() {
+					return msgEl;
+				}
+
+				@Override
+				public Date getTimestamp() {
+					return row.timestamp;
+				}
+
+				@Override
+				public JID getSenderJID() {
+					if (row.senderJid != null) {
+						return JID.jidInstanceNS(row.senderJid);
+					}
+					return null;
+				}
+			};
+			itemHandler.itemFound(query, item);
+		}
+	}
+
 	private int setStatementParamsForMAM(PreparedStatement st, Query query) throws SQLException {
 		int i = 1;
 		st.setString(i++, query.getComponentJID().getBareJID().toString());
@@ -446,6 +863,57 @@ public class JDBCHistoryProvider
 		return i;
 	}
 
+	/**
+	 * Returns number of messages matching query according to configured <code>mam-count-mode</code>.
+	 *
+	 * @param required if <code>true</code> then number of messages is always returned
+	 */
+	protected Integer getItemsCount(Query query, boolean required) throws TigaseDBException {
+		switch (mamCountMode) {
+			case cached:
+				// cached number of messages may drift, so it is not used to find position of results
+				if (!required && query.getStart() == null && query.getEnd() == null && query.getWith() == null) {
+					return getRoomMessagesCount(query);
+				}
+				return countItemsOrZero(query);
+			case skip:
+				return required ? countItemsOrZero(query) : null;
+			default:
+				return countItemsOrZero(query);
+		}
+	}
+
+	/**
+	 * Returns number of all messages in the room maintained in memory. Counter is registered before messages are
+	 * counted in the database, so messages stored in the meantime are counted as well: the database counts messages
+	 * not newer than the registration time, while the counter counts newer ones.
+	 */
+	private int getRoomMessagesCount(Query query) throws TigaseDBException {
+		final BareJID roomJID = query.getComponentJID().getBareJID();
+		// counters of rooms which were not used for the longest time are removed if limit of rooms is exceeded
+		final RoomMessagesCount counter = roomMessagesCount.computeIfAbsent(roomJID,
+																			jid -> new RoomMessagesCount(
+																					System.currentTimeMillis()));
+		if (!counter.seeded) {
+			synchronized (counter) {
+				if (!counter.seeded) {
+					final Query countQuery = newQuery();
+					countQuery.setComponentJID(query.getComponentJID());
+					countQuery.setQuestionerJID(query.getQuestionerJID());
+					countQuery.setEnd(new Date(counter.since));
+					counter.count.addAndGet(countItemsOrZero(countQuery));
+					counter.seeded = true;
+				}
+			}
+		}
+		return counter.count.get();
+	}
+
+	private int countItemsOrZero(Query query) throws TigaseDBException {
+		Integer count = countItems(query);
+		return count == null ? 0 : count;
+	}
+
 	private Integer countItems(Query query) throws TigaseDBException {
 		try {
 			PreparedStatement st = this.data_repo.getPreparedStatement(query.getQuestionerJID().getBareJID(),
@@ -471,6 +939,35 @@ public class JDBCHistoryProvider
 		}
 	}
 
+	private void checkItemExists(String stableId, Query query) throws TigaseDBException, ComponentException {
+		if (stableId == null) {
+			return;
+		}
+
+		final BareJID roomJID = query.getComponentJID().getBareJID();
+		try {
+			PreparedStatement st = this.data_repo.getPreparedStatement(roomJID, getMessageQuery);
+			synchronized (st) {
+				ResultSet rs = null;
+				try {
+					st.setString(1, roomJID.toString());
+					st.setString(2, stableId);
+
+					rs = st.executeQuery();
+					if (!rs.next()) {
+						throw new ComponentException(Authorization.ITEM_NOT_FOUND,
+													 "Not found message with id = " + stableId);
+					}
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+		} catch (SQLException ex) {
+			throw new TigaseDBException(
+					"Can't find message with id " + stableId + " in archive for room " + query.getComponentJID(), ex);
+		}
+	}
+
 	private Integer getItemPosition(String stableId, Query query) throws TigaseDBException, ComponentException {
 		if (stableId == null) {
 			return null;
@@ -503,4 +1000,177 @@ public class JDBCHistoryProvider
 		}
 	}
 
+
+	@FunctionalInterface
+	private interface MAMStatementParams {
+
+		void set(PreparedStatement st, int idx) throws SQLException;
+
+	}
+
+	@FunctionalInterface
+	private interface MAMRowsHandler {
+
+		void handle(List<MAMRow> rows) throws TigaseStringprepException;
+
+	}
+
+	private static class MAMRow {
+
+		private final String body;
+		private final String msg;
+		private final String senderJid;
+		private final String senderNickname;
+		private final String stableId;
+		private final Date timestamp;
+
+		private MAMRow(String senderNickname, String stableId, Date timestamp, String senderJid, String body,
+					   String msg) {
+			this.senderNickname = senderNickname;
+			this.stableId = stableId;
+			this.timestamp = timestamp;
+			this.senderJid = senderJid;
+			this.body = body;
+			this.msg = msg;
+		}
+	}
+
+	private static class RoomMessagesCount {
+
+		private final AtomicInteger count = new AtomicInteger();
+		/**
+		 * Only messages newer than this time are counted in memory.
+		 */
+		private final long since;
+		private volatile boolean seeded = false;
+
+		private RoomMessagesCount(long since) {
+			this.since = since;
+		}
+
+		private void added(long timestamp) {
+			if (timestamp > since) {
+				count.incrementAndGet();
+			}
+		}
+	}
+
+	protected static class PendingMessage {
+
+		private final String body;
+		private final String message;
+		private final boolean publicEvent;
+		private final String roomJid;
+		private final JID senderJid;
+		private final String senderNickname;
+		private final String stableId;
+		private final CompletableFuture<Void> stored;
+		private final Timestamp timestamp;
+
+		private PendingMessage(Room room, Element message, String body, JID senderJid, String senderNickname,
+							   Date time, String stableId, CompletableFuture<Void> stored) {
+			this.roomJid = room.getRoomJID().toString();
+			this.publicEvent = room.getConfig().isLoggingEnabled();
+			// message is serialized here, as it may be modified after it is queued
+			this.message = message == null ? null : message.toString();
+			this.body = body;
+			this.senderJid = senderJid;
+			this.senderNickname = senderNickname;
+			this.timestamp = new Timestamp(time.getTime());
+			this.stableId = stableId;
+			this.stored = stored;
+		}
+
+		private void stored() {
+			if (stored != null) {
+				stored.complete(null);
+			}
+		}
+
+		private void failed(Throwable ex) {
+			if (stored != null) {
+				stored.completeExceptionally(ex);
+			}
+		}
+	}
+
+	private class BatchWriter
+			extends Thread {
+
+		private final List<PendingMessage> collected = new ArrayList<>();
+		private final BlockingQueue<PendingMessage> queue;
+		private volatile boolean active = true;
+
+		private BatchWriter(BlockingQueue<PendingMessage> queue) {
+			super("muc-history-batch-writer");
+			setDaemon(true);
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			final List<PendingMessage> batch = new ArrayList<>(batchSize);
+			while (active || !queue.isEmpty()) {
+				// messages are collected without holding the lock, so removal of history does not wait for them
+				try {
+					PendingMessage pendingMessage = queue.poll(batchWindow, TimeUnit.MILLISECONDS);
+					if (pendingMessage == null) {
+						continue;
+					}
+					int collectedCount = collect(pendingMessage);
+					long deadline = System.currentTimeMillis() + batchWindow;
+					while (collectedCount < batchSize) {
+						long remaining = deadline - System.currentTimeMillis();
+						if (remaining <= 0 || (pendingMessage = queue.poll(remaining, TimeUnit.MILLISECONDS)) == null) {
+							break;
+						}
+						collectedCount = collect(pendingMessage);
+					}
+				} catch (InterruptedException ex) {
+					// shutting down, remaining messages will be stored before exiting
+				}
+				batchLock.lock();
+				try {
+					// collected messages might be already stored by removal of history
+					drainCollected(batch);
+					if (!batch.isEmpty()) {
+						flushBatch(batch);
+					}
+				} catch (Exception ex) {
+					log.log(Level.WARNING, "Can't add batch of MUC messages to database", ex);
+				} finally {
+					batch.clear();
+					batchLock.unlock();
+				}
+			}
+		}
+
+		private int collect(PendingMessage pendingMessage) {
+			synchronized (collected) {
+				collected.add(pendingMessage);
+				return collected.size();
+			}
+		}
+
+		private void drainCollected(List<PendingMessage> batch) {
+			synchronized (collected) {
+				batch.addAll(collected);
+				collected.clear();
+			}
+		}
+
+		private void shutdown() {
+			active = false;
+			interrupt();
+			try {
+				// messages are stored before exiting, so database has to be available until they are stored
+				join(BATCH_WRITER_STOP_TIMEOUT);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			if (isAlive()) {
+				log.log(Level.WARNING, "Writer of MUC messages did not stop in {0}ms", BATCH_WRITER_STOP_TIMEOUT);
+			}
+		}
+	}
 }
@@ -20,31 +20,55 @@ package tigase.muc.history;
 import tigase.annotations.TigaseDeprecated;
 import tigase.component.PacketWriter;
 import tigase.db.DataSource;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.muc.Room;
 import tigase.server.Packet;
 import tigase.xml.Element;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
 /**
+ * In-memory history provider. History of each room is kept in a fixed size ring buffer, which is written by a single
+ * writer at a time and may be read concurrently without locking.
+ * <br>
+ * Memory used by all rooms is limited by <code>memory-limit</code>. If it is exceeded, history of rooms which were not
+ * accessed for the longest time is removed.
+ *
  * @author bmalkow
  */
 public class MemoryHistoryProvider
 		extends AbstractHistoryProvider {
 
-	private final Map<BareJID, LinkedList<HItem>> history = new ConcurrentHashMap<BareJID, LinkedList<HItem>>();
-	private final int maxSize = 256;
+	private final Map<BareJID, RoomHistory> history = new ConcurrentHashMap<BareJID, RoomHistory>();
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final AtomicLong accessCounter = new AtomicLong();
+	private final AtomicLong usedMemory = new AtomicLong();
+	@ConfigField(desc = "Maximal size of memory (in bytes) used by history of all rooms (0 - unlimited)", alias = "memory-limit")
+	private long memoryLimit = 64 * 1024 * 1024;
+	@ConfigField(desc = "Number of messages kept in history of a single room", alias = "room-history-size")
+	private int roomHistorySize = 256;
 
 	public MemoryHistoryProvider() {
 	}
 
+	MemoryHistoryProvider(int roomHistorySize, long memoryLimit) {
+		this.roomHistorySize = roomHistorySize;
+		this.memoryLimit = memoryLimit;
+	}
+
 	@Override
 	public void addJoinEvent(Room room, Date date, JID senderJID, String nickName) {
 	}
@@ -62,25 +86,23 @@ public class MemoryHistoryProvider
 
 	@Override
 	public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname, Date time, String stableId) {
-		LinkedList<HItem> stanzas = this.history.get(room.getRoomJID());
-		if (stanzas == null) {
-			stanzas = new LinkedList<HItem>();
-			this.history.put(room.getRoomJID(), stanzas);
-		}
-
-		if (stanzas.size() >= this.maxSize) {
-			stanzas.poll();
-		}
-
 		HItem item = new HItem();
 		item.id = stableId;
 		item.body = body;
 		item.senderJid = senderJid;
 		item.senderNickname = senderNickname;
-		item.timestamp = time;
+		item.timestamp = time.getTime();
 		item.msg = message == null ? null : message.toString();
 
-		stanzas.add(item);
+		final BareJID roomJID = room.getRoomJID();
+		RoomHistory roomHistory;
+		do {
+			roomHistory = this.history.computeIfAbsent(roomJID, jid -> new RoomHistory(Math.max(1, roomHistorySize)));
+		} while (!roomHistory.add(item));
+
+		if (memoryLimit > 0 && usedMemory.get() > memoryLimit) {
+			evictRooms(roomJID);
+		}
 	}
 
 	@Override
@@ -96,49 +118,59 @@ public class MemoryHistoryProvider
 	@Override
 	public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas, Integer seconds,
 								   Date since, PacketWriter writer) {
-		LinkedList<HItem> stanzas = this.history.get(room.getRoomJID());
-		if (stanzas == null) {
-			stanzas = new LinkedList<HItem>();
-			this.history.put(room.getRoomJID(), stanzas);
+		if (maxchars != null && maxchars == 0) {
+			return;
+		}
+		RoomHistory roomHistory = this.history.get(room.getRoomJID());
+		if (roomHistory == null) {
+			return;
 		}
 
-		int c = 0;
-		final Date now = new Date();
-		for (HItem item : stanzas) {
-
-			if (since != null) {
-				if (item.timestamp.before(since)) {
-					continue;
-				}
-			} else if (maxstanzas != null) {
-				if (c >= maxstanzas) {
-					break;
-				}
-			} else if (seconds != null) {
-				if (item.timestamp.getTime() < now.getTime() - seconds * 1000) {
-					continue;
-				}
-			} else {
-				if (c >= 25) {
-					break;
-				}
-			}
-
-			boolean addRealJids = isAllowedToSeeJIDs(senderJID.getBareJID(), room);
+		int limit = room.getConfig().getMaxHistory();
+		long after = Long.MIN_VALUE;
+		if (since != null) {
+			after = since.getTime();
+		} else if (maxstanzas != null) {
+			limit = Math.min(maxstanzas, limit);
+		} else if (seconds != null) {
+			after = System.currentTimeMillis() - seconds * 1000L;
+		}
 
-			try {
+		final List<HItem> items = roomHistory.getLatest(limit, after);
+		final boolean addRealJids = isAllowedToSeeJIDs(senderJID.getBareJID(), room);
+		final Deque<Packet> messages = new ArrayDeque<>(items.size());
+		int chars = 0;
+		try {
+			// items are ordered from the newest, so if maxchars is set, oldest messages are skipped
+			for (HItem item : items) {
 				Packet message = createMessage(room.getRoomJID(), senderJID, item.senderNickname, item.msg, item.body,
-											   item.senderJid.toString(), addRealJids, item.timestamp, item.id);
-
-				writer.write(message);
-				++c;
-			} catch (Exception e) {
-				if (log.isLoggable(Level.SEVERE)) {
-					log.log(Level.SEVERE, "Can't get history", e);
+											   item.senderJid.toString(), addRealJids, new Date(item.timestamp),
+											   item.id);
+				if (maxchars != null) {
+					chars += message.getElement().toString().length();
+					if (chars > maxchars) {
+						break;
+					}
 				}
-				throw new RuntimeException(e);
+				messages.addFirst(message);
+			}
+		} catch (Exception e) {
+			if (log.isLoggable(Level.SEVERE)) {
+				log.log(Level.SEVERE, "Can't get history", e);
 			}
+			throw new RuntimeException(e);
 		}
+
+		for (Packet message : messages) {
+			writer.write(message);
+		}
+	}
+
+	/**
+	 * Returns estimated size of memory used by history of all rooms.
+	 */
+	public long getUsedMemory() {
+		return usedMemory.get();
 	}
 
 	@Override
@@ -153,7 +185,37 @@ public class MemoryHistoryProvider
 
 	@Override
 	public void removeHistory(Room room) {
-		this.history.remove(room.getRoomJID());
+		RoomHistory roomHistory = this.history.remove(room.getRoomJID());
+		if (roomHistory != null) {
+			roomHistory.release();
+		}
+	}
+
+	private void evictRooms(BareJID currentRoomJID) {
+		if (!evictionLock.tryLock()) {
+			// other thread is already removing rooms
+			return;
+		}
+		try {
+			List<Map.Entry<BareJID, RoomHistory>> candidates = new ArrayList<>(history.entrySet());
+			candidates.sort((e1, e2) -> Long.compare(e1.getValue().lastAccess, e2.getValue().lastAccess));
+			for (Map.Entry<BareJID, RoomHistory> e : candidates) {
+				if (usedMemory.get() <= memoryLimit) {
+					break;
+				}
+				if (e.getKey().equals(currentRoomJID)) {
+					continue;
+				}
+				if (history.remove(e.getKey(), e.getValue())) {
+					e.getValue().release();
+					if (log.isLoggable(Level.FINE)) {
+						log.log(Level.FINE, "Memory limit exceeded, removed history of room {0}", e.getKey());
+					}
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
 	}
 
 	private static class HItem {
@@ -166,7 +228,79 @@ public class MemoryHistoryProvider
 		String msg;
 		JID senderJid;
 		String senderNickname;
-		Date timestamp;
+		long timestamp;
+		long sequence;
+		int size;
+
+		private int estimateSize() {
+			// object headers and references + characters of strings
+			return 96 + 2 * (length(id) + length(body) + length(msg) + length(senderNickname));
+		}
+
+		private static int length(String str) {
+			return str == null ? 0 : str.length();
+		}
+	}
+
+	private class RoomHistory {
+
+		private final AtomicReferenceArray<HItem> items;
+		private volatile long lastAccess;
+		private boolean released = false;
+		private long size = 0;
+		private volatile long written = 0;
+
+		private RoomHistory(int capacity) {
+			this.items = new AtomicReferenceArray<>(capacity);
+			this.lastAccess = accessCounter.incrementAndGet();
+		}
+
+		private synchronized boolean add(HItem item) {
+			if (released) {
+				return false;
+			}
+			final int idx = (int) (written % items.length());
+			item.sequence = written;
+			item.size = item.estimateSize();
+			HItem old = items.getAndSet(idx, item);
+			long delta = item.size - (old == null ? 0 : old.size);
+			size += delta;
+			usedMemory.addAndGet(delta);
+			written++;
+			lastAccess = accessCounter.incrementAndGet();
+			return true;
+		}
+
+		/**
+		 * Returns up to <code>limit</code> newest items with timestamp not older than <code>after</code>, ordered from
+		 * the newest one.
+		 */
+		private List<HItem> getLatest(int limit, long after) {
+			lastAccess = accessCounter.incrementAndGet();
+			final long last = written;
+			final long first = Math.max(0, last - items.length());
+			final List<HItem> result = new ArrayList<>(Math.max(0, Math.min(limit, (int) (last - first))));
+			for (long seq = last - 1; seq >= first && result.size() < limit; seq--) {
+				HItem item = items.get((int) (seq % items.length()));
+				if (item == null || item.sequence != seq) {
+					// item was overwritten by a newer one, so older ones are gone as well
+					break;
+				}
+				if (item.timestamp < after) {
+					continue;
+				}
+				result.add(item);
+			}
+			return result;
+		}
+
+		private synchronized void release() {
+			if (!released) {
+				released = true;
+				usedMemory.addAndGet(-size);
+				size = 0;
+			}
+		}
 	}
 
 }
@@ -26,13 +26,14 @@ import tigase.muc.exceptions.MUCException;
 import tigase.muc.repository.IMucRepository;
 import tigase.server.Packet;
 import tigase.util.datetime.TimestampHelper;
+import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
+import tigase.xmpp.rsm.RSM;
 
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.logging.Level;
 
 /**
@@ -185,6 +186,33 @@ public class DiscoveryModule
 		}
 	}
 
+	private boolean isAllowed(BareJID jid, JID senderJID) throws RepositoryException, MUCException {
+		final Room room = repository.getRoom(jid);
+
+		if (room == null) {
+			log.warning("Room " + jid + " is not available!");
+			return false;
+		} else if (room.getConfig() == null) {
+			log.warning("Room " + jid + " hasn't configuration!");
+			return false;
+		} else {
+			boolean fa = filter.allowed(senderJID, room);
+			log.finest("Using filter " + filter + "; result(" + senderJID + ", " + room.getRoomJID() + ")=" + fa);
+			if (!fa) {
+				log.fine("Room " + jid + " is filtered off");
+			}
+			return fa;
+		}
+	}
+
+	private BareJID parseRoomJID(String jid) throws MUCException {
+		try {
+			return BareJID.bareJIDInstance(jid);
+		} catch (TigaseStringprepException ex) {
+			throw new MUCException(Authorization.ITEM_NOT_FOUND, "Invalid room JID " + jid);
+		}
+	}
+
 	@Override
 	protected void processDiscoItems(Packet packet, JID requestedJID, String node, JID senderJID)
 			throws ComponentException, RepositoryException {
@@ -199,9 +227,34 @@ public class DiscoveryModule
 
 			// discovering rooms
 			// (http://xmpp.org/extensions/xep-0045.html#disco-rooms)
-			Map<BareJID, String> publicRooms = repository.getPublicVisibleRooms(requestedJID.getDomain());
+			NavigableMap<BareJID, String> publicRooms = repository.getPublicVisibleRoomsDirectory(
+					requestedJID.getDomain());
+
+			// paging of results (https://xmpp.org/extensions/xep-0059.html)
+			RSM rsm = RSM.parseRootElement(packet.getElement().getChild("query", DISCO_ITEMS_XMLNS));
+			Map<BareJID, String> rooms = publicRooms;
+			boolean reversed = false;
+			int skip = 0;
+			if (rsm != null) {
+				if (rsm.getAfter() != null) {
+					rooms = publicRooms.tailMap(parseRoomJID(rsm.getAfter()), false);
+				} else if (rsm.getBefore() != null) {
+					rooms = publicRooms.headMap(parseRoomJID(rsm.getBefore()), false).descendingMap();
+					reversed = true;
+				} else if (rsm.hasBefore()) {
+					rooms = publicRooms.descendingMap();
+					reversed = true;
+				} else if (rsm.getIndex() != null) {
+					skip = rsm.getIndex();
+				}
+			}
 
-			for (Map.Entry<BareJID, String> e : publicRooms.entrySet()) {
+			final int max = rsm == null ? Integer.MAX_VALUE : rsm.getMax();
+			final LinkedList<Element> items = new LinkedList<>();
+			for (Map.Entry<BareJID, String> e : rooms.entrySet()) {
+				if (items.size() >= max) {
+					break;
+				}
 				BareJID jid = e.getKey();
 
 				// we are skipping rooms without localPart as they are not valid!
@@ -209,35 +262,43 @@ public class DiscoveryModule
 					continue;
 				}
 
-				String name = e.getValue();
-				if (filter != null) {
-					final Room room = repository.getRoom(jid);
-
-					if (room == null) {
-						log.warning("Room " + jid + " is not available!");
-						continue;
-					} else if (room.getConfig() == null) {
-						log.warning("Room " + jid + " hasn't configuration!");
-						continue;
-					} else {
-						boolean fa = filter.allowed(senderJID, room);
-						log.finest(
-								"Using filter " + filter + "; result(" + senderJID + ", " + room.getRoomJID() + ")=" +
-										fa);
-						if (!fa) {
-							log.fine("Room " + jid + " is filtered off");
-							continue;
-						}
-					}
+				if (filter != null && !isAllowed(jid, senderJID)) {
+					continue;
+				}
+				if (skip > 0) {
+					skip--;
+					continue;
 				}
 				if (log.isLoggable(Level.FINER)) {
 					log.finer("Room " + jid + " is added to response.");
 				}
 
-				resultQuery.addChild(new Element("item", new String[]{"jid", "name"}, new String[]{jid.toString(),
-																								   (name != null)
-																								   ? name
-																								   : jid.getLocalpart()}));
+				String name = e.getValue();
+				Element item = new Element("item", new String[]{"jid", "name"},
+										   new String[]{jid.toString(), (name != null) ? name : jid.getLocalpart()});
+				if (reversed) {
+					items.addFirst(item);
+				} else {
+					items.addLast(item);
+				}
+			}
+			resultQuery.addChildren(items);
+
+			if (rsm != null) {
+				// number of rooms is not known without checking every room against the filter
+				Integer count = filter == null ? publicRooms.size() : null;
+				if (items.isEmpty()) {
+					rsm.setResults(count, null, null);
+				} else {
+					rsm.setResults(count, items.getFirst().getAttributeStaticStr("jid"),
+								   items.getLast().getAttributeStaticStr("jid"));
+					if (filter == null && rsm.getAfter() == null && rsm.getBefore() == null) {
+						// position of the page is known only if it was requested by index or is the first or last page
+						int index = rsm.getIndex() == null ? 0 : rsm.getIndex();
+						rsm.setIndex(rsm.hasBefore() ? publicRooms.size() - items.size() : index);
+					}
+				}
+				resultQuery.addChild(rsm.toElement());
 			}
 
 //			BareJID[] roomsId = context.getMucRepository().getPublicVisibleRoomsIdList();
@@ -287,9 +348,13 @@ public class DiscoveryModule
 			String nickname = room.getOccupantsNickname(packet.getStanzaFrom());
 
 			if (nickname != null) {
-				for (String nick : room.getOccupantsNicknames(true)) {
-					resultQuery.addChild(new Element("item", new String[]{"jid", "name"},
-													 new String[]{room.getRoomJID() + "/" + nick, nick}));
+				RSM rsm = RSM.parseRootElement(packet.getElement().getChild("query", DISCO_ITEMS_XMLNS));
+				if (rsm == null) {
+					for (String nick : room.getOccupantsNicknames(true)) {
+						resultQuery.addChild(createOccupantItem(room, nick));
+					}
+				} else {
+					addOccupantsPage(resultQuery, room, rsm);
 				}
 			}
 		} else if ((node == null) && (requestedJID.getLocalpart() != null) && (requestedJID.getResource() != null)) {
@@ -301,6 +366,64 @@ public class DiscoveryModule
 		write(result);
 	}
 
+	/**
+	 * Adds page of occupants of the room, sorted by nickname, to the response
+	 * (https://xmpp.org/extensions/xep-0059.html).
+	 */
+	private void addOccupantsPage(Element resultQuery, Room room, RSM rsm) {
+		final NavigableSet<String> occupants = new TreeSet<>(room.getOccupantsNicknames(true));
+
+		Collection<String> nicknames = occupants;
+		boolean reversed = false;
+		int skip = 0;
+		if (rsm.getAfter() != null) {
+			nicknames = occupants.tailSet(rsm.getAfter(), false);
+		} else if (rsm.getBefore() != null) {
+			nicknames = occupants.headSet(rsm.getBefore(), false).descendingSet();
+			reversed = true;
+		} else if (rsm.hasBefore()) {
+			nicknames = occupants.descendingSet();
+			reversed = true;
+		} else if (rsm.getIndex() != null) {
+			skip = rsm.getIndex();
+		}
+
+		final int max = rsm.getMax();
+		final LinkedList<String> page = new LinkedList<>();
+		for (String nick : nicknames) {
+			if (page.size() >= max) {
+				break;
+			}
+			if (skip > 0) {
+				skip--;
+				continue;
+			}
+			if (reversed) {
+				page.addFirst(nick);
+			} else {
+				page.addLast(nick);
+			}
+		}
+		for (String nick : page) {
+			resultQuery.addChild(createOccupantItem(room, nick));
+		}
+
+		if (page.isEmpty()) {
+			rsm.setResults(occupants.size(), null, null);
+		} else {
+			rsm.setResults(occupants.size(), page.getFirst(), page.getLast());
+			if (rsm.getAfter() == null && rsm.getBefore() == null) {
+				int index = rsm.getIndex() == null ? 0 : rsm.getIndex();
+				rsm.setIndex(rsm.hasBefore() ? occupants.size() - page.size() : index);
+			}
+		}
+		resultQuery.addChild(rsm.toElement());
+	}
+
+	private static Element createOccupantItem(Room room, String nick) {
+		return new Element("item", new String[]{"jid", "name"}, new String[]{room.getRoomJID() + "/" + nick, nick});
+	}
+
 	private void addField(Element form, String var, String type, String label, Object... value) {
 		if (value == null) {
 			return;
@@ -27,6 +27,7 @@ import tigase.muc.Role;
 import tigase.muc.Room;
 import tigase.muc.exceptions.MUCException;
 import tigase.muc.history.HistoryProvider;
+import tigase.muc.history.HistoryWriteBehind;
 import tigase.muc.logger.MucLogger;
 import tigase.muc.repository.IMucRepository;
 import tigase.server.Packet;
@@ -63,6 +64,9 @@ public class GroupchatMessageModule
 	@Inject
 	private HistoryProvider historyProvider;
 
+	@Inject(nullAllowed = true)
+	private HistoryWriteBehind historyWriteBehind;
+
 	@Inject(nullAllowed = true)
 	private MucLogger mucLogger;
 
@@ -230,8 +234,9 @@ public class GroupchatMessageModule
 
 			if (body != null) {
 				String stableId = UUID.randomUUID().toString();
-				addMessageToHistory(room, msg.getElement(), body.getCData(), senderJID, nickName, sendDate, stableId);
+				// stanza-id is added before message is passed to history as it may be stored asynchronously
 				msg.getElement().addChild(new Element("stanza-id", new String[] { "xmlns", "id", "by" }, new String[] { "urn:xmpp:sid:0", stableId, roomJID.toString() }));
+				addMessageToHistory(room, msg.getElement(), body.getCData(), senderJID, nickName, sendDate, stableId);
 			}
 			if (subject != null) {
 				addSubjectChangeToHistory(room, msg.getElement(), subject.getCData(), senderJID, nickName, sendDate);
@@ -267,22 +272,60 @@ public class GroupchatMessageModule
 		room.fireOnMessageToOccupants(fromJID, msg);
 	}
 
+	/**
+	 * Sends message to all occupants of the room. Each recipient gets its own top level element, but child elements
+	 * of <code>msg</code> are shared by all of them (and with <code>msg</code> itself), so they are read-only once
+	 * this method is called. Code which needs to alter a child of a delivered message has to replace it with a
+	 * modified clone instead of changing it in place; adding or removing children is always safe.
+	 */
 	public void sendMessagesToAllOccupantsJids(final Room room, final JID fromJID, final Packet msg)
 			throws TigaseStringprepException {
 
-		room.getAllJidsForMessageDelivery().forEach(jid -> {
-			Packet message = msg.copyElementOnly();
-			message.initVars(fromJID, jid);
-			message.setXMLNS(Packet.CLIENT_XMLNS);
+		final Element template = msg.getElement();
+		// copied once per message, so nothing depends on whether accessors of Element return copies
+		final Map<String, String> templateAttributes = template.getAttributes();
+		final Map<String, String> attributes =
+				templateAttributes == null ? null : new LinkedHashMap<>(templateAttributes);
+		if (attributes != null) {
+			attributes.remove(Packet.FROM_ATT);
+			attributes.remove(Packet.TO_ATT);
+		}
+		final List<Element> templateChildren = template.getChildren();
+		final List<Element> children = templateChildren == null ? null : new ArrayList<>(templateChildren);
 
-			write(message);
-		});
+		final Room.DeliveryRoster roster = room.getDeliveryRoster();
+		for (int i = 0; i < roster.size(); i++) {
+			write(createMessageForRecipient(template.getName(), attributes, children, fromJID, roster.get(i)));
+		}
+	}
+
+	/**
+	 * Creates message for a single recipient. Only top level element is created, child elements are shared between
+	 * all recipients and must not be modified (see {@link #sendMessagesToAllOccupantsJids(Room, JID, Packet)}).
+	 */
+	protected Packet createMessageForRecipient(String name, Map<String, String> attributes, List<Element> children,
+											   JID fromJID, JID toJID) throws TigaseStringprepException {
+		Element e = new Element(name);
+		if (attributes != null) {
+			for (Map.Entry<String, String> attr : attributes.entrySet()) {
+				e.setAttribute(attr.getKey(), attr.getValue());
+			}
+		}
+		if (children != null) {
+			e.addChildren(children);
+		}
+		Packet message = Packet.packetInstance(e);
+		message.initVars(fromJID, toJID);
+		message.setXMLNS(Packet.CLIENT_XMLNS);
+		return message;
 	}
 
 	protected void addMessageToHistory(Room room, final Element message, String body, JID senderJid,
 									   String senderNickname, Date time, String stableId) {
 		try {
-			if (historyProvider != null) {
+			if (historyWriteBehind != null) {
+				historyWriteBehind.addMessage(room, message, body, senderJid, senderNickname, time, stableId);
+			} else if (historyProvider != null) {
 				historyProvider.addMessage(room, message, body, senderJid, senderNickname, time, stableId);
 			}
 		} catch (Exception e) {
@@ -145,13 +145,13 @@ public class MessageModerationModule extends AbstractMucModule {
 			});
 
 			String moderationMsgStableId = UUID.randomUUID().toString();
-			groupchatMessageModule.addMessageToHistory(room, moderationMessage, null, packet.getStanzaFrom(), null,
-													   new Date(), moderationMsgStableId);
-
 			moderationMessage.addChild(new Element("stanza-id", new String[]{"xmlns", "id", "by"},
 												   new String[]{"urn:xmpp:sid:0", moderationMsgStableId,
 																room.getRoomJID().toString()}));
 
+			groupchatMessageModule.addMessageToHistory(room, moderationMessage, null, packet.getStanzaFrom(), null,
+													   new Date(), moderationMsgStableId);
+
 			groupchatMessageModule.sendMessagesToAllOccupants(room, JID.jidInstance(room.getRoomJID()), Packet.packetInstance(moderationMessage));
 
 			write(packet.okResult((Element) null, 0));
@@ -49,6 +49,8 @@ public class ModeratorModule
 	@Inject
 	private Ghostbuster2 ghostbuster;
 	@Inject
+	private PresenceModule presenceModule;
+	@Inject
 	private IMucRepository repository;
 
 	protected static Affiliation getAffiliation(Element item) throws MUCException {
@@ -461,6 +463,10 @@ public class ModeratorModule
 		boolean isUnavailable = false;
 		Set<String> codes = new HashSet<String>();
 		Collection<String> occupantsNicknames = room.getOccupantsNicknames(occupantBareJid);
+		final Map<String, Role> previousRoles = new HashMap<String, Role>();
+		for (String occupantNick : occupantsNicknames) {
+			previousRoles.put(occupantNick, room.getRole(occupantNick));
+		}
 
 		boolean kick = newAffiliation == Affiliation.outcast;
 		kick |= room.getConfig().isRoomMembersOnly() && newAffiliation == Affiliation.none;
@@ -490,23 +496,12 @@ public class ModeratorModule
 			log.fine("Sending new affiliation of " + occupantBareJid + " to occupants " +
 							 room.getOccupantsNicknames(false));
 		}
-		for (String nickname : room.getOccupantsNicknames(false)) {
-			final Collection<JID> occupantJids = room.getOccupantsJidsByNickname(nickname);
-
-			if (log.isLoggable(Level.FINER)) {
-				log.finer("Sending new affiliation of " + occupantBareJid + " to occupant " + nickname + " (" +
-								  occupantJids + ")");
-			}
-
-			for (JID jid : occupantJids) {
-				for (String changedNickname : occupantsNicknames) {
-					final Role currentRole = room.getRole(changedNickname);
-					Packet occupantPresence = makePresence(jid, room.getRoomJID(), room, occupantBareJid, isUnavailable,
-														   newAffiliation, currentRole, changedNickname, reason, null,
-														   codes.toArray(new String[]{}));
-					write(occupantPresence);
-				}
-			}
+		for (String changedNickname : occupantsNicknames) {
+			final boolean wasBroadcast = presenceModule.isPresenceBroadcast(room,
+																			previousAffiliation.getAffiliation(),
+																			previousRoles.get(changedNickname));
+			sendChangedPresence(room, occupantBareJid, changedNickname, isUnavailable, wasBroadcast, newAffiliation,
+								room.getRole(changedNickname), reason, codes.toArray(new String[]{}));
 		}
 	}
 
@@ -514,6 +509,8 @@ public class ModeratorModule
 			throws TigaseStringprepException {
 		final BareJID occupantJid = room.getOccupantsJidByNickname(occupantNick);
 		final Affiliation occupantAffiliation = room.getAffiliation(occupantJid).getAffiliation();
+		final boolean wasBroadcast = presenceModule.isPresenceBroadcast(room, occupantAffiliation,
+																		room.getRole(occupantNick));
 		boolean isUnavailable = false;
 		List<String> codes = new ArrayList<String>();
 
@@ -538,16 +535,39 @@ public class ModeratorModule
 
 		// sending presence to all occupants, if occupant which role was changes is still online
 		if (occupantJid != null) {
-			for (String nickname : room.getOccupantsNicknames(false)) {
-				final Collection<JID> occupantJids = room.getOccupantsJidsByNickname(nickname);
+			sendChangedPresence(room, occupantJid, occupantNick, isUnavailable, wasBroadcast, occupantAffiliation,
+								newRole, reason, codes.toArray(new String[]{}));
+		}
+	}
 
-				for (JID jid : occupantJids) {
-					Packet occupantPresence = makePresence(jid, room.getRoomJID(), room, occupantJid, isUnavailable,
-														   occupantAffiliation, newRole, occupantNick, reason, null,
-														   codes.toArray(new String[]{}));
+	/**
+	 * Sends changed presence of the occupant to occupants of the room. If presence of the occupant is not broadcast,
+	 * it is sent only to the occupant itself, but other occupants which received its presence before the change
+	 * receive unavailable presence, so the occupant is removed from their lists of occupants.
+	 */
+	protected void sendChangedPresence(Room room, BareJID occupantJid, String occupantNick, boolean isUnavailable,
+									   boolean wasBroadcast, Affiliation affiliation, Role role, String reason,
+									   String[] codes) throws TigaseStringprepException {
+		final boolean broadcast = !isUnavailable && presenceModule.isPresenceBroadcast(room, affiliation, role);
+		for (String nickname : room.getOccupantsNicknames(false)) {
+			final boolean self = nickname.equals(occupantNick);
+			if (!self && !broadcast && !wasBroadcast) {
+				continue;
+			}
+			final boolean hidden = !self && !broadcast && !isUnavailable;
+			final Collection<JID> occupantJids = room.getOccupantsJidsByNickname(nickname);
 
-					write(occupantPresence);
-				}
+			if (log.isLoggable(Level.FINER)) {
+				log.finer("Sending changed presence of " + occupantNick + " to occupant " + nickname + " (" +
+								  occupantJids + ")");
+			}
+
+			for (JID jid : occupantJids) {
+				Packet occupantPresence = makePresence(jid, room.getRoomJID(), room, occupantJid,
+													   isUnavailable || hidden, affiliation, hidden ? Role.none : role,
+													   occupantNick, reason, null, codes);
+
+				write(occupantPresence);
 			}
 		}
 	}
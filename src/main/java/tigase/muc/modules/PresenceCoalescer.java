@@ -0,0 +1,235 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import tigase.muc.Room;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces presences broadcast to occupants of large rooms. Joins, leaves and changes of presence of occupants are
+ * queued for a short time window and then only the net state of every changed occupant is delivered to other
+ * occupants. Join and leave of the same occupant within a single window cancel each other.
+ * <br>
+ * Occupants which joined the room within the window are not notified about changes which happened before they joined,
+ * as current presences of all occupants are sent to them on join.
+ */
+class PresenceCoalescer {
+
+	private static final Logger log = Logger.getLogger(PresenceCoalescer.class.getName());
+
+	private final ScheduledExecutorService executor;
+	private final Map<BareJID, PendingChanges> pendingChanges = new ConcurrentHashMap<>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final long window;
+
+	/**
+	 * Delivers presence of an occupant to occupants accepted by the filter of nicknames.
+	 */
+	@FunctionalInterface
+	interface Delivery {
+
+		void deliver(Predicate<String> destinationFilter) throws TigaseStringprepException;
+
+	}
+
+	PresenceCoalescer(long window) {
+		this.window = window;
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "muc-presence-coalescing");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	long getWindow() {
+		return window;
+	}
+
+	/**
+	 * Marks occupant as joining the room. Must be called before presences of other occupants are sent to the joining
+	 * occupant.
+	 */
+	void joining(Room room, String nickname) {
+		final long seq = sequence.incrementAndGet();
+		update(room, nickname, false, change -> change.joined = seq);
+	}
+
+	/**
+	 * Queues delivery of presence of available occupant. Delivery should send current presence of the occupant.
+	 */
+	void changed(Room room, String nickname, Delivery delivery) {
+		final long seq = sequence.incrementAndGet();
+		update(room, nickname, true, change -> {
+			change.delivery = delivery;
+			change.left = false;
+			change.lastChange = seq;
+		});
+	}
+
+	/**
+	 * Queues delivery of unavailable presence of occupant which left the room.
+	 */
+	void left(Room room, String nickname, Delivery delivery) {
+		final long seq = sequence.incrementAndGet();
+		update(room, nickname, true, change -> {
+			change.delivery = delivery;
+			change.left = true;
+			change.lastChange = seq;
+		});
+	}
+
+	/**
+	 * Delivers queued presences of the room without waiting for the end of the window.
+	 */
+	void flush(BareJID roomJID) {
+		PendingChanges pending = pendingChanges.get(roomJID);
+		if (pending != null) {
+			flush(pending);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if window of the room is open and presences of the room are queued
+	 */
+	boolean isCoalescing(BareJID roomJID) {
+		return pendingChanges.containsKey(roomJID);
+	}
+
+	int getPendingRoomsCount() {
+		return pendingChanges.size();
+	}
+
+	void shutdown() {
+		// already scheduled deliveries are executed before executor is terminated
+		executor.shutdown();
+	}
+
+	private void update(Room room, String nickname, boolean presentBefore, Consumer<Change> updater) {
+		while (true) {
+			PendingChanges pending = pendingChanges.get(room.getRoomJID());
+			boolean created = false;
+			if (pending == null) {
+				PendingChanges newPending = new PendingChanges(room);
+				pending = pendingChanges.putIfAbsent(room.getRoomJID(), newPending);
+				if (pending == null) {
+					pending = newPending;
+					created = true;
+				}
+			}
+			synchronized (pending) {
+				if (pending.closed) {
+					// window was closed in the meantime, next one will be opened
+					continue;
+				}
+				updater.accept(pending.changes.computeIfAbsent(nickname, nick -> new Change(presentBefore)));
+			}
+			if (created) {
+				final PendingChanges toFlush = pending;
+				try {
+					executor.schedule(() -> flush(toFlush), window, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException ex) {
+					// coalescing was stopped, presences are delivered immediately
+					flush(toFlush);
+				}
+			}
+			return;
+		}
+	}
+
+	private void flush(PendingChanges pending) {
+		final Map<String, Change> changes;
+		synchronized (pending) {
+			if (pending.closed) {
+				return;
+			}
+			pending.closed = true;
+			pendingChanges.remove(pending.room.getRoomJID(), pending);
+			changes = pending.changes;
+		}
+
+		final List<Map.Entry<String, Change>> toDeliver = new ArrayList<>(changes.entrySet());
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Room {0}. Delivering coalesced presences of {1} occupants",
+					new Object[]{pending.room.getRoomJID(), toDeliver.size()});
+		}
+		for (Map.Entry<String, Change> e : toDeliver) {
+			final String nickname = e.getKey();
+			final Change change = e.getValue();
+			if (change.delivery == null) {
+				continue;
+			}
+			if (change.left && !change.presentBefore) {
+				// occupant joined and left within the window, nobody has to know about it
+				continue;
+			}
+			final long lastChange = change.lastChange;
+			try {
+				change.delivery.deliver(destination -> {
+					if (destination.equals(nickname)) {
+						return false;
+					}
+					Change destinationChange = changes.get(destination);
+					return destinationChange == null || destinationChange.joined < lastChange;
+				});
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "Problem on delivering coalesced presence of " + nickname + " in room " +
+						pending.room.getRoomJID(), ex);
+			}
+		}
+	}
+
+	private static class Change {
+
+		private final boolean presentBefore;
+		private Delivery delivery;
+		private long joined = -1;
+		private long lastChange;
+		private boolean left;
+
+		private Change(boolean presentBefore) {
+			this.presentBefore = presentBefore;
+		}
+	}
+
+	private static class PendingChanges {
+
+		private final Map<String, Change> changes = new HashMap<>();
+		private final Room room;
+		private boolean closed = false;
+
+		private PendingChanges(Room room) {
+			this.room = room;
+		}
+	}
+}
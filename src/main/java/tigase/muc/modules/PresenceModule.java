@@ -40,6 +40,14 @@ public interface PresenceModule
 
 	void doQuit(final Room room, final JID senderJID, final Integer... selfStatusCodes) throws TigaseStringprepException;
 
+	/**
+	 * Checks if presence of occupant with passed affiliation and role should be sent to other occupants and included
+	 * in the list of occupants sent to the joining occupant.
+	 *
+	 * @return <code>true</code> if presence should be sent to other occupants
+	 */
+	boolean isPresenceBroadcast(Room room, Affiliation affiliation, Role role);
+
 	void sendPresencesToNewOccupant(Room room, JID senderJID) throws TigaseStringprepException;
 
 	class PresenceWrapper {
@@ -56,19 +64,56 @@ public interface PresenceModule
 			final Affiliation destinationAffiliation = room.getAffiliation(destinationJID.getBareJID())
 					.getAffiliation();
 
+			final ArrayList<Element> items = new ArrayList<Element>();
+			final Element x = renderPresence(room, presence, occupantJIDs, occupantNickname, occupantAffiliation,
+											 occupantRole, isJidVisible(whois, destinationAffiliation), items);
+			presence.setAttribute("to", destinationJID.toString());
+
+			Packet packet = Packet.packetInstance(presence);
+			packet.setXMLNS(Packet.CLIENT_XMLNS);
+			PresenceWrapper wrapper = new PresenceWrapper(packet, x, items.toArray(new Element[]{}));
+
+			if (occupantBareJID != null && occupantBareJID.equals(destinationJID.getBareJID())) {
+				wrapper.packet.setPriority(Priority.HIGH);
+				wrapper.addStatusCode(StatusCodes.SELF_PRESENCE);
+				if (whois == RoomConfig.WhoisPrivilege.anyone) {
+					wrapper.addStatusCode(StatusCodes.OCCUPANT_IS_ALLOWED_TO_SEE_JID);
+				}
+				if (room.getConfig().isLoggingEnabled()) {
+					wrapper.addStatusCode(StatusCodes.ROOM_LOGGING_IS_ENABLED);
+				}
+			}
+
+			return wrapper;
+		}
+
+		/**
+		 * @return <code>true</code> if occupant with <code>affiliation</code> is allowed to see JIDs of other
+		 * occupants
+		 */
+		public static boolean isJidVisible(RoomConfig.WhoisPrivilege whois, Affiliation affiliation) {
+			return (whois == RoomConfig.WhoisPrivilege.anyone) ||
+					((whois == RoomConfig.WhoisPrivilege.moderators) && affiliation.isViewOccupantsJid());
+		}
+
+		/**
+		 * Sets <code>from</code> attribute of the presence and adds <code>muc#user</code> element with items of the
+		 * occupant. Added items are put into <code>items</code> collection.
+		 *
+		 * @return added <code>muc#user</code> element
+		 */
+		static Element renderPresence(Room room, final Element presence, Collection<JID> occupantJIDs,
+									  String occupantNickname, Affiliation occupantAffiliation, Role occupantRole,
+									  boolean jidVisible, Collection<Element> items) {
 			try {
 				presence.setAttribute("from", JID.jidInstance(room.getRoomJID(), occupantNickname).toString());
 			} catch (TigaseStringprepException e) {
 				presence.setAttribute("from", room.getRoomJID() + "/" + occupantNickname);
 			}
-			presence.setAttribute("to", destinationJID.toString());
 
 			Element x = new Element("x", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/muc#user"});
 
-			final ArrayList<Element> items = new ArrayList<Element>();
-
-			if ((whois == RoomConfig.WhoisPrivilege.anyone) ||
-					((whois == RoomConfig.WhoisPrivilege.moderators) && destinationAffiliation.isViewOccupantsJid())) {
+			if (jidVisible) {
 				for (JID jid : occupantJIDs) {
 					Element item = new Element("item", new String[]{"affiliation", "role", "nick", "jid"},
 											   new String[]{occupantAffiliation.name(), occupantRole.name(),
@@ -85,23 +130,7 @@ public interface PresenceModule
 			}
 
 			presence.addChild(x);
-
-			Packet packet = Packet.packetInstance(presence);
-			packet.setXMLNS(Packet.CLIENT_XMLNS);
-			PresenceWrapper wrapper = new PresenceWrapper(packet, x, items.toArray(new Element[]{}));
-
-			if (occupantBareJID != null && occupantBareJID.equals(destinationJID.getBareJID())) {
-				wrapper.packet.setPriority(Priority.HIGH);
-				wrapper.addStatusCode(StatusCodes.SELF_PRESENCE);
-				if (whois == RoomConfig.WhoisPrivilege.anyone) {
-					wrapper.addStatusCode(StatusCodes.OCCUPANT_IS_ALLOWED_TO_SEE_JID);
-				}
-				if (room.getConfig().isLoggingEnabled()) {
-					wrapper.addStatusCode(StatusCodes.ROOM_LOGGING_IS_ENABLED);
-				}
-			}
-
-			return wrapper;
+			return x;
 		}
 
 		static PresenceWrapper preparePresenceW(Room room, JID destinationJID, final Element presence,
@@ -0,0 +1,69 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.muc.Affiliation;
+import tigase.muc.Role;
+import tigase.muc.Room;
+
+import java.util.Arrays;
+
+/**
+ * Class for MucPresenceModule suitable for very large rooms. Presences of only those occupants which have one of
+ * configured roles or affiliations (by default moderators, owners and admins) are sent to other occupants and included
+ * in the list of occupants sent to the joining occupant. Presences of other occupants are sent only back to them, so
+ * cost of joining the room does not depend on number of its occupants.
+ * <br>
+ * List of all occupants is available on demand with disco#items request sent to the room.
+ */
+@Bean(name = PresenceModuleHybrid.ID, active = true)
+public class PresenceModuleHybrid
+		extends PresenceModuleImpl {
+
+	@ConfigField(desc = "Affiliations of occupants which presences are broadcast", alias = "broadcast-affiliations")
+	private Affiliation[] broadcastAffiliations = new Affiliation[]{Affiliation.owner, Affiliation.admin};
+	@ConfigField(desc = "Roles of occupants which presences are broadcast", alias = "broadcast-roles")
+	private Role[] broadcastRoles = new Role[]{Role.moderator};
+
+	public Affiliation[] getBroadcastAffiliations() {
+		return broadcastAffiliations;
+	}
+
+	public void setBroadcastAffiliations(Affiliation[] broadcastAffiliations) {
+		this.broadcastAffiliations = broadcastAffiliations;
+	}
+
+	public Role[] getBroadcastRoles() {
+		return broadcastRoles;
+	}
+
+	public void setBroadcastRoles(Role[] broadcastRoles) {
+		this.broadcastRoles = broadcastRoles;
+	}
+
+	@Override
+	public boolean isPresenceBroadcast(Room room, Affiliation affiliation, Role role) {
+		final Affiliation[] affiliations = broadcastAffiliations;
+		final Role[] roles = broadcastRoles;
+		return (affiliations != null && Arrays.asList(affiliations).contains(affiliation)) ||
+				(roles != null && Arrays.asList(roles).contains(role));
+	}
+
+}
@@ -25,6 +25,7 @@ import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.muc.*;
 import tigase.muc.PermissionChecker.ROOM_VISIBILITY_PERMISSION;
 import tigase.muc.exceptions.MUCException;
@@ -43,6 +44,7 @@ import tigase.xmpp.jid.JID;
 
 import java.text.ParseException;
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -68,6 +70,11 @@ public class PresenceModuleImpl
 	private MucLogger mucLogger;
 	@Inject
 	private PermissionChecker permissionChecker;
+	private volatile PresenceCoalescer presenceCoalescer;
+	@ConfigField(desc = "Minimal number of occupants of a room in which presences are coalesced", alias = "presence-coalescing-min-occupants")
+	private int presenceCoalescingMinOccupants = 500;
+	@ConfigField(desc = "Time window (in ms) of coalescing presences broadcast in large rooms (0 - disabled)", alias = "presence-coalescing-window")
+	private long presenceCoalescingWindow = 0;
 	@Inject
 	private IMucRepository repository;
 
@@ -95,18 +102,20 @@ public class PresenceModuleImpl
 	public void sendPresencesToNewOccupant(Room room, JID senderJID) throws TigaseStringprepException {
 		BareJID currentOccupantJid = senderJID.getBareJID();
 		Affiliation senderAffiliation = room.getAffiliation(currentOccupantJid).getAffiliation();
+		final RoomConfig.Snapshot config = room.getConfig().getSnapshot();
 
 		// in filtered room we skip sending occupants list to new occupants
 		// witout propper affiliation
-		if (room.getConfig().isPresenceFilterEnabled() &&
-				!room.getConfig().getPresenceFilteredAffiliations().contains(senderAffiliation)) {
+		if (!config.isPresenceDelivered(senderAffiliation)) {
 			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "Filtering enabled: " + room.getConfig().isPresenceFilterEnabled() +
+				log.log(Level.FINEST, "Filtering enabled: " + config.isPresenceFilterEnabled() +
 						"; new occupant doesn't have propper affiliation -  skip sending occupants list");
 			}
 			return;
 		}
 
+		final boolean jidVisible = PresenceWrapper.isJidVisible(config.getWhois(), senderAffiliation);
+
 		for (String occupantNickname : room.getOccupantsNicknames(true)) {
 			final BareJID occupantJid = room.getOccupantsJidByNickname(occupantNickname);
 
@@ -121,42 +130,92 @@ public class PresenceModuleImpl
 			}
 
 			Affiliation affiliation = room.getAffiliation(occupantJid).getAffiliation();
-			if (room.getConfig().isPresenceFilterEnabled() &&
-					!room.getConfig().getPresenceFilteredAffiliations().contains(affiliation)) {
+			if (!config.isPresenceDelivered(affiliation)) {
 				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "Filtering enabled: " + room.getConfig().isPresenceFilterEnabled() +
+					log.log(Level.FINEST, "Filtering enabled: " + config.isPresenceFilterEnabled() +
 							"; target occupant doesn't have propper affiliation -  don't include him in the list");
 				}
 				continue;
 			}
+			if (!isPresenceBroadcast(room, affiliation, room.getRole(occupantNickname))) {
+				continue;
+			}
 
-			Element op = room.getLastPresenceCopyByJid(occupantJid);
-
-			if (op == null) {
+			final RenderedPresence presence = getRenderedPresence(room, occupantNickname, occupantJid);
+			if (presence == null) {
 				continue;
 			}
 
-			final Collection<JID> occupantJIDs = room.getOccupantsJidsByNickname(occupantNickname);
-			final BareJID occupantBareJID = room.getOccupantsJidByNickname(occupantNickname);
-			final Affiliation occupantAffiliation = room.getAffiliation(occupantBareJID).getAffiliation();
-			final Role occupantRole = room.getRole(occupantNickname);
+			for (Packet packet : presence.createPackets(senderJID, jidVisible)) {
+				write(packet);
+			}
+		}
+	}
 
-			if (config.isMultiItemMode()) {
-				PresenceWrapper l = PresenceWrapper.preparePresenceW(room, senderJID, op.clone(), occupantBareJID,
-																	 occupantJIDs, occupantNickname,
-																	 occupantAffiliation, occupantRole);
-				write(l.packet);
-			} else {
-				for (JID jid : occupantJIDs) {
-					Collection<JID> z = new ArrayList<>(1);
-					z.add(jid);
-					PresenceWrapper l = PresenceWrapper.preparePresenceW(room, senderJID, op.clone(), occupantBareJID,
-																		 z, occupantNickname, occupantAffiliation,
-																		 occupantRole);
-					write(l.packet);
-				}
+	/**
+	 * Returns presence of occupant rendered for delivery to other occupants. Rendered presence is cached in the room
+	 * until presence, role or affiliation of the occupant is changed.
+	 */
+	protected RenderedPresence getRenderedPresence(Room room, String occupantNickname, BareJID occupantJid) {
+		RenderedPresence rendered = room.getRenderedPresence(occupantNickname);
+		if (rendered != null) {
+			return rendered;
+		}
+
+		final Object token = room.startRenderingPresence(occupantNickname);
+		final Element op = room.getLastPresenceCopyByJid(occupantJid);
+		if (op == null) {
+			return null;
+		}
+
+		final Collection<JID> occupantJIDs = room.getOccupantsJidsByNickname(occupantNickname);
+		final Affiliation occupantAffiliation = room.getAffiliation(occupantJid).getAffiliation();
+		final Role occupantRole = room.getRole(occupantNickname);
+
+		rendered = renderPresence(room, op, occupantJIDs, occupantNickname, occupantAffiliation, occupantRole);
+		room.putRenderedPresence(occupantNickname, token, rendered);
+		return rendered;
+	}
+
+	private RenderedPresence renderPresence(Room room, Element op, Collection<JID> occupantJIDs,
+											String occupantNickname, Affiliation occupantAffiliation,
+											Role occupantRole) {
+		final RoomConfig.WhoisPrivilege whois = room.getConfig().getWhois();
+		final List<Element> anonymous = renderPresences(room, op, occupantJIDs, occupantNickname, occupantAffiliation,
+														occupantRole, false);
+		final List<Element> withJids = whois == RoomConfig.WhoisPrivilege.none
+									   ? anonymous
+									   : renderPresences(room, op, occupantJIDs, occupantNickname,
+														 occupantAffiliation, occupantRole, true);
+
+		return new RenderedPresence(JID.jidInstanceNS(room.getRoomJID(), occupantNickname), anonymous, withJids);
+	}
+
+	private List<Element> renderPresences(Room room, Element op, Collection<JID> occupantJIDs, String occupantNickname,
+										  Affiliation occupantAffiliation, Role occupantRole, boolean jidVisible) {
+		final List<Element> result = new ArrayList<>();
+		if (config.isMultiItemMode()) {
+			Element presence = op.clone();
+			PresenceWrapper.renderPresence(room, presence, occupantJIDs, occupantNickname, occupantAffiliation,
+										   occupantRole, jidVisible, new ArrayList<>(1));
+			result.add(presence);
+		} else if (jidVisible) {
+			for (JID jid : occupantJIDs) {
+				Element presence = op.clone();
+				PresenceWrapper.renderPresence(room, presence, Collections.singletonList(jid), occupantNickname,
+											   occupantAffiliation, occupantRole, true, new ArrayList<>(1));
+				result.add(presence);
+			}
+		} else {
+			// the same presence is sent for every resource of the occupant
+			Element presence = op.clone();
+			PresenceWrapper.renderPresence(room, presence, occupantJIDs, occupantNickname, occupantAffiliation,
+										   occupantRole, false, new ArrayList<>(1));
+			for (int i = 0; i < occupantJIDs.size(); i++) {
+				result.add(presence);
 			}
 		}
+		return result;
 	}
 
 	@Override
@@ -218,22 +277,19 @@ public class PresenceModuleImpl
 		// TODO if highest priority is gone, then send current highest priority
 		// to occupants
 		if (nicknameGone) {
-			for (String occupantNickname : room.getOccupantsNicknames(false)) {
-				for (JID occupantJid : room.getOccupantsJidsByNickname(occupantNickname)) {
-
-					presenceElement = room.getLastPresenceCopy(senderJID.getBareJID(), leavingNickname);
-					if (presenceElement == null) {
-						presenceElement = new Element("presence", new String[]{"type"}, new String[]{"unavailable"});
-					}
-
-					PresenceWrapper presence = PresenceWrapper.preparePresenceW(room, occupantJid, presenceElement,
-																				senderJID.getBareJID(), occupantJIDs,
-																				leavingNickname,
-																				leavingAffiliation.getAffiliation(),
-																				room.getRole(leavingNickname));
-
-					write(presence.packet);
+			final PresenceCoalescer coalescer = getPresenceCoalescer(room);
+			if (!isPresenceBroadcast(room, leavingAffiliation.getAffiliation(), leavingRole)) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.finest("Presence of " + leavingNickname + " is not broadcast in room " + room.getRoomJID());
 				}
+			} else if (coalescer != null) {
+				final Collection<JID> leavingJIDs = occupantJIDs;
+				coalescer.left(room, leavingNickname,
+							   destinationFilter -> sendUnavailablePresence(room, senderJID, leavingNickname,
+																			leavingJIDs, leavingAffiliation,
+																			destinationFilter));
+			} else {
+				sendUnavailablePresence(room, senderJID, leavingNickname, occupantJIDs, leavingAffiliation, null);
 			}
 			if (room.getConfig().isLoggingEnabled()) {
 				addLeaveToHistory(room, new Date(), senderJID, leavingNickname);
@@ -246,7 +302,13 @@ public class PresenceModuleImpl
 			if (pe == null) {
 				pe = new Element("presence", new String[]{"type"}, new String[]{"unavailable"});
 			}
-			for (String occupantNickname : room.getOccupantsNicknames(false)) {
+			final boolean broadcast = isPresenceBroadcast(room, leavingAffiliation.getAffiliation(), role);
+			final PresenceCoalescer coalescer = broadcast ? getPresenceCoalescer(room) : null;
+			// if presences are coalesced, other occupants will receive net state later
+			final Collection<String> destinationNicknames = broadcast && coalescer == null
+															? room.getOccupantsNicknames(false)
+															: Collections.singleton(leavingNickname);
+			for (String occupantNickname : destinationNicknames) {
 				for (JID occupantJid : room.getOccupantsJidsByNickname(occupantNickname)) {
 					if (config.isMultiItemMode()) {
 						PresenceWrapper presence = PresenceWrapper.preparePresenceW(room, occupantJid, pe.clone(),
@@ -269,6 +331,11 @@ public class PresenceModuleImpl
 					}
 				}
 			}
+			if (coalescer != null) {
+				coalescer.changed(room, leavingNickname,
+								  destinationFilter -> sendCurrentPresence(room, leavingNickname, senderJID,
+																		   destinationFilter));
+			}
 		}
 
 		if (!leavingAffiliation.isPersistentOccupant()) {
@@ -411,6 +478,10 @@ public class PresenceModuleImpl
 	@Override
 	public void beforeUnregister() {
 		eventBus.unregisterAll(this);
+		PresenceCoalescer coalescer = presenceCoalescer;
+		if (coalescer != null) {
+			coalescer.shutdown();
+		}
 	}
 
 	@HandleEvent()
@@ -461,6 +532,11 @@ public class PresenceModuleImpl
 		return presence;
 	}
 
+	@Override
+	public boolean isPresenceBroadcast(Room room, Affiliation affiliation, Role role) {
+		return true;
+	}
+
 	protected PresenceWrapper preparePresence(JID destinationJID, final Element presence, Room room, JID occupantJID,
 											  boolean newRoomCreated) throws TigaseStringprepException {
 		final PresenceWrapper wrapper = PresenceWrapper.preparePresenceW(room, destinationJID, presence, occupantJID);
@@ -475,10 +551,9 @@ public class PresenceModuleImpl
 		}
 
 		// we only update presence if the room is not filtered or user is on the list of desired affiliations
-		if (!room.getConfig().isPresenceFilterEnabled() || (room.getConfig().isPresenceFilterEnabled() &&
-				!room.getConfig().getPresenceFilteredAffiliations().isEmpty() && room.getConfig()
-				.getPresenceFilteredAffiliations()
-				.contains(room.getAffiliation(senderJID.getBareJID()).getAffiliation()))) {
+		if (room.getConfig()
+				.getSnapshot()
+				.isPresenceDelivered(room.getAffiliation(senderJID.getBareJID()).getAffiliation())) {
 			room.updatePresenceByJid(null, nickname, clonePresence(presenceElement));
 		}
 
@@ -623,6 +698,11 @@ public class PresenceModuleImpl
 			}
 		}
 
+		final PresenceCoalescer coalescer = getPresenceCoalescer(room);
+		if (coalescer != null && currentOccupantJid == null) {
+			coalescer.joining(room, nickname);
+		}
+
 		// TODO Service Informs User that Room Occupant Limit Has Been Reached
 		// Service Sends Presence from Existing Occupants to New Occupant
 		sendPresencesToNewOccupant(room, senderJID);
@@ -713,7 +793,33 @@ public class PresenceModuleImpl
 
 	protected void sendPresenceToAllOccupants(final Element $presence, Room room, JID senderJID, boolean newRoomCreated,
 											  final String newNickName) throws TigaseStringprepException {
+		final String senderNickname = room.getOccupantsNickname(senderJID);
+		if (senderNickname != null &&
+				!isPresenceBroadcast(room, room.getAffiliation(senderNickname).getAffiliation(),
+									 room.getRole(senderNickname))) {
+			// presence is sent only back to the occupant
+			broadcastPresence($presence, room, senderJID, newRoomCreated, senderNickname::equals);
+			return;
+		}
 
+		final PresenceCoalescer coalescer = newRoomCreated ? null : getPresenceCoalescer(room);
+		final String nickname = coalescer == null ? null : senderNickname;
+		if (nickname != null) {
+			// presence is sent back to the occupant immediately, other occupants will receive net state later
+			broadcastPresence($presence, room, senderJID, false, nickname::equals);
+			coalescer.changed(room, nickname,
+							  destinationFilter -> sendCurrentPresence(room, nickname, senderJID, destinationFilter));
+			return;
+		}
+		broadcastPresence($presence, room, senderJID, newRoomCreated, null);
+	}
+
+	/**
+	 * Sends presence of the occupant to occupants with nicknames accepted by <code>destinationFilter</code> (all
+	 * occupants, if filter is <code>null</code>).
+	 */
+	private void broadcastPresence(final Element $presence, Room room, JID senderJID, boolean newRoomCreated,
+								   Predicate<String> destinationFilter) throws TigaseStringprepException {
 		final String occupantNickname = room.getOccupantsNickname(senderJID);
 		final BareJID occupantJID = Optional.ofNullable(room.getOccupantsJidByNickname(occupantNickname))
 				.orElse(senderJID.getBareJID());
@@ -741,18 +847,44 @@ public class PresenceModuleImpl
 					Arrays.asList(occupantsNicknames));
 		}
 
+		final boolean multiItemMode = config.isMultiItemMode();
+		// resources of the occupant and presences rendered for them are the same for all destinations
+		final Collection<JID> occupantJIDs = multiItemMode
+											 ? Collections.emptyList()
+											 : room.getOccupantsJidsByNickname(occupantNickname);
+		if (!multiItemMode && occupantJIDs.isEmpty()) {
+			// there is no resource of the occupant to include in the presence
+			return;
+		}
+		final RoomConfig.WhoisPrivilege whois = room.getConfig().getWhois();
+		RenderedPresence rendered = null;
+
 		for (String destinationNickname : occupantsNicknames) {
+			if (destinationFilter != null && !destinationFilter.test(destinationNickname)) {
+				continue;
+			}
 			for (JID destinationJID : room.getOccupantsJidsByNickname(destinationNickname)) {
 
-				if (config.isMultiItemMode()) {
+				if (multiItemMode) {
 					PresenceWrapper presence = preparePresence(destinationJID, $presence.clone(), room, senderJID,
 															   newRoomCreated);
 					if (newRoomCreated) {
 						presence.addStatusCode(StatusCodes.NEW_ROOM);
 					}
 					write(presence.packet);
+				} else if (!newRoomCreated && !occupantJID.equals(destinationJID.getBareJID())) {
+					if (rendered == null) {
+						rendered = renderPresence(room, $presence, occupantJIDs, occupantNickname,
+												  occupantAffiliation, occupantRole);
+					}
+					final boolean jidVisible = PresenceWrapper.isJidVisible(whois, room.getAffiliation(
+							destinationJID.getBareJID()).getAffiliation());
+					for (Packet packet : rendered.createPackets(destinationJID, jidVisible)) {
+						write(packet);
+					}
 				} else {
-					for (JID jid : room.getOccupantsJidsByNickname(occupantNickname)) {
+					// presence sent back to the occupant contains additional status codes
+					for (JID jid : occupantJIDs) {
 						Collection<JID> z = new ArrayList<JID>(1);
 						z.add(jid);
 						PresenceWrapper l = PresenceWrapper.preparePresenceW(room, destinationJID, $presence.clone(),
@@ -788,6 +920,78 @@ public class PresenceModuleImpl
 		return presence;
 	}
 
+	/**
+	 * Sends current presence of the occupant, used when coalesced presences are delivered.
+	 */
+	private void sendCurrentPresence(Room room, String nickname, JID senderJID, Predicate<String> destinationFilter)
+			throws TigaseStringprepException {
+		final JID occupantJID = room.getOccupantsJidsByNickname(nickname).stream().findFirst().orElse(senderJID);
+		final Element presence;
+		if (room.getOccupantsNickname(occupantJID) == null) {
+			presence = new Element("presence");
+			presence.setAttribute("type", "unavailable");
+		} else {
+			presence = room.getLastPresenceCopyByJid(occupantJID.getBareJID());
+		}
+		if (presence != null) {
+			broadcastPresence(presence, room, occupantJID, false, destinationFilter);
+		}
+	}
+
+	private void sendUnavailablePresence(Room room, JID senderJID, String leavingNickname,
+										 Collection<JID> occupantJIDs, RoomAffiliation leavingAffiliation,
+										 Predicate<String> destinationFilter) throws TigaseStringprepException {
+		for (String occupantNickname : room.getOccupantsNicknames(false)) {
+			if (destinationFilter != null && !destinationFilter.test(occupantNickname)) {
+				continue;
+			}
+			for (JID occupantJid : room.getOccupantsJidsByNickname(occupantNickname)) {
+
+				Element presenceElement = room.getLastPresenceCopy(senderJID.getBareJID(), leavingNickname);
+				if (presenceElement == null) {
+					presenceElement = new Element("presence", new String[]{"type"}, new String[]{"unavailable"});
+				}
+
+				PresenceWrapper presence = PresenceWrapper.preparePresenceW(room, occupantJid, presenceElement,
+																			senderJID.getBareJID(), occupantJIDs,
+																			leavingNickname,
+																			leavingAffiliation.getAffiliation(),
+																			room.getRole(leavingNickname));
+
+				write(presence.packet);
+			}
+		}
+	}
+
+	/**
+	 * @return coalescer of presences if presences of the room should be coalesced or <code>null</code>. Once window
+	 * of the room is open, all presences of the room are coalesced until it is flushed, even if number of occupants
+	 * dropped below the threshold, so they are not delivered before presences queued earlier.
+	 */
+	private PresenceCoalescer getPresenceCoalescer(Room room) {
+		PresenceCoalescer coalescer = presenceCoalescer;
+		if (coalescer != null && coalescer.isCoalescing(room.getRoomJID())) {
+			return coalescer;
+		}
+		final long window = presenceCoalescingWindow;
+		if (window <= 0 || room.getOccupantsCount() < presenceCoalescingMinOccupants) {
+			return null;
+		}
+		if (coalescer == null || coalescer.getWindow() != window) {
+			synchronized (this) {
+				coalescer = presenceCoalescer;
+				if (coalescer == null || coalescer.getWindow() != window) {
+					if (coalescer != null) {
+						coalescer.shutdown();
+					}
+					coalescer = new PresenceCoalescer(window);
+					presenceCoalescer = coalescer;
+				}
+			}
+		}
+		return coalescer;
+	}
+
 	private void sendUnavailableResponseForGroupchat10(Packet packet) throws TigaseStringprepException {
 		Element presence = new Element("presence");
 		presence.setAttribute("to", packet.getStanzaFrom().toString());
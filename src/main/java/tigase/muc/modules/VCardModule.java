@@ -26,11 +26,13 @@ import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.muc.Affiliation;
 import tigase.muc.Room;
 import tigase.muc.StatusCodes;
 import tigase.muc.exceptions.MUCException;
 import tigase.muc.repository.IMucRepository;
+import tigase.muc.repository.RoomAvatar;
 import tigase.server.Packet;
 import tigase.util.Algorithms;
 import tigase.util.Base64;
@@ -42,6 +44,10 @@ import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 import java.util.logging.Level;
 
 @Bean(name = VCardModule.ID, active = true)
@@ -71,7 +77,18 @@ public class VCardModule
 			}
 		}
 	};
-	private final static String SEPARATOR = ";";
+	/**
+	 * Ready to send vCards of recently requested rooms, valid only as long as avatar hash of the room matches.
+	 */
+	private final Map<BareJID, CachedVCard> vCardCache = Collections.synchronizedMap(
+			new LinkedHashMap<BareJID, CachedVCard>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<BareJID, CachedVCard> eldest) {
+					return size() > vCardCacheSize;
+				}
+			});
+	@ConfigField(desc = "Maximal number of rooms with cached vCard (0 - disabled)", alias = "vcard-cache-size")
+	private int vCardCacheSize = 1000;
 	@Inject(nullAllowed = false)
 	private GroupchatMessageModule messageModule;
 	@Inject
@@ -89,7 +106,7 @@ public class VCardModule
 		}
 	}
 
-	private static Photo getPhoto(Packet packet) {
+	private static RoomAvatar getPhoto(Packet packet) {
 		Element vcard = packet.getElement().getChild(NAME, XMLNS);
 		if (vcard == null) {
 			return null;
@@ -102,7 +119,7 @@ public class VCardModule
 		Element type = photo.getChild("TYPE");
 		Element binval = photo.getChild("BINVAL");
 
-		return new Photo(type.getCData(), Base64.decode(binval.getCData()));
+		return new RoomAvatar(type.getCData(), Base64.decode(binval.getCData()));
 	}
 
 	@Override
@@ -155,6 +172,7 @@ public class VCardModule
 	public void onAvatarChanged(final VCardChangedEvent event) {
 		final Room room;
 		try {
+			vCardCache.remove(event.getRoomJID());
 			room = repository.getRoom(event.getRoomJID());
 			if (room != null) {
 				room.setAvatarHash(event.getHash());
@@ -171,16 +189,29 @@ public class VCardModule
 			throw new MUCException(Authorization.ITEM_NOT_FOUND);
 		}
 
+		final String hash = room.getAvatarHash();
+		final CachedVCard cached = vCardCacheSize > 0 ? vCardCache.get(roomJID) : null;
+		final Element vCard;
+		if (cached != null && Objects.equals(cached.hash, hash)) {
+			vCard = cached.vCard;
+		} else {
+			vCard = createVCard(repository.getRoomAvatarData(room));
+			if (vCardCacheSize > 0) {
+				vCardCache.put(roomJID, new CachedVCard(hash, vCard));
+			}
+		}
+		write(packet.okResult(vCard.clone(), 0));
+	}
+
+	private Element createVCard(RoomAvatar avatar) {
 		final Element vCard = new Element(NAME, new String[]{"xmlns"}, new String[]{XMLNS});
-		String encodedAvatar = repository.getRoomAvatar(room);
-		if (encodedAvatar != null && encodedAvatar.length() > 0) {
-			String[] items = encodedAvatar.split(SEPARATOR);
+		if (avatar != null) {
 			Element photo = new Element("PHOTO");
-			photo.addChild(new Element("TYPE", items[0]));
-			photo.addChild(new Element("BINVAL", items[1]));
+			photo.addChild(new Element("TYPE", avatar.getType()));
+			photo.addChild(new Element("BINVAL", Base64.encode(avatar.getData())));
 			vCard.addChild(photo);
 		}
-		write(packet.okResult(vCard, 0));
+		return vCard;
 	}
 
 	private void processSet(final Packet packet) throws MUCException, RepositoryException {
@@ -201,16 +232,18 @@ public class VCardModule
 			throw new MUCException(Authorization.NOT_ALLOWED);
 		}
 
-		Photo photo = getPhoto(packet);
+		RoomAvatar photo = getPhoto(packet);
 
 		if (photo != null) {
-			String hash = calculatePhotoHash(photo.photo);
-			repository.updateRoomAvatar(room, photo.type + SEPARATOR + Base64.encode(photo.photo), hash);
+			String hash = calculatePhotoHash(photo.getData());
+			repository.updateRoomAvatarData(room, photo, hash);
 			room.setAvatarHash(hash);
+			vCardCache.remove(roomJID);
 			eventBus.fire(new VCardChangedEvent(room.getRoomJID(), hash));
 		} else {
-			repository.updateRoomAvatar(room, null, null);
+			repository.updateRoomAvatarData(room, null, null);
 			room.setAvatarHash(null);
+			vCardCache.remove(roomJID);
 			eventBus.fire(new VCardChangedEvent(room.getRoomJID(), null));
 		}
 		write(packet.okResult((Element) null, 0));
@@ -230,14 +263,14 @@ public class VCardModule
 		}
 	}
 
-	private static class Photo {
+	private static class CachedVCard {
 
-		private final byte[] photo;
-		private final String type;
+		private final String hash;
+		private final Element vCard;
 
-		public Photo(String type, byte[] photo) {
-			this.type = type;
-			this.photo = photo;
+		private CachedVCard(String hash, Element vCard) {
+			this.hash = hash;
+			this.vCard = vCard;
 		}
 	}
 
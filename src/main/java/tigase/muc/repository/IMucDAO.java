@@ -28,6 +28,7 @@ import tigase.xmpp.jid.BareJID;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * Created by andrzej on 14.10.2016.
@@ -43,16 +44,82 @@ public interface IMucDAO<DS extends DataSource, ID>
 
 	RoomWithId<ID> getRoom(BareJID roomJID) throws RepositoryException;
 
+	/**
+	 * Loads room together with its affiliations. Implementations should retrieve both in a single request to the
+	 * database.
+	 */
+	default RoomWithId<ID> getRoomWithAffiliations(BareJID roomJID) throws RepositoryException {
+		RoomWithId<ID> room = getRoom(roomJID);
+		if (room != null) {
+			room.setAffiliations(getAffiliations(room));
+		}
+		return room;
+	}
+
 	List<BareJID> getRoomsJIDList() throws RepositoryException;
 
+	/**
+	 * Returns names and visibility of all stored rooms. By default only JIDs of rooms are returned.
+	 */
+	default List<RoomDirectoryEntry> getRoomsDirectory() throws RepositoryException {
+		List<BareJID> jids = getRoomsJIDList();
+		if (jids == null) {
+			return null;
+		}
+		return jids.stream().map(jid -> new RoomDirectoryEntry(jid, null, null)).collect(Collectors.toList());
+	}
+
+	/**
+	 * Passes directory of all stored rooms to the consumer in pages of at most <code>pageSize</code> entries, so
+	 * implementations do not need to keep whole list of rooms in memory. By default pages of the list returned by
+	 * {@link #getRoomsDirectory()} are passed.
+	 */
+	default void getRoomsDirectory(int pageSize, RoomsDirectoryPageConsumer consumer) throws RepositoryException {
+		List<RoomDirectoryEntry> entries = getRoomsDirectory();
+		if (entries == null) {
+			return;
+		}
+		for (int i = 0; i < entries.size(); i += pageSize) {
+			if (!consumer.accept(entries.subList(i, Math.min(i + pageSize, entries.size())))) {
+				return;
+			}
+		}
+	}
+
 	void setAffiliation(RoomWithId<ID> room, BareJID jid, RoomAffiliation affiliation) throws RepositoryException;
 
 	String getRoomAvatar(RoomWithId<ID> room) throws RepositoryException;
 
 	void updateRoomAvatar(RoomWithId<ID> room, String encodedAvatar, String hash) throws RepositoryException;
 
+	/**
+	 * Returns avatar of the room in binary form. Implementations storing avatars in binary form should override this
+	 * method, so the avatar is not encoded and decoded again.
+	 */
+	default RoomAvatar getRoomAvatarData(RoomWithId<ID> room) throws RepositoryException {
+		return RoomAvatar.decode(getRoomAvatar(room));
+	}
+
+	/**
+	 * Stores avatar of the room in binary form or removes it if <code>avatar</code> is <code>null</code>.
+	 */
+	default void updateRoomAvatarData(RoomWithId<ID> room, RoomAvatar avatar, String hash)
+			throws RepositoryException {
+		updateRoomAvatar(room, avatar == null ? null : avatar.encode(), hash);
+	}
+
 	void setSubject(RoomWithId<ID> room, String subject, String creatorNickname, Date changeDate)
 			throws RepositoryException;
 
 	void updateRoomConfig(RoomConfig roomConfig) throws RepositoryException;
+
+	@FunctionalInterface
+	interface RoomsDirectoryPageConsumer {
+
+		/**
+		 * @return <code>false</code> if no more pages should be read
+		 */
+		boolean accept(List<RoomDirectoryEntry> page);
+
+	}
 }
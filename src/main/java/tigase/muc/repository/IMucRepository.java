@@ -26,6 +26,8 @@ import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 
 /**
  * @author bmalkow
@@ -38,6 +40,14 @@ public interface IMucRepository {
 
 	void updateRoomAvatar(Room room, String encodedAvatar, String hash) throws RepositoryException;
 
+	default RoomAvatar getRoomAvatarData(Room room) throws RepositoryException {
+		return RoomAvatar.decode(getRoomAvatar(room));
+	}
+
+	default void updateRoomAvatarData(Room room, RoomAvatar avatar, String hash) throws RepositoryException {
+		updateRoomAvatar(room, avatar == null ? null : avatar.encode(), hash);
+	}
+
 	Room createNewRoom(BareJID roomJID, JID senderJid) throws RepositoryException;
 
 	void destroyRoom(Room room, Element destroyElement) throws RepositoryException;
@@ -51,6 +61,14 @@ public interface IMucRepository {
 
 	Map<BareJID, String> getPublicVisibleRooms(String domain) throws RepositoryException;
 
+	/**
+	 * Returns public rooms of the domain with their names, sorted by JID of the room, so they may be returned in
+	 * pages.
+	 */
+	default NavigableMap<BareJID, String> getPublicVisibleRoomsDirectory(String domain) throws RepositoryException {
+		return new TreeMap<>(getPublicVisibleRooms(domain));
+	}
+
 	Room getRoom(BareJID roomJID) throws RepositoryException, MUCException;
 
 	/**
@@ -46,16 +46,21 @@ public class JDBCMucDAO
 
 	private static final Logger log = Logger.getLogger(JDBCMucDAO.class.getName());
 
+	private static final int DEF_ROOMS_DIRECTORY_PAGE_SIZE = 1000;
+
 	private static final String CREATE_ROOM_QUERY = "{ call Tig_MUC_CreateRoom(?,?,?,?,?) }";
 	private static final String DESTROY_ROOM_QUERY = "{ call Tig_MUC_DestroyRoom(?) }";
 	private static final String GET_ROOM_AFFILIATIONS_QUERY = "{ call Tig_MUC_GetRoomAffiliations(?) }";
 	private static final String GET_ROOM_QUERY = "{ call Tig_MUC_GetRoom(?) }";
-	private static final String GET_ROOM_AVATAR_QUERY = "{ call Tig_MUC_GetRoomAvatar(?) }";
-	private static final String SET_ROOM_AVATAR_QUERY = "{ call Tig_MUC_SetRoomAvatar(?,?,?) }";
+	private static final String GET_ROOM_WITH_AFFILIATIONS_QUERY = "{ call Tig_MUC_GetRoomWithAffiliations(?) }";
+	private static final String GET_ROOM_AVATAR_QUERY = "{ call Tig_MUC_GetRoomAvatarData(?) }";
+	private static final String SET_ROOM_AVATAR_QUERY = "{ call Tig_MUC_SetRoomAvatarData(?,?,?,?) }";
 	private static final String GET_ROOMS_JIDS_QUERY = "{ call Tig_MUC_GetRoomsJids() }";
+	private static final String GET_ROOMS_DIRECTORY_PAGE_QUERY = "{ call Tig_MUC_GetRoomsDirectoryPage(?,?) }";
 	private static final String SET_ROOM_AFFILIATION_QUERY = "{ call Tig_MUC_SetRoomAffiliation(?,?,?,?,?) }";
 	private static final String SET_ROOM_SUBJECT_QUERY = "{ call Tig_MUC_SetRoomSubject(?,?,?,?) }";
 	private static final String SET_ROOM_CONFIG_QUERY = "{ call Tig_MUC_SetRoomConfig(?,?,?) }";
+	private static final String SET_ROOM_PUBLIC_QUERY = "{ call Tig_MUC_SetRoomPublic(?,?) }";
 	protected DataRepository data_repo;
 	@Inject
 	private MUCConfig mucConfig;
@@ -93,6 +98,7 @@ public class JDBCMucDAO
 			throw new RepositoryException(
 					"Failed to save room " + room.getRoomJID() + " to database, did not get room id");
 		}
+		setRoomPublic(room.getRoomJID(), room.getConfig().isRoomconfigPublicroom());
 
 		for (BareJID affJid : room.getAffiliations()) {
 			final RoomAffiliation a = room.getAffiliation(affJid);
@@ -128,17 +134,7 @@ public class JDBCMucDAO
 					rs = stmt.executeQuery();
 
 					while (rs.next()) {
-						String affStr = rs.getString(2);
-						boolean persistent = rs.getBoolean(3);
-						if (affStr.endsWith("-persistent")) {
-							persistent = true;
-							affStr = affStr.substring(0, affStr.length() - "-persistent".length());
-						}
-						Affiliation affiliation = Affiliation.valueOf(affStr);
-
-						RoomAffiliation roomAffiliation = RoomAffiliation.from(affiliation, persistent,
-																			   rs.getString(4));
-						affiliations.put(BareJID.bareJIDInstance(rs.getString(1)), roomAffiliation);
+						readAffiliation(rs, 1, affiliations);
 					}
 				} finally {
 					data_repo.release(null, rs);
@@ -163,38 +159,43 @@ public class JDBCMucDAO
 					rs = stmt.executeQuery();
 
 					if (rs.next()) {
-						long roomId = rs.getLong(1);
-						Date date = data_repo.getTimestamp(rs, 2);
-						BareJID creator = BareJID.bareJIDInstance(rs.getString(3));
-						RoomConfig roomConfig = new RoomConfig(roomJID);
-						final String roomConfigurationString = rs.getString(4);
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "Parsing room {0} configuration: {1}",
-									new Object[]{roomJID, roomConfigurationString});
-						}
-						final Element roomConfiguration = parseConfigElement(roomConfigurationString);
-						if (roomConfiguration == null) {
-							log.log(Level.SEVERE, "Failed parsing room {0} configuration: {1}",
-									new Object[]{roomJID, roomConfigurationString});
-							throw new RepositoryException("Error while reading room " + roomJID + " configuration");
-						}
-						roomConfig.readFromElement(roomConfiguration);
-
-						RoomWithId room = roomFactory.newInstance(roomId, roomConfig, date, creator);
-
-						String subject = rs.getString(5);
-						String subjectCreator = rs.getString(6);
+						return readRoom(roomJID, rs, 1);
+					}
 
-						room.setNewSubject(subject, subjectCreator);
-						Date subjectDate = data_repo.getTimestamp(rs, 7);
-						room.setSubjectChangeDate(subjectDate);
+					return null;
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+		} catch (SQLException | TigaseStringprepException ex) {
+			throw new RepositoryException("Error while reading room " + roomJID + " from database", ex);
+		}
+	}
 
-						room.setAvatarHash(rs.getString(8));
+	@Override
+	public RoomWithId<Long> getRoomWithAffiliations(BareJID roomJID) throws RepositoryException {
+		try {
+			ResultSet rs = null;
+			PreparedStatement stmt = data_repo.getPreparedStatement(roomJID, GET_ROOM_WITH_AFFILIATIONS_QUERY);
+			synchronized (stmt) {
+				try {
+					stmt.setString(1, roomJID.toString());
+					rs = stmt.executeQuery();
 
-						return room;
+					// first row contains room data, next rows contain affiliations
+					RoomWithId<Long> room = null;
+					Map<BareJID, RoomAffiliation> affiliations = new HashMap<>();
+					while (rs.next()) {
+						if (rs.getInt(1) == 0) {
+							room = readRoom(roomJID, rs, 2);
+						} else {
+							readAffiliation(rs, 10, affiliations);
+						}
 					}
-
-					return null;
+					if (room != null) {
+						room.setAffiliations(affiliations);
+					}
+					return room;
 				} finally {
 					data_repo.release(null, rs);
 				}
@@ -204,6 +205,79 @@ public class JDBCMucDAO
 		}
 	}
 
+	@Override
+	public List<RoomDirectoryEntry> getRoomsDirectory() throws RepositoryException {
+		final List<RoomDirectoryEntry> entries = new ArrayList<>();
+		getRoomsDirectory(DEF_ROOMS_DIRECTORY_PAGE_SIZE, page -> {
+			entries.addAll(page);
+			return true;
+		});
+		return entries;
+	}
+
+	/**
+	 * Reads directory of rooms in pages ordered by id of a room. Visibility of rooms stored before it was kept in a
+	 * separate column is read from room configuration and stored, so it is done only once.
+	 */
+	@Override
+	public void getRoomsDirectory(int pageSize, RoomsDirectoryPageConsumer consumer) throws RepositoryException {
+		long afterId = 0;
+		while (true) {
+			final List<RoomDirectoryEntry> page = new ArrayList<>(pageSize);
+			final List<RoomDirectoryEntry> unknownVisibility = new ArrayList<>();
+			try {
+				ResultSet rs = null;
+				PreparedStatement stmt = data_repo.getPreparedStatement(mucConfig.getServiceName(),
+																		GET_ROOMS_DIRECTORY_PAGE_QUERY);
+				synchronized (stmt) {
+					try {
+						stmt.setLong(1, afterId);
+						stmt.setInt(2, pageSize);
+						rs = stmt.executeQuery();
+
+						while (rs.next()) {
+							afterId = rs.getLong(1);
+							BareJID jid = BareJID.bareJIDInstance(rs.getString(2));
+							String name = rs.getString(3);
+							if (name != null && name.isEmpty()) {
+								name = null;
+							}
+							int isPublic = rs.getInt(4);
+							boolean visibilityStored = !rs.wasNull();
+							Boolean publicRoom = visibilityStored ? isPublic != 0 : null;
+							if (!visibilityStored) {
+								Element configElement = parseConfigElement(rs.getString(5));
+								if (configElement != null) {
+									RoomConfig roomConfig = new RoomConfig(jid);
+									roomConfig.readFromElement(configElement);
+									publicRoom = roomConfig.isRoomconfigPublicroom();
+								}
+							}
+							RoomDirectoryEntry entry = new RoomDirectoryEntry(jid, name, publicRoom);
+							page.add(entry);
+							if (!visibilityStored && publicRoom != null) {
+								unknownVisibility.add(entry);
+							}
+						}
+					} finally {
+						data_repo.release(null, rs);
+					}
+				}
+			} catch (SQLException | TigaseStringprepException ex) {
+				throw new RepositoryException("Error while reading directory of rooms from database", ex);
+			}
+			for (RoomDirectoryEntry entry : unknownVisibility) {
+				setRoomPublic(entry.getJid(), entry.isPublicRoom());
+			}
+			if (!page.isEmpty() && !consumer.accept(page)) {
+				return;
+			}
+			if (page.size() < pageSize) {
+				return;
+			}
+		}
+	}
+
 	@Override
 	public List<BareJID> getRoomsJIDList() throws RepositoryException {
 		ArrayList<BareJID> jids = new ArrayList<>();
@@ -255,6 +329,27 @@ public class JDBCMucDAO
 
 	@Override
 	public String getRoomAvatar(RoomWithId<Long> room) throws RepositoryException {
+		RoomAvatar avatar = getRoomAvatarData(room);
+		return avatar == null ? null : avatar.encode();
+	}
+
+	@Override
+	public void updateRoomAvatar(RoomWithId<Long> room, String encodedAvatar, String hash) throws RepositoryException {
+		final RoomAvatar avatar;
+		try {
+			avatar = RoomAvatar.decode(encodedAvatar);
+		} catch (IllegalArgumentException ex) {
+			throw new RepositoryException("Invalid avatar format for room " + room.getRoomJID(), ex);
+		}
+		updateRoomAvatarData(room, avatar, hash);
+	}
+
+	/**
+	 * Returns avatar stored in binary form. Avatars stored as text by older versions are still returned from the text
+	 * column.
+	 */
+	@Override
+	public RoomAvatar getRoomAvatarData(RoomWithId<Long> room) throws RepositoryException {
 		try {
 			// we may have a RoomWithId instance but room may still not be persisted and in this case there is no ID 
 			if (room.getId() == null) {
@@ -268,7 +363,12 @@ public class JDBCMucDAO
 					rs = stmt.executeQuery();
 
 					if (rs.next()) {
-						return rs.getString(1);
+						String type = rs.getString(1);
+						byte[] data = rs.getBytes(2);
+						if (data != null) {
+							return new RoomAvatar(type, data);
+						}
+						return RoomAvatar.decode(rs.getString(3));
 					} else {
 						return null;
 					}
@@ -276,20 +376,22 @@ public class JDBCMucDAO
 					data_repo.release(null, rs);
 				}
 			}
-		} catch (SQLException ex) {
+		} catch (SQLException | IllegalArgumentException ex) {
 			throw new RepositoryException("Error while reading room avatar", ex);
 		}
 	}
 
 	@Override
-	public void updateRoomAvatar(RoomWithId<Long> room, String encodedAvatar, String hash) throws RepositoryException {
+	public void updateRoomAvatarData(RoomWithId<Long> room, RoomAvatar avatar, String hash)
+			throws RepositoryException {
 		try {
 			final PreparedStatement stmt = data_repo.getPreparedStatement(mucConfig.getServiceName(),
 																		  SET_ROOM_AVATAR_QUERY);
 			synchronized (stmt) {
 				stmt.setLong(1, room.getId());
-				stmt.setString(2, encodedAvatar);
-				stmt.setString(3, hash);
+				stmt.setString(2, avatar == null ? null : avatar.getType());
+				stmt.setBytes(3, avatar == null ? null : avatar.getData());
+				stmt.setString(4, hash);
 
 				stmt.execute();
 			}
@@ -333,6 +435,67 @@ public class JDBCMucDAO
 		} catch (SQLException ex) {
 			throw new RepositoryException("Error updating configuration of room " + roomConfig.getRoomJID(), ex);
 		}
+		setRoomPublic(roomConfig.getRoomJID(), roomConfig.isRoomconfigPublicroom());
+	}
+
+	protected void setRoomPublic(BareJID roomJID, boolean publicRoom) throws RepositoryException {
+		try {
+			PreparedStatement stmt = data_repo.getPreparedStatement(roomJID, SET_ROOM_PUBLIC_QUERY);
+			synchronized (stmt) {
+				stmt.setString(1, roomJID.toString());
+				stmt.setInt(2, publicRoom ? 1 : 0);
+				stmt.execute();
+			}
+		} catch (SQLException ex) {
+			throw new RepositoryException("Error updating visibility of room " + roomJID, ex);
+		}
+	}
+
+	private RoomWithId<Long> readRoom(BareJID roomJID, ResultSet rs, int idx)
+			throws SQLException, TigaseStringprepException, RepositoryException {
+		long roomId = rs.getLong(idx);
+		Date date = data_repo.getTimestamp(rs, idx + 1);
+		BareJID creator = BareJID.bareJIDInstance(rs.getString(idx + 2));
+		RoomConfig roomConfig = new RoomConfig(roomJID);
+		final String roomConfigurationString = rs.getString(idx + 3);
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Parsing room {0} configuration: {1}",
+					new Object[]{roomJID, roomConfigurationString});
+		}
+		final Element roomConfiguration = parseConfigElement(roomConfigurationString);
+		if (roomConfiguration == null) {
+			log.log(Level.SEVERE, "Failed parsing room {0} configuration: {1}",
+					new Object[]{roomJID, roomConfigurationString});
+			throw new RepositoryException("Error while reading room " + roomJID + " configuration");
+		}
+		roomConfig.readFromElement(roomConfiguration);
+
+		RoomWithId<Long> room = roomFactory.newInstance(roomId, roomConfig, date, creator);
+
+		String subject = rs.getString(idx + 4);
+		String subjectCreator = rs.getString(idx + 5);
+
+		room.setNewSubject(subject, subjectCreator);
+		Date subjectDate = data_repo.getTimestamp(rs, idx + 6);
+		room.setSubjectChangeDate(subjectDate);
+
+		room.setAvatarHash(rs.getString(idx + 7));
+
+		return room;
+	}
+
+	private void readAffiliation(ResultSet rs, int idx, Map<BareJID, RoomAffiliation> affiliations)
+			throws SQLException, TigaseStringprepException {
+		String affStr = rs.getString(idx + 1);
+		boolean persistent = rs.getBoolean(idx + 2);
+		if (affStr.endsWith("-persistent")) {
+			persistent = true;
+			affStr = affStr.substring(0, affStr.length() - "-persistent".length());
+		}
+		Affiliation affiliation = Affiliation.valueOf(affStr);
+
+		RoomAffiliation roomAffiliation = RoomAffiliation.from(affiliation, persistent, rs.getString(idx + 3));
+		affiliations.put(BareJID.bareJIDInstance(rs.getString(idx)), roomAffiliation);
 	}
 
 	public void setDataSource(DataRepository dataSource) {
@@ -349,7 +512,10 @@ public class JDBCMucDAO
 		repo.initPreparedStatement(DESTROY_ROOM_QUERY, DESTROY_ROOM_QUERY);
 		repo.initPreparedStatement(GET_ROOM_AFFILIATIONS_QUERY, GET_ROOM_AFFILIATIONS_QUERY);
 		repo.initPreparedStatement(GET_ROOM_QUERY, GET_ROOM_QUERY);
+		repo.initPreparedStatement(GET_ROOM_WITH_AFFILIATIONS_QUERY, GET_ROOM_WITH_AFFILIATIONS_QUERY);
 		repo.initPreparedStatement(GET_ROOMS_JIDS_QUERY, GET_ROOMS_JIDS_QUERY);
+		repo.initPreparedStatement(GET_ROOMS_DIRECTORY_PAGE_QUERY, GET_ROOMS_DIRECTORY_PAGE_QUERY);
+		repo.initPreparedStatement(SET_ROOM_PUBLIC_QUERY, SET_ROOM_PUBLIC_QUERY);
 		repo.initPreparedStatement(SET_ROOM_AFFILIATION_QUERY, SET_ROOM_AFFILIATION_QUERY);
 		repo.initPreparedStatement(SET_ROOM_SUBJECT_QUERY, SET_ROOM_SUBJECT_QUERY);
 		repo.initPreparedStatement(SET_ROOM_CONFIG_QUERY, SET_ROOM_CONFIG_QUERY);
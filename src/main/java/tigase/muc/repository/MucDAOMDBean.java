@@ -82,6 +82,11 @@ public class MucDAOMDBean
 		return getRepository(roomJID.getDomain()).getRoom(roomJID);
 	}
 
+	@Override
+	public RoomWithId getRoomWithAffiliations(BareJID roomJID) throws RepositoryException {
+		return getRepository(roomJID.getDomain()).getRoomWithAffiliations(roomJID);
+	}
+
 	@Override
 	public List<BareJID> getRoomsJIDList() throws RepositoryException {
 		return repositoriesStream().flatMap(repo -> {
@@ -96,6 +101,35 @@ public class MucDAOMDBean
 		}).collect(Collectors.toList());
 	}
 
+	@Override
+	public List<RoomDirectoryEntry> getRoomsDirectory() throws RepositoryException {
+		return repositoriesStream().flatMap(repo -> {
+			Stream<RoomDirectoryEntry> result = null;
+			try {
+				List<RoomDirectoryEntry> entries = repo.getRoomsDirectory();
+				result = entries == null ? Stream.empty() : entries.stream();
+			} catch (RepositoryException e) {
+				log.log(Level.WARNING, "Failed to retrieve directory of rooms from " + repo.toString(), e);
+				result = Stream.empty();
+			}
+			return result;
+		}).collect(Collectors.toList());
+	}
+
+	@Override
+	public void getRoomsDirectory(int pageSize, RoomsDirectoryPageConsumer consumer) throws RepositoryException {
+		final boolean[] stopped = {false};
+		for (IMucDAO repo : repositoriesStream().collect(Collectors.toList())) {
+			repo.getRoomsDirectory(pageSize, page -> {
+				stopped[0] = !consumer.accept(page);
+				return !stopped[0];
+			});
+			if (stopped[0]) {
+				return;
+			}
+		}
+	}
+
 	@Override
 	public void setAffiliation(RoomWithId room, BareJID jid, RoomAffiliation affiliation) throws RepositoryException {
 		getRepository(room.getRoomJID().getDomain()).setAffiliation(room, jid, affiliation);
@@ -111,6 +145,16 @@ public class MucDAOMDBean
 		return getRepository(room.getRoomJID().getDomain()).getRoomAvatar(room);
 	}
 
+	@Override
+	public void updateRoomAvatarData(RoomWithId room, RoomAvatar avatar, String hash) throws RepositoryException {
+		getRepository(room.getRoomJID().getDomain()).updateRoomAvatarData(room, avatar, hash);
+	}
+
+	@Override
+	public RoomAvatar getRoomAvatarData(RoomWithId room) throws RepositoryException {
+		return getRepository(room.getRoomJID().getDomain()).getRoomAvatarData(room);
+	}
+
 	@Override
 	public void setSubject(RoomWithId room, String subject, String creatorNickname, Date changeDate)
 			throws RepositoryException {
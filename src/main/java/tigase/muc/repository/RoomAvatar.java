@@ -0,0 +1,67 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.repository;
+
+import tigase.util.Base64;
+
+/**
+ * Avatar of the room with its data in binary form.
+ */
+public class RoomAvatar {
+
+	private static final String SEPARATOR = ";";
+
+	private final byte[] data;
+	private final String type;
+
+	/**
+	 * Creates avatar from its text form <code>type;base64 encoded data</code>.
+	 *
+	 * @return avatar or <code>null</code> if passed text is <code>null</code> or empty
+	 */
+	public static RoomAvatar decode(String encodedAvatar) {
+		if (encodedAvatar == null || encodedAvatar.isEmpty()) {
+			return null;
+		}
+		int idx = encodedAvatar.indexOf(SEPARATOR);
+		if (idx < 0) {
+			throw new IllegalArgumentException("Invalid avatar format");
+		}
+		return new RoomAvatar(encodedAvatar.substring(0, idx), Base64.decode(encodedAvatar.substring(idx + 1)));
+	}
+
+	public RoomAvatar(String type, byte[] data) {
+		this.type = type;
+		this.data = data;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * @return avatar in text form <code>type;base64 encoded data</code>
+	 */
+	public String encode() {
+		return type + SEPARATOR + Base64.encode(data);
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.repository;
+
+import tigase.xmpp.jid.BareJID;
+
+/**
+ * Basic information about a stored room, used to build directory of rooms without loading them.
+ */
+public class RoomDirectoryEntry {
+
+	private final BareJID jid;
+	private final String name;
+	private final Boolean publicRoom;
+
+	public RoomDirectoryEntry(BareJID jid, String name, Boolean publicRoom) {
+		this.jid = jid;
+		this.name = name;
+		this.publicRoom = publicRoom;
+	}
+
+	public BareJID getJid() {
+		return jid;
+	}
+
+	/**
+	 * @return name of the room or <code>null</code> if room has no name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return <code>true</code> if room is public or <code>null</code> if it is not known
+	 */
+	public Boolean isPublicRoom() {
+		return publicRoom;
+	}
+}
@@ -58,6 +58,19 @@ public class StoredProcedures {
 				stmt.execute("alter table tig_muc_rooms add avatar clob");
 				stmt.execute("alter table tig_muc_rooms add avatar_hash varchar(42)");
 			}
+			try {
+				ResultSet rs = stmt.executeQuery("select is_public from tig_muc_rooms where room_id = 0");
+				rs.close();
+			} catch (SQLException ex) {
+				stmt.execute("alter table tig_muc_rooms add is_public int");
+			}
+			try {
+				ResultSet rs = stmt.executeQuery("select avatar_data from tig_muc_rooms where room_id = 0");
+				rs.close();
+			} catch (SQLException ex) {
+				stmt.execute("alter table tig_muc_rooms add avatar_type varchar(128)");
+				stmt.execute("alter table tig_muc_rooms add avatar_data blob");
+			}
 		} catch (SQLException e) {
 			throw e;
 		} finally {
@@ -65,6 +78,19 @@ public class StoredProcedures {
 		}
 	}
 
+	private static Timestamp getMessageTimestamp(Connection conn, String roomJidSha1, String stableId)
+			throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(
+				"select h.ts from tig_muc_room_history h where h.room_jid_sha1 = ? and h.stable_id = ?");
+		ps.setString(1, roomJidSha1);
+		ps.setString(2, stableId);
+		try (ResultSet rs = ps.executeQuery()) {
+			return rs.next() ? rs.getTimestamp(1) : null;
+		} finally {
+			ps.close();
+		}
+	}
+
 	protected static String sha1OfLower(String data) throws SQLException {
 		try {
 			MessageDigest md = MessageDigest.getInstance("SHA-1");
@@ -192,6 +218,21 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigMucGetAvatarData(Long id, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select avatar_type, avatar_data, avatar from tig_muc_rooms where room_id = ?");
+			ps.setLong(1, id);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigMucGetMessage(String roomJid, String stableId, ResultSet[] data)
 			throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -277,6 +318,57 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigMucGetRoomWithAffiliations(String roomJid, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select 0 as row_type, r.room_id, r.creation_date, r.creator, r.config, r.subject," +
+							" r.subject_creator_nick, r.subject_date, r.avatar_hash, cast(null as varchar(2049)) as jid," +
+							" cast(null as varchar(20)) as affiliation, cast(null as int) as persistent," +
+							" cast(null as varchar(1024)) as nickname" + " from tig_muc_rooms r where r.jid_sha1 = ?" +
+							" union all" + " select 1 as row_type, a.room_id, cast(null as timestamp)," +
+							" cast(null as varchar(2049)), cast(null as varchar(32672)), cast(null as varchar(32672))," +
+							" cast(null as varchar(1024)), cast(null as timestamp), cast(null as varchar(42))," +
+							" a.jid, a.affiliation, a.persistent, a.nickname" +
+							" from tig_muc_rooms r inner join tig_muc_room_affiliations a on a.room_id = r.room_id" +
+							" where r.jid_sha1 = ?" + " order by row_type");
+
+			final String roomJidSha1 = sha1OfLower(roomJid);
+			ps.setString(1, roomJidSha1);
+			ps.setString(2, roomJidSha1);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void tigMucGetRoomsDirectoryPage(Long afterId, Integer limit, ResultSet[] data)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select room_id, jid, name, is_public," +
+							" case when is_public is null then config else null end as config" +
+							" from tig_muc_rooms where room_id > ? order by room_id offset 0 rows fetch next ? rows only");
+
+			ps.setLong(1, afterId);
+			ps.setInt(2, limit);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigMucGetRoomsJids(ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
@@ -367,6 +459,56 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigMucMamGetMessagesByKey(String roomJid, Timestamp since, Timestamp to, String nickname,
+												 String afterId, String beforeId, Boolean backward, Integer limit,
+												 ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			final String roomJidSha1 = sha1OfLower(roomJid);
+			final Timestamp afterTs = afterId == null ? null : getMessageTimestamp(conn, roomJidSha1, afterId);
+			final Timestamp beforeTs = beforeId == null ? null : getMessageTimestamp(conn, roomJidSha1, beforeId);
+			final boolean desc = Boolean.TRUE.equals(backward) || beforeId != null;
+
+			String query = "select h.sender_nickname, h.stable_id, h.ts, h.sender_jid, h.body, h.msg" +
+					" from tig_muc_room_history h" + " where h.room_jid_sha1 = ?" + "	and (? is null or h.ts >= ?)" +
+					"	and (? is null or h.ts <= ?)" + "	and (? is null or h.sender_nickname = ?)" +
+					"	and (cast(? as varchar(36)) is null or h.ts > ? or (h.ts = ? and h.stable_id > ?))" +
+					"	and (cast(? as varchar(36)) is null or h.ts < ? or (h.ts = ? and h.stable_id < ?))" +
+					(desc ? " order by h.ts desc, h.stable_id desc" : " order by h.ts asc, h.stable_id asc") +
+					" offset 0 rows fetch next ? rows only";
+			if (desc) {
+				query = "select t.sender_nickname, t.stable_id, t.ts, t.sender_jid, t.body, t.msg from (" + query +
+						") AS t order by t.ts asc, t.stable_id asc";
+			}
+			PreparedStatement ps = conn.prepareStatement(query);
+
+			ps.setString(1, roomJidSha1);
+			ps.setTimestamp(2, since);
+			ps.setTimestamp(3, since);
+			ps.setTimestamp(4, to);
+			ps.setTimestamp(5, to);
+			ps.setString(6, nickname);
+			ps.setString(7, nickname);
+			ps.setString(8, afterId);
+			ps.setTimestamp(9, afterTs);
+			ps.setTimestamp(10, afterTs);
+			ps.setString(11, afterId);
+			ps.setString(12, beforeId);
+			ps.setTimestamp(13, beforeTs);
+			ps.setTimestamp(14, beforeTs);
+			ps.setString(15, beforeId);
+			ps.setInt(16, limit);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigMucMamGetMessagesCount(String roomJid, Timestamp since, Timestamp to, String nickname,
 												 ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -437,6 +579,32 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigMucSetAvatarData(Long roomId, String avatarType, Blob avatarData, String avatarHash)
+			throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"update tig_muc_rooms set avatar_type = ?, avatar_data = ?, avatar = null, avatar_hash = ?" +
+							" where room_id = ?");
+
+			ps.setString(1, avatarType);
+			if (avatarData == null) {
+				ps.setNull(2, Types.BLOB);
+			} else {
+				ps.setBlob(2, avatarData);
+			}
+			ps.setString(3, avatarHash);
+			ps.setLong(4, roomId);
+			ps.executeUpdate();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigMucSetRoomAffiliation(Long roomId, String jid, String affiliation, Boolean persistent,
 												String nickname) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -510,6 +678,28 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigMucSetRoomPublic(String roomJid, Integer isPublic) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement("update tig_muc_rooms set is_public = ? where jid_sha1 = ?");
+
+			if (isPublic == null) {
+				ps.setNull(1, Types.INTEGER);
+			} else {
+				ps.setInt(1, isPublic);
+			}
+			ps.setString(2, sha1OfLower(roomJid));
+			ps.executeUpdate();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigMucSetRoomSubject(Long roomId, String subject, String creator, Timestamp changeDate)
 			throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
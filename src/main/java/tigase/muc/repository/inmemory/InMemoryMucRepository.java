@@ -24,18 +24,29 @@ import tigase.eventbus.EventBus;
 import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.muc.*;
 import tigase.muc.Room.RoomListener;
 import tigase.muc.RoomConfig.RoomConfigListener;
 import tigase.muc.repository.IMucDAO;
 import tigase.muc.repository.IMucRepository;
+import tigase.muc.repository.RoomAvatar;
+import tigase.muc.repository.RoomDirectoryEntry;
 import tigase.server.Packet;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,12 +55,39 @@ import java.util.logging.Logger;
  */
 @Bean(name = IMucRepository.ID, parent = MUCComponent.class, active = true)
 public class InMemoryMucRepository
-		implements IMucRepository, Initializable {
+		implements IMucRepository, Initializable, UnregisterAware {
 
 	private static final String ROOMS_KEY = "rooms/";
+	/**
+	 * Minimal time for which room has to be unused before it may be removed from memory to keep number of rooms
+	 * within the limit. It protects rooms which were just loaded to be joined.
+	 */
+	private static final long ROOM_MIN_IDLE_TIME = TimeUnit.SECONDS.toMillis(30);
+	private static final int MISSING_ROOMS_MAX_SIZE = 100000;
 
 	protected final Map<BareJID, InternalRoom> allRooms = new ConcurrentHashMap<BareJID, InternalRoom>();
 	protected final Map<BareJID, RoomWithId> rooms = new ConcurrentHashMap<>();
+	private final Map<BareJID, Long> missingRooms = new ConcurrentHashMap<>();
+	private final AtomicLong missingRoomsHits = new AtomicLong();
+	/**
+	 * Public rooms of each domain sorted by JID, with names used in disco#items results.
+	 */
+	private final Map<String, NavigableMap<BareJID, String>> publicRoomsDirectory = new ConcurrentHashMap<>();
+	private final Set<BareJID> roomsWithUnknownVisibility = ConcurrentHashMap.newKeySet();
+	private final Object unknownVisibilityLock = new Object();
+	/**
+	 * Rooms removed while list of rooms was loaded, which should not be added by the loading thread.
+	 */
+	private final Set<BareJID> roomsRemovedDuringWarmUp = ConcurrentHashMap.newKeySet();
+	private final CompletableFuture<Void> roomsWarmUp = new CompletableFuture<>();
+	private final Map<BareJID, Long> roomsAccessTime = new ConcurrentHashMap<>();
+	private final AtomicLong roomsCacheHits = new AtomicLong();
+	private final AtomicLong roomsCacheMisses = new AtomicLong();
+	private final AtomicLong roomsEvicted = new AtomicLong();
+	private final ReentrantLock roomsEvictionLock = new ReentrantLock();
+	private final AtomicLong roomsLoadTime = new AtomicLong();
+	private final AtomicLong roomsLoads = new AtomicLong();
+	private final Map<BareJID, CompletableFuture<RoomWithId>> roomsLoading = new ConcurrentHashMap<>();
 	private final RoomConfigListener roomConfigListener;
 	private final RoomListener roomListener;
 	protected Logger log = Logger.getLogger(this.getClass().getName());
@@ -62,6 +100,17 @@ public class InMemoryMucRepository
 	private MUCConfig mucConfig;
 	@Inject
 	private Room.RoomFactory roomFactory;
+	@ConfigField(desc = "Time (in seconds) for which not existing room is not looked up in the database (0 - disabled)", alias = "missing-rooms-cache-time")
+	private long missingRoomsCacheTime = 0;
+	@ConfigField(desc = "Time (in seconds) after which unused room without occupants is removed from memory (0 - disabled)", alias = "rooms-cache-idle-time")
+	private long roomsCacheIdleTime = 0;
+	@ConfigField(desc = "Maximal number of rooms kept in memory (0 - no limit)", alias = "rooms-cache-size")
+	private int roomsCacheSize = 0;
+	@ConfigField(desc = "Load list of rooms in background after startup", alias = "rooms-warm-up-async")
+	private boolean roomsWarmUpAsync = true;
+	@ConfigField(desc = "Number of rooms read from the database at once on startup", alias = "rooms-warm-up-page-size")
+	private int roomsWarmUpPageSize = 1000;
+	private volatile boolean stopped = false;
 	@Inject
 	private UserRepository userRepository;
 
@@ -140,6 +189,24 @@ public class InMemoryMucRepository
 		}
 	}
 
+	@Override
+	public RoomAvatar getRoomAvatarData(Room room) throws RepositoryException {
+		if (room instanceof RoomWithId) {
+			return dao.getRoomAvatarData((RoomWithId<Long>) room);
+		} else {
+			throw new RepositoryException("Cannot get ID of room " + room.getRoomJID());
+		}
+	}
+
+	@Override
+	public void updateRoomAvatarData(Room room, RoomAvatar avatar, String hash) throws RepositoryException {
+		if (room instanceof RoomWithId) {
+			dao.updateRoomAvatarData((RoomWithId<Long>) room, avatar, hash);
+		} else {
+			throw new RepositoryException("Cannot get ID of room " + room.getRoomJID());
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -157,12 +224,15 @@ public class InMemoryMucRepository
 		rc.copyFrom(getDefaultRoomConfig(), false);
 
 		RoomWithId room = roomFactory.newInstance(null, rc, new Date(), senderJid.getBareJID());
+		missingRooms.remove(roomJID);
 		room.getConfig().addListener(roomConfigListener);
 		room.addListener(roomListener);
 		this.rooms.put(roomJID, room);
+		this.roomsAccessTime.put(roomJID, System.currentTimeMillis());
 		InternalRoom ir = new InternalRoom();
 		ir.isPersistent = room.getConfig().isPersistentRoom();
 		ir.isPublic = room.getConfig().isRoomconfigPublicroom();
+		ir.name = getRoomName(room.getConfig());
 		addToAllRooms(roomJID, ir);
 
 		// if (rc.isPersistentRoom()) {
@@ -179,6 +249,7 @@ public class InMemoryMucRepository
 			log.fine("Destroying room '" + roomJID);
 		}
 		this.rooms.remove(roomJID);
+		this.roomsAccessTime.remove(roomJID);
 		removeFromAllRooms(roomJID);
 		dao.destroyRoom(roomJID);
 		fireDestroyRoom(room);
@@ -206,62 +277,25 @@ public class InMemoryMucRepository
 
 	@Override
 	public Map<BareJID, String> getPublicVisibleRooms(String domain) throws RepositoryException {
-		Map<BareJID, String> result = new HashMap<>();
-		for (Map.Entry<BareJID, InternalRoom> entry : this.allRooms.entrySet()) {
-			if (entry.getValue().isPublic == null) {
-				InternalRoom ir = entry.getValue();
-				try {
-					Room room = dao.getRoom(entry.getKey());
-					synchronized (ir) {
-						ir.isPublic = room == null ? false : room.getConfig().isRoomconfigPublicroom();
-					}
-				} catch (RepositoryException ex) {
-					entry.getValue().isPublic = false;
-				}
-			}
-			if (entry.getValue().isPublic) {
-				BareJID jid = entry.getKey();
-				if (!domain.equals(jid.getDomain())) {
-					continue;
-				}
+		return getPublicVisibleRoomsDirectory(domain);
+	}
 
-				String name = entry.getValue().name;
-				if (name == null) {
-					Room room = getRoom(jid);
-					if (room != null) {
-						name = room.getConfig().getRoomName();
-						if (name != null && name.isEmpty()) {
-							name = null;
-						}
-					}
-				}
-				if (name == null) {
-					name = jid.getLocalpart();
-				}
-				result.put(jid, name);
-			}
+	@Override
+	public NavigableMap<BareJID, String> getPublicVisibleRoomsDirectory(String domain) throws RepositoryException {
+		resolveUnknownVisibility();
+		NavigableMap<BareJID, String> directory = publicRoomsDirectory.get(domain);
+		if (directory == null) {
+			return Collections.emptyNavigableMap();
 		}
-		return result;
+		return Collections.unmodifiableNavigableMap(directory);
 	}
 
 	@Override
 	public BareJID[] getPublicVisibleRoomsIdList() throws RepositoryException {
+		resolveUnknownVisibility();
 		List<BareJID> result = new ArrayList<BareJID>();
-		for (Map.Entry<BareJID, InternalRoom> entry : this.allRooms.entrySet()) {
-			if (entry.getValue().isPublic == null) {
-				InternalRoom ir = entry.getValue();
-				try {
-					Room room = dao.getRoom(entry.getKey());
-					synchronized (ir) {
-						ir.isPublic = room == null ? false : room.getConfig().isRoomconfigPublicroom();
-					}
-				} catch (RepositoryException ex) {
-					entry.getValue().isPublic = false;
-				}
-			}
-			if (entry.getValue().isPublic) {
-				result.add(entry.getKey());
-			}
+		for (NavigableMap<BareJID, String> directory : publicRoomsDirectory.values()) {
+			result.addAll(directory.keySet());
 		}
 		return result.toArray(new BareJID[]{});
 	}
@@ -274,16 +308,150 @@ public class InMemoryMucRepository
 	@Override
 	public Room getRoom(final BareJID roomJID) throws RepositoryException {
 		RoomWithId room = this.rooms.get(roomJID);
-		if (room == null) {
-			room = dao.getRoom(roomJID);
-			if (room != null) {
-				room.setAffiliations(dao.getAffiliations(room));
-				room.getConfig().addListener(roomConfigListener);
-				room.addListener(roomListener);
-				this.rooms.put(roomJID, room);
+		if (room != null) {
+			roomsCacheHits.incrementAndGet();
+			roomsAccessTime.put(roomJID, System.currentTimeMillis());
+			return room;
+		}
+
+		roomsCacheMisses.incrementAndGet();
+		if (isRoomMissing(roomJID)) {
+			missingRoomsHits.incrementAndGet();
+			return null;
+		}
+
+		while (true) {
+			final CompletableFuture<RoomWithId> future = new CompletableFuture<>();
+			final CompletableFuture<RoomWithId> loading = roomsLoading.putIfAbsent(roomJID, future);
+			if (loading instanceof RoomEviction) {
+				// room is removed from memory, so it has to be loaded again
+				waitForRoom(roomJID, loading);
+				continue;
+			}
+			if (loading != null) {
+				// room is already loaded by other thread
+				return waitForRoom(roomJID, loading);
+			}
+
+			try {
+				// room could be loaded before this thread started loading it
+				room = this.rooms.get(roomJID);
+				if (room == null) {
+					room = loadRoom(roomJID);
+				}
+				future.complete(room);
+			} catch (RepositoryException | RuntimeException ex) {
+				future.completeExceptionally(ex);
+				throw ex;
+			} finally {
+				roomsLoading.remove(roomJID, future);
 			}
+			return room;
 		}
-		return room;
+	}
+
+	/**
+	 * Removes from memory persistent rooms without occupants, which were not used for longer than
+	 * <code>rooms-cache-idle-time</code> and (if number of rooms in memory exceeds <code>rooms-cache-size</code>)
+	 * rooms which were not used for the longest time.
+	 *
+	 * @return number of removed rooms
+	 */
+	public int evictRooms(long now) {
+		if (!roomsEvictionLock.tryLock()) {
+			return 0;
+		}
+		try {
+			int removed = 0;
+			final List<EvictionCandidate> candidates = new ArrayList<>();
+			for (Map.Entry<BareJID, RoomWithId> e : rooms.entrySet()) {
+				final long idleTime = getRoomIdleTime(e.getKey(), now);
+				if (isRoomEvictable(e.getValue(), idleTime)) {
+					candidates.add(new EvictionCandidate(e.getKey(), e.getValue(), idleTime));
+				}
+			}
+
+			final long maxIdleTime = TimeUnit.SECONDS.toMillis(roomsCacheIdleTime);
+			if (maxIdleTime > 0) {
+				Iterator<EvictionCandidate> it = candidates.iterator();
+				while (it.hasNext()) {
+					EvictionCandidate candidate = it.next();
+					if (candidate.idleTime > maxIdleTime) {
+						it.remove();
+						if (evictRoom(candidate.roomJID, candidate.room, now)) {
+							removed++;
+						}
+					}
+				}
+			}
+
+			if (roomsCacheSize > 0 && rooms.size() > roomsCacheSize) {
+				candidates.sort((c1, c2) -> Long.compare(c2.idleTime, c1.idleTime));
+				Iterator<EvictionCandidate> it = candidates.iterator();
+				while (rooms.size() > roomsCacheSize && it.hasNext()) {
+					EvictionCandidate candidate = it.next();
+					if (evictRoom(candidate.roomJID, candidate.room, now)) {
+						removed++;
+					}
+				}
+			}
+
+			if (removed > 0 && log.isLoggable(Level.FINE)) {
+				log.fine("Removed " + removed + " unused rooms from memory, " + rooms.size() + " rooms left");
+			}
+			return removed;
+		} finally {
+			roomsEvictionLock.unlock();
+		}
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		final long hits = roomsCacheHits.get();
+		final long misses = roomsCacheMisses.get();
+		list.add(compName, "Known rooms", allRooms.size(), Level.FINE);
+		list.add(compName, "Rooms in memory", rooms.size(), Level.FINE);
+		list.add(compName, "Rooms cache hits", hits, Level.FINE);
+		list.add(compName, "Rooms cache misses", misses, Level.FINE);
+		list.add(compName, "Rooms cache hit rate [%]", hits + misses == 0 ? 0f : (100f * hits) / (hits + misses),
+				 Level.FINE);
+		list.add(compName, "Rooms lookups in database", roomsLoads.get(), Level.FINE);
+		list.add(compName, "Average room load time [ms]", getRoomsAverageLoadTime(), Level.FINE);
+		list.add(compName, "Rooms removed from memory", roomsEvicted.get(), Level.FINE);
+		list.add(compName, "Missing rooms cache size", missingRooms.size(), Level.FINE);
+		list.add(compName, "Missing rooms cache hits", missingRoomsHits.get(), Level.FINE);
+	}
+
+	public long getRoomsCacheHits() {
+		return roomsCacheHits.get();
+	}
+
+	public long getRoomsCacheMisses() {
+		return roomsCacheMisses.get();
+	}
+
+	public long getRoomsEvicted() {
+		return roomsEvicted.get();
+	}
+
+	public float getRoomsAverageLoadTime() {
+		final long loads = roomsLoads.get();
+		return loads == 0 ? 0f : ((float) roomsLoadTime.get()) / loads;
+	}
+
+	public long getRoomsLoads() {
+		return roomsLoads.get();
+	}
+
+	public long getRoomsCacheIdleTime() {
+		return roomsCacheIdleTime;
+	}
+
+	public int getRoomsCacheSize() {
+		return roomsCacheSize;
+	}
+
+	public boolean isRoomsCacheEnabled() {
+		return roomsCacheIdleTime > 0 || roomsCacheSize > 0;
 	}
 
 	@Override
@@ -302,19 +470,37 @@ public class InMemoryMucRepository
 				}
 			}
 
-			List<BareJID> roomJids = dao.getRoomsJIDList();
-			if (roomJids != null) {
-				for (BareJID jid : roomJids) {
-					if (jid.getLocalpart() == null) {
-						dao.destroyRoom(jid);
-					} else {
-						addToAllRooms(jid, new InternalRoom());
-					}
-				}
-			}
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
+
+		if (roomsWarmUpAsync) {
+			Thread thread = new Thread(this::warmUp, "muc-rooms-warm-up");
+			thread.setDaemon(true);
+			thread.start();
+		} else {
+			warmUp();
+			if (roomsWarmUp.isCompletedExceptionally()) {
+				roomsWarmUp.join();
+			}
+		}
+	}
+
+	@Override
+	public void beforeUnregister() {
+		stopped = true;
+	}
+
+	/**
+	 * Returns <code>true</code> if list of all stored rooms is loaded. Until then, rooms not known to exist are
+	 * looked up in the database and directory of public rooms may be incomplete.
+	 */
+	public boolean isWarmedUp() {
+		return roomsWarmUp.isDone() && !roomsWarmUp.isCompletedExceptionally();
+	}
+
+	public CompletableFuture<Void> getRoomsWarmUp() {
+		return roomsWarmUp;
 	}
 
 	/*
@@ -325,7 +511,19 @@ public class InMemoryMucRepository
 	 */
 	@Override
 	public boolean isRoomIdExists(String newRoomName) {
-		return this.allRooms.containsKey(newRoomName);
+		BareJID roomJID = BareJID.bareJIDInstanceNS(newRoomName);
+		if (this.allRooms.containsKey(roomJID)) {
+			return true;
+		}
+		if (isWarmedUp()) {
+			return false;
+		}
+		try {
+			return dao.getRoom(roomJID) != null;
+		} catch (RepositoryException ex) {
+			log.log(Level.WARNING, "Could not check if room " + roomJID + " exists", ex);
+			return true;
+		}
 	}
 
 	@Override
@@ -335,6 +533,7 @@ public class InMemoryMucRepository
 			log.fine("Removing room '" + roomJID + "' from memory");
 		}
 		this.rooms.remove(roomJID);
+		this.roomsAccessTime.remove(roomJID);
 		if (!room.getConfig().isPersistentRoom()) {
 			removeFromAllRooms(roomJID);
 		}
@@ -360,10 +559,49 @@ public class InMemoryMucRepository
 
 	protected void addToAllRooms(BareJID roomJid, InternalRoom internalRoom) {
 		allRooms.put(roomJid, internalRoom);
+		missingRooms.remove(roomJid);
+		updateDirectory(roomJid, internalRoom);
 	}
 
 	protected void removeFromAllRooms(BareJID roomJid) {
+		if (!roomsWarmUp.isDone()) {
+			roomsRemovedDuringWarmUp.add(roomJid);
+		}
 		allRooms.remove(roomJid);
+		roomsWithUnknownVisibility.remove(roomJid);
+		NavigableMap<BareJID, String> directory = publicRoomsDirectory.get(roomJid.getDomain());
+		if (directory != null) {
+			directory.remove(roomJid);
+		}
+	}
+
+	/**
+	 * Updates entry of the room in the directory of public rooms to match visibility and name of the room.
+	 */
+	protected void updateDirectory(BareJID roomJid, InternalRoom internalRoom) {
+		if (roomJid.getLocalpart() == null) {
+			return;
+		}
+		synchronized (internalRoom) {
+			if (internalRoom.isPublic == null) {
+				roomsWithUnknownVisibility.add(roomJid);
+				return;
+			}
+			roomsWithUnknownVisibility.remove(roomJid);
+			if (allRooms.get(roomJid) != internalRoom) {
+				// room was removed or replaced in the meantime
+				return;
+			}
+			if (internalRoom.isPublic) {
+				publicRoomsDirectory.computeIfAbsent(roomJid.getDomain(), domain -> new ConcurrentSkipListMap<>())
+						.put(roomJid, internalRoom.name == null ? roomJid.getLocalpart() : internalRoom.name);
+			} else {
+				NavigableMap<BareJID, String> directory = publicRoomsDirectory.get(roomJid.getDomain());
+				if (directory != null) {
+					directory.remove(roomJid);
+				}
+			}
+		}
 	}
 
 	protected void roomConfigChanged(RoomConfig roomConfig, Set<String> modifiedVars) {
@@ -372,17 +610,16 @@ public class InMemoryMucRepository
 				InternalRoom ir = allRooms.get(roomConfig.getRoomJID());
 				if (ir != null) {
 					ir.isPublic = roomConfig.isRoomconfigPublicroom();
+					updateDirectory(roomConfig.getRoomJID(), ir);
 				}
 			}
 			if (modifiedVars.contains(RoomConfig.MUC_ROOMCONFIG_ROOMNAME_KEY)) {
 				InternalRoom ir = allRooms.get(roomConfig.getRoomJID());
 				if (ir != null) {
-					String name = roomConfig.getRoomName();
-					if (name != null && name.isEmpty()) {
-						name = null;
-					}
+					String name = getRoomName(roomConfig);
 					log.log(Level.FINEST, "setting room name '" + name + "'");
 					ir.name = name;
+					updateDirectory(roomConfig.getRoomJID(), ir);
 				}
 			}
 
@@ -407,12 +644,232 @@ public class InMemoryMucRepository
 		}
 	}
 
+	protected RoomWithId loadRoom(BareJID roomJID) throws RepositoryException {
+		final long start = System.currentTimeMillis();
+		RoomWithId room = dao.getRoomWithAffiliations(roomJID);
+		if (room != null) {
+			room.getConfig().addListener(roomConfigListener);
+			room.addListener(roomListener);
+			this.rooms.put(roomJID, room);
+			if (!allRooms.containsKey(roomJID)) {
+				// room found in the database before list of rooms was loaded
+				InternalRoom ir = new InternalRoom();
+				ir.isPersistent = true;
+				ir.isPublic = room.getConfig().isRoomconfigPublicroom();
+				ir.name = getRoomName(room.getConfig());
+				addToAllRooms(roomJID, ir);
+			}
+		} else if (missingRoomsCacheTime > 0 && !allRooms.containsKey(roomJID)) {
+			addMissingRoom(roomJID);
+		}
+		final long now = System.currentTimeMillis();
+		roomsLoads.incrementAndGet();
+		roomsLoadTime.addAndGet(now - start);
+		if (room != null) {
+			this.roomsAccessTime.put(roomJID, now);
+			if (roomsCacheSize > 0 && rooms.size() > roomsCacheSize) {
+				evictRooms(now);
+			}
+		}
+		return room;
+	}
+
+	protected boolean isRoomEvictable(RoomWithId room, long idleTime) {
+		// only state of persistent rooms is stored in the database
+		return room.getConfig().isPersistentRoom() && room.getId() != null &&
+				room.getOccupantsNicknames(false).isEmpty() && idleTime >= ROOM_MIN_IDLE_TIME;
+	}
+
+	/**
+	 * Removes room from memory. Room is removed holding the same lock as used for loading it, so it is not loaded
+	 * while it is removed and threads requesting it in the meantime wait until it is removed and load it again.
+	 */
+	private boolean evictRoom(BareJID roomJID, RoomWithId room, long now) {
+		final RoomEviction eviction = new RoomEviction();
+		if (roomsLoading.putIfAbsent(roomJID, eviction) != null) {
+			// room is loaded by other thread
+			return false;
+		}
+		try {
+			// room might be used since it was selected for eviction
+			if (!isRoomEvictable(room, getRoomIdleTime(roomJID, now)) || !rooms.remove(roomJID, room)) {
+				return false;
+			}
+			roomsAccessTime.remove(roomJID);
+			roomsEvicted.incrementAndGet();
+			if (log.isLoggable(Level.FINEST)) {
+				log.finest("Removing unused room '" + roomJID + "' from memory");
+			}
+			fireDestroyRoom(room);
+			return true;
+		} finally {
+			roomsLoading.remove(roomJID, eviction);
+			eviction.complete(null);
+		}
+	}
+
+	/**
+	 * Loads list of all stored rooms in pages. Rooms created, loaded or removed in the meantime are not overridden.
+	 */
+	private void warmUp() {
+		final long start = System.currentTimeMillis();
+		final int[] count = {0};
+		try {
+			final List<BareJID> invalidRooms = new ArrayList<>();
+			dao.getRoomsDirectory(roomsWarmUpPageSize, page -> {
+				for (RoomDirectoryEntry entry : page) {
+					final BareJID jid = entry.getJid();
+					if (jid.getLocalpart() == null) {
+						invalidRooms.add(jid);
+					} else if (!allRooms.containsKey(jid) && !roomsRemovedDuringWarmUp.contains(jid)) {
+						InternalRoom ir = new InternalRoom();
+						ir.isPersistent = true;
+						ir.isPublic = entry.isPublicRoom();
+						ir.name = entry.getName();
+						if (allRooms.putIfAbsent(jid, ir) == null) {
+							missingRooms.remove(jid);
+							updateDirectory(jid, ir);
+						}
+					}
+				}
+				count[0] += page.size();
+				return !stopped;
+			});
+			if (stopped) {
+				return;
+			}
+			for (BareJID jid : invalidRooms) {
+				dao.destroyRoom(jid);
+			}
+			roomsRemovedDuringWarmUp.clear();
+			roomsWarmUp.complete(null);
+			if (log.isLoggable(Level.CONFIG)) {
+				log.config("Loaded list of " + count[0] + " rooms in " + (System.currentTimeMillis() - start) + "ms");
+			}
+		} catch (Exception ex) {
+			log.log(Level.SEVERE, "Could not load list of rooms, rooms will be looked up in the database", ex);
+			roomsWarmUp.completeExceptionally(ex);
+		}
+	}
+
+	/**
+	 * Loads visibility of rooms which was not provided by DAO on startup. Each room is loaded only once and only one
+	 * thread loads rooms at a time, other threads wait until it is done.
+	 */
+	private void resolveUnknownVisibility() {
+		if (roomsWithUnknownVisibility.isEmpty()) {
+			return;
+		}
+		synchronized (unknownVisibilityLock) {
+			// visibility of rooms might be loaded by other thread in the meantime
+			for (BareJID roomJID : new ArrayList<>(roomsWithUnknownVisibility)) {
+				InternalRoom ir = allRooms.get(roomJID);
+				if (ir == null) {
+					roomsWithUnknownVisibility.remove(roomJID);
+					continue;
+				}
+				if (ir.isPublic != null) {
+					updateDirectory(roomJID, ir);
+					continue;
+				}
+				try {
+					Room room = dao.getRoom(roomJID);
+					synchronized (ir) {
+						if (ir.isPublic == null) {
+							ir.isPublic = room == null ? false : room.getConfig().isRoomconfigPublicroom();
+							if (room != null && ir.name == null) {
+								ir.name = getRoomName(room.getConfig());
+							}
+						}
+					}
+				} catch (RepositoryException ex) {
+					log.log(Level.FINE, "Could not load visibility of room " + roomJID, ex);
+					ir.isPublic = false;
+				}
+				updateDirectory(roomJID, ir);
+			}
+		}
+	}
+
+	private static String getRoomName(RoomConfig roomConfig) {
+		String name = roomConfig.getRoomName();
+		return name == null || name.isEmpty() ? null : name;
+	}
+
+	/**
+	 * Checks if room was recently looked up in the database and was not found. Rooms known to exist (ie. created
+	 * later on) are never reported as missing.
+	 */
+	private boolean isRoomMissing(BareJID roomJID) {
+		final Long expiresAt = missingRooms.get(roomJID);
+		if (expiresAt == null) {
+			return false;
+		}
+		if (expiresAt < System.currentTimeMillis() || allRooms.containsKey(roomJID)) {
+			missingRooms.remove(roomJID, expiresAt);
+			return false;
+		}
+		return true;
+	}
+
+	private void addMissingRoom(BareJID roomJID) {
+		final long now = System.currentTimeMillis();
+		if (missingRooms.size() >= MISSING_ROOMS_MAX_SIZE) {
+			missingRooms.values().removeIf(expiresAt -> expiresAt < now);
+			if (missingRooms.size() >= MISSING_ROOMS_MAX_SIZE) {
+				missingRooms.clear();
+			}
+		}
+		missingRooms.put(roomJID, now + TimeUnit.SECONDS.toMillis(missingRoomsCacheTime));
+	}
+
+	private RoomWithId waitForRoom(BareJID roomJID, CompletableFuture<RoomWithId> loading)
+			throws RepositoryException {
+		try {
+			return loading.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RepositoryException("Interrupted while waiting for room " + roomJID + " to be loaded", ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RepositoryException) {
+				throw (RepositoryException) ex.getCause();
+			}
+			throw new RepositoryException("Could not load room " + roomJID, ex.getCause());
+		}
+	}
+
+	private long getRoomIdleTime(BareJID roomJID, long now) {
+		Long accessTime = roomsAccessTime.get(roomJID);
+		return accessTime == null ? Long.MAX_VALUE : now - accessTime;
+	}
+
 	private void fireDestroyRoom(Room room) {
 		Element emptyRoomEvent = new Element("RoomDestroyed", new String[]{"xmlns"}, new String[]{"tigase:events:muc"});
 		emptyRoomEvent.addChild(new Element("room", room.getRoomJID().toString()));
 		eventBus.fire(emptyRoomEvent);
 	}
 
+	/**
+	 * Marks room which is removed from memory in the map of rooms being loaded.
+	 */
+	private static class RoomEviction
+			extends CompletableFuture<RoomWithId> {
+
+	}
+
+	private static class EvictionCandidate {
+
+		private final long idleTime;
+		private final RoomWithId room;
+		private final BareJID roomJID;
+
+		private EvictionCandidate(BareJID roomJID, RoomWithId room, long idleTime) {
+			this.roomJID = roomJID;
+			this.room = room;
+			this.idleTime = idleTime;
+		}
+	}
+
 	public static class InternalRoom {
 
 		public boolean isPersistent = false;
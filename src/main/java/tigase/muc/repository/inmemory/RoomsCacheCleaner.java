@@ -0,0 +1,62 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.repository.inmemory;
+
+import tigase.component.ScheduledTask;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Inject;
+import tigase.muc.MUCComponent;
+import tigase.muc.repository.IMucRepository;
+
+import java.time.Duration;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically removes unused rooms from memory of {@link InMemoryMucRepository}.
+ */
+@Bean(name = "rooms-cache-cleaner", parent = MUCComponent.class, active = true)
+public class RoomsCacheCleaner
+		extends ScheduledTask {
+
+	private static final Logger log = Logger.getLogger(RoomsCacheCleaner.class.getName());
+
+	@Inject
+	private IMucRepository repository;
+
+	public RoomsCacheCleaner() {
+		super(Duration.ofMinutes(1), Duration.ofMinutes(1));
+	}
+
+	@Override
+	public void run() {
+		if (!(repository instanceof InMemoryMucRepository)) {
+			return;
+		}
+		InMemoryMucRepository inMemoryRepository = (InMemoryMucRepository) repository;
+		if (!inMemoryRepository.isRoomsCacheEnabled()) {
+			return;
+		}
+		try {
+			inMemoryRepository.evictRooms(System.currentTimeMillis());
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Problem on removing unused rooms from memory", e);
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import static org.junit.Assert.*;
+
+public class PresenceStoreTest {
+
+	private final BareJID jid = BareJID.bareJIDInstanceNS("crone1@shakespeare.lit");
+
+	@Test
+	public void testParsePriority() {
+		assertEquals(0, PresenceStore.parsePriority(null));
+		assertEquals(0, PresenceStore.parsePriority(""));
+		assertEquals(5, PresenceStore.parsePriority(" 5 "));
+		assertEquals(-1, PresenceStore.parsePriority("-1"));
+		assertEquals(127, PresenceStore.parsePriority("+127"));
+		assertEquals(0, PresenceStore.parsePriority("abc"));
+		assertEquals(0, PresenceStore.parsePriority("-"));
+	}
+
+	@Test
+	public void testPreferePriority() throws Exception {
+		PresenceStore store = new PresenceStore(PresenceStore.PresenceDeliveryLogic.PREFERE_PRIORITY);
+		store.update(presence("desktop", null, 5));
+		store.update(presence("mobile", null, 1));
+		assertEquals("desktop", store.getBestPresenceInt(jid).getFrom().getResource());
+		assertTrue(store.isAvailable(jid));
+		assertEquals(2, store.getAllKnownJIDs().size());
+
+		// best resource lowers its priority
+		store.update(presence("desktop", null, 0));
+		assertEquals("mobile", store.getBestPresenceInt(jid).getFrom().getResource());
+
+		store.update(presence("mobile", "unavailable", 0));
+		assertEquals("desktop", store.getBestPresenceInt(jid).getFrom().getResource());
+		assertNull(store.getPresence(JID.jidInstanceNS(jid, "mobile")));
+
+		store.remove(JID.jidInstanceNS(jid, "desktop"));
+		assertNull(store.getBestPresence(jid));
+		assertFalse(store.isAvailable(jid));
+	}
+
+	@Test
+	public void testPrefereLast() throws Exception {
+		PresenceStore store = new PresenceStore(PresenceStore.PresenceDeliveryLogic.PREFERE_LAST);
+		store.update(presence("desktop", null, 5));
+		store.update(presence("mobile", null, 1));
+		assertEquals("mobile", store.getBestPresenceInt(jid).getFrom().getResource());
+
+		store.remove(JID.jidInstanceNS(jid, "mobile"));
+		assertEquals("desktop", store.getBestPresenceInt(jid).getFrom().getResource());
+		assertNotNull(store.getPresence(JID.jidInstanceNS(jid, "desktop")));
+	}
+
+	private Element presence(String resource, String type, int priority) {
+		Element presence = new Element("presence", new String[]{"from"},
+									   new String[]{JID.jidInstanceNS(jid, resource).toString()});
+		if (type != null) {
+			presence.setAttribute("type", type);
+		}
+		presence.addChild(new Element("priority", String.valueOf(priority)));
+		return presence;
+	}
+
+}
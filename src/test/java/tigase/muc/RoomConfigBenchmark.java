@@ -0,0 +1,89 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.form.Form;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading values of room configuration used while processing messages and presences from the form (as it
+ * was done before typed snapshot was introduced) with reading them from {@link RoomConfig.Snapshot}.
+ * <br>
+ * Run <code>main()</code> method with test classpath to execute the benchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomConfigBenchmark {
+
+	private RoomConfig config;
+	private Form form;
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(RoomConfigBenchmark.class.getSimpleName()).build()).run();
+	}
+
+	@Setup
+	public void setup() {
+		config = new RoomConfig(BareJID.bareJIDInstanceNS("darkcave@macbeth.shakespeare.lit"));
+		config.setValue(RoomConfig.TIGASE_ROOMCONFIG_PRESENCE_FILTERING, Boolean.TRUE);
+		config.setValue(RoomConfig.TIGASE_ROOMCONFIG_PRESENCE_FILTERED_AFFILIATIONS,
+						new String[]{Affiliation.owner.name(), Affiliation.admin.name()});
+		config.setValue(RoomConfig.MUC_ROOMCONFIG_MODERATEDROOM_KEY, Boolean.TRUE);
+		form = config.getConfigForm();
+	}
+
+	@Benchmark
+	public void readFromForm(Blackhole blackhole) {
+		blackhole.consume(form.getAsBoolean(RoomConfig.TIGASE_ROOMCONFIG_PRESENCE_FILTERING));
+		List<Affiliation> affiliations = new ArrayList<>();
+		for (String value : form.getAsStrings(RoomConfig.TIGASE_ROOMCONFIG_PRESENCE_FILTERED_AFFILIATIONS)) {
+			affiliations.add(Affiliation.valueOf(value));
+		}
+		blackhole.consume(affiliations.contains(Affiliation.member));
+		blackhole.consume(PresenceStore.PresenceDeliveryLogic.valueOf(
+				form.getAsString(RoomConfig.TIGASE_ROOMCONFIG_PRESENCE_DELIVERY_LOGIC)));
+		blackhole.consume(RoomConfig.WhoisPrivilege.valueOf(form.getAsString(RoomConfig.MUC_ROOMCONFIG_WHOIS_KEY)));
+		blackhole.consume(form.getAsBoolean(RoomConfig.MUC_ROOMCONFIG_MODERATEDROOM_KEY));
+		blackhole.consume(form.getAsInteger(RoomConfig.MUC_ROOMCONFIG_MAXHISTORY_KEY));
+	}
+
+	@Benchmark
+	public void readFromSnapshot(Blackhole blackhole) {
+		RoomConfig.Snapshot snapshot = config.getSnapshot();
+		blackhole.consume(snapshot.isPresenceFilterEnabled());
+		blackhole.consume(snapshot.getPresenceFilteredAffiliations().contains(Affiliation.member));
+		blackhole.consume(snapshot.getPresenceDeliveryLogic());
+		blackhole.consume(snapshot.getWhois());
+		blackhole.consume(snapshot.isRoomModerated());
+		blackhole.consume(snapshot.getMaxHistory());
+	}
+
+}
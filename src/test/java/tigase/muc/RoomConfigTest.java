@@ -24,10 +24,10 @@ import tigase.form.Form;
 import tigase.xmpp.jid.BareJID;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class RoomConfigTest {
 
@@ -97,4 +97,40 @@ public class RoomConfigTest {
 		assertEquals(RoomConfig.WhoisPrivilege.moderators, rc1.getWhois());
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testSnapshotUpdate() throws Exception {
+		RoomConfig rc = new RoomConfig(BareJID.bareJIDInstance("a@b"));
+		RoomConfig.Snapshot snapshot = rc.getSnapshot();
+		assertSame(snapshot, rc.getSnapshot());
+		assertFalse(snapshot.isRoomModerated());
+		assertTrue(snapshot.getPresenceFilteredAffiliations().isEmpty());
+
+		rc.setValue(RoomConfig.MUC_ROOMCONFIG_MODERATEDROOM_KEY, Boolean.TRUE);
+		rc.setValue(RoomConfig.TIGASE_ROOMCONFIG_PRESENCE_FILTERED_AFFILIATIONS,
+					new String[]{Affiliation.owner.name(), "unknown"});
+		assertTrue(rc.isRoomModerated());
+		assertEquals(Collections.singleton(Affiliation.owner), rc.getSnapshot().getPresenceFilteredAffiliations());
+		assertFalse(snapshot.isRoomModerated());
+
+		RoomConfig copy = new RoomConfig(BareJID.bareJIDInstance("c@b"));
+		copy.getSnapshot();
+		copy.copyFrom(rc);
+		assertTrue(copy.isRoomModerated());
+
+		copy.getConfigForm().get(RoomConfig.MUC_ROOMCONFIG_MAXHISTORY_KEY).setValues(new String[]{"10"});
+		copy.notifyConfigUpdate();
+		assertEquals(Integer.valueOf(10), copy.getMaxHistory());
+	}
+
+	@Test
+	public void testSnapshotRebuiltAfterFormUpdate() throws Exception {
+		RoomConfig rc = new RoomConfig(BareJID.bareJIDInstance("d@b"));
+		Field maxHistory = rc.getConfigForm().get(RoomConfig.MUC_ROOMCONFIG_MAXHISTORY_KEY);
+		maxHistory.setValues(new String[]{"15"});
+		// snapshot built by a concurrent reader before the update is notified
+		rc.getSnapshot();
+		rc.notifyConfigUpdate();
+		assertEquals(Integer.valueOf(15), rc.getMaxHistory());
+	}
+
+}
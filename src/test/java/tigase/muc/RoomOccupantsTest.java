@@ -0,0 +1,283 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class RoomOccupantsTest {
+
+	private final BareJID roomJID = BareJID.bareJIDInstanceNS("darkcave@macbeth.shakespeare.lit");
+	private final JID crone1Desktop = JID.jidInstanceNS("crone1@shakespeare.lit/desktop");
+	private final JID crone1Mobile = JID.jidInstanceNS("crone1@shakespeare.lit/mobile");
+	private final JID wiccarocks = JID.jidInstanceNS("wiccarocks@shakespeare.lit/laptop");
+	private Room room;
+
+	@Before
+	public void setUp() {
+		room = new Room(new RoomConfig(roomJID), new Date(), crone1Desktop.getBareJID());
+	}
+
+	@Test
+	public void testOccupantsIndexes() throws Exception {
+		room.addOccupantByJid(crone1Desktop, "firstwitch", Role.moderator, presence(crone1Desktop, "firstwitch"));
+		room.addOccupantByJid(crone1Mobile, "firstwitch", Role.moderator, presence(crone1Mobile, "firstwitch"));
+		room.addOccupantByJid(wiccarocks, "secondwitch", Role.participant, presence(wiccarocks, "secondwitch"));
+
+		assertEquals("firstwitch", room.getOccupantsNickname(crone1Desktop));
+		assertEquals("firstwitch", room.getOccupantsNickname(crone1Mobile));
+		assertEquals("secondwitch", room.getOccupantsNickname(wiccarocks));
+		assertTrue(room.isOccupantInRoom(crone1Mobile));
+		assertTrue(room.isOccupantOnline(crone1Desktop.getBareJID()));
+		assertEquals(Set.of("firstwitch"), Set.copyOf(room.getOccupantsNicknames(crone1Desktop.getBareJID())));
+
+		room.changeNickName(crone1Desktop, "oldwitch");
+		assertEquals("oldwitch", room.getOccupantsNickname(crone1Mobile));
+		assertEquals(Set.of("oldwitch"), Set.copyOf(room.getOccupantsNicknames(crone1Desktop.getBareJID())));
+		assertEquals(Role.none, room.getRole("firstwitch"));
+
+		assertFalse(room.removeOccupant(crone1Desktop));
+		assertNull(room.getOccupantsNickname(crone1Desktop));
+		assertTrue(room.isOccupantOnline(crone1Desktop.getBareJID()));
+		assertTrue(room.removeOccupant(crone1Mobile));
+		assertFalse(room.isOccupantOnline(crone1Desktop.getBareJID()));
+		assertTrue(room.getOccupantsNicknames(crone1Desktop.getBareJID()).isEmpty());
+
+		room.removeOccupant("secondwitch");
+		assertFalse(room.isOccupantInRoom(wiccarocks));
+		assertFalse(room.isOccupantOnline(wiccarocks.getBareJID()));
+	}
+
+	@Test
+	public void testPersistentOccupantsNicknames() throws Exception {
+		BareJID hag66 = BareJID.bareJIDInstanceNS("hag66@shakespeare.lit");
+		BareJID wiccarocksBare = wiccarocks.getBareJID();
+
+		room.setAffiliations(Map.of(hag66, RoomAffiliation.from(Affiliation.member, true, "thirdwitch")));
+		assertEquals(hag66, room.getOccupantsJidByNickname("thirdwitch"));
+		assertEquals(Role.participant, room.getRole("thirdwitch"));
+
+		room.addAffiliationByJid(wiccarocksBare, RoomAffiliation.from(Affiliation.admin, true, "secondwitch"));
+		assertEquals(wiccarocksBare, room.getOccupantsJidByNickname("secondwitch"));
+		assertEquals(Role.moderator, room.getRole("secondwitch"));
+
+		room.setNewAffiliation(hag66, RoomAffiliation.from(Affiliation.member, true, "fourthwitch"));
+		assertNull(room.getOccupantsJidByNickname("thirdwitch"));
+		assertEquals(hag66, room.getOccupantsJidByNickname("fourthwitch"));
+
+		room.addAffiliationByJid(wiccarocksBare, RoomAffiliation.member);
+		assertNull(room.getOccupantsJidByNickname("secondwitch"));
+		assertTrue(room.getOccupantsJidsByNickname("secondwitch").isEmpty());
+		assertEquals(Set.of(JID.jidInstanceNS(hag66, "fourthwitch")),
+					 Set.copyOf(room.getOccupantsJidsByNickname("fourthwitch")));
+	}
+
+	@Test
+	public void testDeliveryRoster() throws Exception {
+		BareJID hag66 = BareJID.bareJIDInstanceNS("hag66@shakespeare.lit");
+		room.addAffiliationByJid(hag66, RoomAffiliation.memberPersistent);
+		room.addOccupantByJid(crone1Desktop, "firstwitch", Role.moderator, presence(crone1Desktop, "firstwitch"));
+
+		Room.DeliveryRoster roster = room.getDeliveryRoster();
+		assertSame(roster, room.getDeliveryRoster());
+		assertEquals(Set.of(crone1Desktop, JID.jidInstanceNS(hag66)), rosterJids(roster));
+
+		room.addOccupantByJid(wiccarocks, "secondwitch", Role.participant, presence(wiccarocks, "secondwitch"));
+		assertFalse(room.isDeliveryRosterCurrent(roster));
+		roster = room.getDeliveryRoster();
+		assertTrue(room.isDeliveryRosterCurrent(roster));
+		assertEquals(Set.of(crone1Desktop, wiccarocks, JID.jidInstanceNS(hag66)), rosterJids(roster));
+
+		room.setNewRole("secondwitch", Role.none);
+		assertEquals(Set.of(crone1Desktop, JID.jidInstanceNS(hag66)), rosterJids(room.getDeliveryRoster()));
+
+		room.addAffiliationByJid(hag66, RoomAffiliation.none);
+		assertEquals(Set.of(crone1Desktop), rosterJids(room.getDeliveryRoster()));
+	}
+
+	@Test
+	public void testOccupantsCount() throws Exception {
+		BareJID hag66 = BareJID.bareJIDInstanceNS("hag66@shakespeare.lit");
+		assertEquals(0, room.getOccupantsCount());
+
+		room.setAffiliations(Map.of(hag66, RoomAffiliation.memberPersistent, crone1Desktop.getBareJID(),
+									RoomAffiliation.ownerPersistent, wiccarocks.getBareJID(), RoomAffiliation.member));
+		assertEquals(2, room.getOccupantsCount());
+
+		room.addOccupantByJid(crone1Desktop, "firstwitch", Role.moderator, presence(crone1Desktop, "firstwitch"));
+		room.addOccupantByJid(crone1Mobile, "firstwitch", Role.moderator, presence(crone1Mobile, "firstwitch"));
+		assertEquals(2, room.getOccupantsCount());
+
+		room.addOccupantByJid(wiccarocks, "secondwitch", Role.participant, presence(wiccarocks, "secondwitch"));
+		assertEquals(3, room.getOccupantsCount());
+
+		room.changeNickName(crone1Mobile, "oldwitch");
+		assertEquals(3, room.getOccupantsCount());
+
+		room.addAffiliationByJid(hag66, RoomAffiliation.none);
+		assertEquals(2, room.getOccupantsCount());
+
+		room.removeOccupant(crone1Desktop);
+		room.removeOccupant(crone1Mobile);
+		assertEquals(2, room.getOccupantsCount());
+
+		room.setNewAffiliation(crone1Desktop.getBareJID(), RoomAffiliation.owner);
+		assertEquals(1, room.getOccupantsCount());
+
+		room.removeOccupant("secondwitch");
+		assertEquals(0, room.getOccupantsCount());
+	}
+
+	@Test
+	public void testOccupantsCountConcurrentChanges() throws Exception {
+		final int users = 20;
+		final int iterations = 500;
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for (int i = 0; i < users; i++) {
+				final JID jid = JID.jidInstanceNS("witch" + i + "@shakespeare.lit/cauldron");
+				final String nickname = "witch" + i;
+				final CyclicBarrier barrier = new CyclicBarrier(2);
+				final List<Future<?>> futures = new ArrayList<>();
+				futures.add(executor.submit(() -> {
+					barrier.await();
+					for (int j = 0; j < iterations; j++) {
+						room.addAffiliationByJid(jid.getBareJID(), RoomAffiliation.memberPersistent);
+						room.setNewAffiliation(jid.getBareJID(), RoomAffiliation.member);
+					}
+					room.addAffiliationByJid(jid.getBareJID(), RoomAffiliation.memberPersistent);
+					return null;
+				}));
+				futures.add(executor.submit(() -> {
+					barrier.await();
+					for (int j = 0; j < iterations; j++) {
+						room.addOccupantByJid(jid, nickname, Role.participant, presence(jid, nickname));
+						room.removeOccupant(jid);
+					}
+					return null;
+				}));
+				for (Future<?> future : futures) {
+					future.get();
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		// every user is an offline persistent occupant now
+		assertEquals(users, room.getOccupantsCount());
+		room.addOccupantByJid(crone1Desktop, "firstwitch", Role.moderator, presence(crone1Desktop, "firstwitch"));
+		assertEquals(users + 1, room.getOccupantsCount());
+	}
+
+	@Test
+	public void testRenderedPresencesInvalidation() throws Exception {
+		room.addOccupantByJid(crone1Desktop, "firstwitch", Role.moderator, presence(crone1Desktop, "firstwitch"));
+		room.addOccupantByJid(wiccarocks, "secondwitch", Role.participant, presence(wiccarocks, "secondwitch"));
+
+		// presence invalidated while it is rendered is not cached
+		Object first = room.startRenderingPresence("firstwitch");
+		Object second = room.startRenderingPresence("secondwitch");
+		room.setNewRole("firstwitch", Role.participant);
+		room.putRenderedPresence("firstwitch", first, rendered("firstwitch"));
+		assertNull(room.getRenderedPresence("firstwitch"));
+
+		// invalidation of other occupant does not prevent caching
+		RenderedPresence rendered = rendered("secondwitch");
+		room.putRenderedPresence("secondwitch", second, rendered);
+		assertSame(rendered, room.getRenderedPresence("secondwitch"));
+
+		// token is valid only until presence is rendered again
+		Object outdated = room.startRenderingPresence("firstwitch");
+		Object current = room.startRenderingPresence("firstwitch");
+		room.putRenderedPresence("firstwitch", outdated, rendered("firstwitch"));
+		assertNull(room.getRenderedPresence("firstwitch"));
+		rendered = rendered("firstwitch");
+		room.putRenderedPresence("firstwitch", current, rendered);
+		assertSame(rendered, room.getRenderedPresence("firstwitch"));
+
+		room.setNewRole("firstwitch", Role.moderator);
+		assertNull(room.getRenderedPresence("firstwitch"));
+		assertNotNull(room.getRenderedPresence("secondwitch"));
+
+		// change of affiliation invalidates only presences of the affected user
+		room.putRenderedPresence("firstwitch", room.startRenderingPresence("firstwitch"), rendered("firstwitch"));
+		room.addAffiliationByJid(wiccarocks.getBareJID(), RoomAffiliation.member);
+		assertNull(room.getRenderedPresence("secondwitch"));
+		assertNotNull(room.getRenderedPresence("firstwitch"));
+
+		room.putRenderedPresence("secondwitch", room.startRenderingPresence("secondwitch"), rendered("secondwitch"));
+		room.setNewAffiliation(crone1Desktop.getBareJID(), RoomAffiliation.admin);
+		assertNull(room.getRenderedPresence("firstwitch"));
+		assertNotNull(room.getRenderedPresence("secondwitch"));
+	}
+
+	@Test
+	public void testRenderedPacketsIndependent() throws Exception {
+		Element presence = presence(crone1Desktop, "firstwitch");
+		Element x = new Element("x", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/muc#user"});
+		x.addChild(new Element("item", new String[]{"affiliation", "role"}, new String[]{"owner", "moderator"}));
+		presence.addChild(x);
+		presence.addChild(new Element("show", "away"));
+		RenderedPresence rendered = new RenderedPresence(JID.jidInstanceNS(roomJID, "firstwitch"), List.of(presence),
+														 List.of(presence));
+
+		Element first = rendered.createPackets(crone1Mobile, true).get(0).getElement();
+		Element second = rendered.createPackets(wiccarocks, true).get(0).getElement();
+		String expected = second.toString();
+
+		first.setAttribute("type", "unavailable");
+		first.removeChild(first.getChild("show"));
+		first.addChild(new Element("status", "gone"));
+
+		assertEquals(expected, second.toString());
+		assertEquals(expected, rendered.createPackets(wiccarocks, true).get(0).getElement().toString());
+		assertNotNull(presence.getChild("show"));
+		assertNull(presence.getChild("status"));
+	}
+
+	private RenderedPresence rendered(String nickname) {
+		final List<Element> presences = List.of(presence(crone1Desktop, nickname));
+		return new RenderedPresence(JID.jidInstanceNS(roomJID, nickname), presences, presences);
+	}
+
+	private static Set<JID> rosterJids(Room.DeliveryRoster roster) {
+		Set<JID> result = new HashSet<>();
+		roster.forEach(result::add);
+		assertEquals(roster.size(), result.size());
+		return result;
+	}
+
+	private static Element presence(JID from, String nickname) {
+		Element presence = new Element("presence");
+		presence.setAttribute("from", from.toString());
+		presence.setAttribute("to", "darkcave@macbeth.shakespeare.lit/" + nickname);
+		return presence;
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HistoryCacheTest {
+
+	private final BareJID roomJID = BareJID.bareJIDInstanceNS("darkcave@macbeth.shakespeare.lit");
+
+	@Test
+	public void testLoadAndAdd() throws Exception {
+		HistoryCache cache = new HistoryCache(5, 10);
+		List<HistoryCache.Item> stored = items(3, 1000);
+		AtomicInteger loads = new AtomicInteger();
+		HistoryCache.Loader loader = (jid, limit) -> {
+			loads.incrementAndGet();
+			return new ArrayList<>(stored);
+		};
+
+		// message added before history was loaded (it may not be stored in the database yet) is merged with it
+		HistoryCache.Item pending = item(1500);
+		cache.add(roomJID, pending);
+		List<HistoryCache.Item> expected = new ArrayList<>(stored);
+		expected.add(pending);
+		assertEquals(expected, cache.getMessages(roomJID, 50, null, loader));
+		assertEquals(expected.subList(2, 4), cache.getMessages(roomJID, 2, null, loader));
+		assertEquals(1, loads.get());
+
+		List<HistoryCache.Item> added = items(4, 2000);
+		added.forEach(item -> cache.add(roomJID, item));
+		assertEquals(added.subList(1, 4), cache.getMessages(roomJID, 3, null, loader));
+		assertEquals(added, cache.getMessages(roomJID, 50, new Date(2000), loader));
+		// 5 newest messages are cached, older may exist only in the database
+		assertNull(cache.getMessages(roomJID, 50, null, loader));
+		assertNull(cache.getMessages(roomJID, 50, new Date(1001), loader));
+		assertEquals(1, loads.get());
+
+		cache.invalidate(roomJID);
+		assertEquals(stored, cache.getMessages(roomJID, 50, null, loader));
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testAddWhileLoading() throws Exception {
+		HistoryCache cache = new HistoryCache(5, 10);
+		List<HistoryCache.Item> stored = items(2, 1000);
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		HistoryCache.Loader loader = (jid, limit) -> {
+			loading.countDown();
+			release.await();
+			return new ArrayList<>(stored);
+		};
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<List<HistoryCache.Item>> result = executor.submit(
+					() -> cache.getMessages(roomJID, 50, null, loader));
+			assertTrue(loading.await(5, TimeUnit.SECONDS));
+			// message already stored in the database is returned by loader as well
+			cache.add(roomJID, stored.get(1));
+			// message not stored in the database yet
+			HistoryCache.Item added = item(2000);
+			cache.add(roomJID, added);
+			release.countDown();
+
+			List<HistoryCache.Item> expected = new ArrayList<>(stored);
+			expected.add(added);
+			assertEquals(expected, result.get(5, TimeUnit.SECONDS));
+			assertEquals(expected, cache.getMessages(roomJID, 50, null, loader));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		HistoryCache cache = new HistoryCache(5, 2);
+		HistoryCache.Loader loader = (jid, limit) -> items(1, 1000);
+		for (int i = 0; i < 3; i++) {
+			cache.getMessages(BareJID.bareJIDInstanceNS("room" + i + "@macbeth.shakespeare.lit"), 10, null, loader);
+		}
+		assertEquals(2, cache.size());
+	}
+
+	private static List<HistoryCache.Item> items(int count, long firstTimestamp) {
+		List<HistoryCache.Item> items = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			items.add(item(firstTimestamp + i));
+		}
+		return items;
+	}
+
+	private static HistoryCache.Item item(long timestamp) {
+		return new HistoryCache.Item("firstwitch", UUID.randomUUID().toString(), timestamp,
+									 "crone1@shakespeare.lit/desktop", "body", null);
+	}
+
+}
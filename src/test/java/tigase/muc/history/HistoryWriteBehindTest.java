@@ -0,0 +1,256 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.After;
+import org.junit.Test;
+import tigase.component.PacketWriter;
+import tigase.db.DataSource;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class HistoryWriteBehindTest {
+
+	private final JID senderJID = JID.jidInstanceNS("crone1@shakespeare.lit/desktop");
+	private final RecordingHistoryProvider provider = new RecordingHistoryProvider();
+	private final HistoryWriteBehind writeBehind = new HistoryWriteBehind();
+
+	private static void setField(Object object, String name, Object value) throws Exception {
+		Field field = object.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(object, value);
+	}
+
+	@After
+	public void tearDown() {
+		provider.release();
+		writeBehind.beforeUnregister();
+	}
+
+	@Test
+	public void testQueueFullFallback() throws Exception {
+		init(1, 1, HistoryWriteBehind.Durability.fireAndForget);
+		Room room = createRoom("darkcave@macbeth.shakespeare.lit");
+		provider.block();
+
+		addMessage(room, "1");
+		// wait until writer takes message and is blocked storing it
+		while (writeBehind.getQueueSize() > 0) {
+			Thread.sleep(1);
+		}
+		addMessage(room, "2");
+		assertEquals(1, writeBehind.getQueueSize());
+		addMessage(room, "3");
+		assertEquals(List.of("3"), provider.getBodies(room));
+		assertEquals(Thread.currentThread().getName(), provider.threads.get("3"));
+
+		provider.release();
+		writeBehind.beforeUnregister();
+		assertEquals(List.of("3", "1", "2"), provider.getBodies(room));
+		assertNotEquals(Thread.currentThread().getName(), provider.threads.get("1"));
+	}
+
+	@Test
+	public void testOrderWithinRoom() throws Exception {
+		init(4, 10000, HistoryWriteBehind.Durability.fireAndForget);
+		List<Room> rooms = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			rooms.add(createRoom("room" + i + "@macbeth.shakespeare.lit"));
+		}
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			expected.add(String.valueOf(i));
+			for (Room room : rooms) {
+				addMessage(room, String.valueOf(i));
+			}
+		}
+
+		writeBehind.beforeUnregister();
+		for (Room room : rooms) {
+			assertEquals(expected, provider.getBodies(room));
+		}
+	}
+
+	@Test
+	public void testDrainOnShutdown() throws Exception {
+		init(2, 1000, HistoryWriteBehind.Durability.fireAndForget);
+		Room room = createRoom("darkcave@macbeth.shakespeare.lit");
+		provider.delay = 1;
+		for (int i = 0; i < 200; i++) {
+			addMessage(room, String.valueOf(i));
+		}
+
+		writeBehind.beforeUnregister();
+		assertEquals(200, provider.getBodies(room).size());
+		assertEquals(0, writeBehind.getQueueSize());
+
+		// writers are stopped, message is stored by the calling thread
+		addMessage(room, "after");
+		assertEquals(Thread.currentThread().getName(), provider.threads.get("after"));
+	}
+
+	@Test
+	public void testWaitForAckAfterStored() throws Exception {
+		init(1, 10, HistoryWriteBehind.Durability.waitForAck);
+		Room room = createRoom("darkcave@macbeth.shakespeare.lit");
+		// provider confirms storage asynchronously, as when messages are stored in batches
+		provider.ackDelay = 100;
+
+		addMessage(room, "1");
+		assertTrue(provider.acks.get("1").isDone());
+		assertEquals(List.of("1"), provider.getBodies(room));
+	}
+
+	private void init(int writers, int queueSize, HistoryWriteBehind.Durability durability) throws Exception {
+		setField(writeBehind, "historyProvider", provider);
+		setField(writeBehind, "writersCount", writers);
+		setField(writeBehind, "queueSize", queueSize);
+		setField(writeBehind, "durability", durability);
+		writeBehind.initialize();
+	}
+
+	private void addMessage(Room room, String body) {
+		Element message = new Element("message", new String[]{"type"}, new String[]{"groupchat"});
+		message.addChild(new Element("body", body));
+		writeBehind.addMessage(room, message, body, senderJID, "firstwitch", new Date(),
+							   UUID.randomUUID().toString());
+	}
+
+	private Room createRoom(String jid) {
+		return new Room(new RoomConfig(BareJID.bareJIDInstanceNS(jid)), new Date(), senderJID.getBareJID()) {
+		};
+	}
+
+	private static class RecordingHistoryProvider
+			implements HistoryProvider<DataSource> {
+
+		private final Map<String, CompletableFuture<Void>> acks = Collections.synchronizedMap(new HashMap<>());
+		private final Map<BareJID, List<String>> bodies = new HashMap<>();
+		private final Map<String, String> threads = Collections.synchronizedMap(new HashMap<>());
+		private volatile long ackDelay = 0;
+		private volatile CountDownLatch blocker;
+		private volatile long delay = 0;
+
+		@Override
+		public void addJoinEvent(Room room, Date date, JID senderJID, String nickName) {
+		}
+
+		@Override
+		public void addLeaveEvent(Room room, Date date, JID senderJID, String nickName) {
+		}
+
+		@Override
+		public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname,
+							   Date time) {
+			addMessage(room, message, body, senderJid, senderNickname, time, null);
+		}
+
+		@Override
+		public void addMessage(Room room, Element message, String body, JID senderJid, String senderNickname,
+							   Date time, String stableId) {
+			final String thread = Thread.currentThread().getName();
+			final CountDownLatch blocker = this.blocker;
+			try {
+				if (blocker != null && thread.startsWith("muc-history-writer")) {
+					blocker.await(10, TimeUnit.SECONDS);
+				}
+				if (delay > 0) {
+					Thread.sleep(delay);
+				}
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+			threads.put(body, thread);
+			synchronized (bodies) {
+				bodies.computeIfAbsent(room.getRoomJID(), jid -> new ArrayList<>()).add(body);
+			}
+		}
+
+		@Override
+		public CompletableFuture<Void> addMessageWithAck(Room room, Element message, String body, JID senderJid,
+														 String senderNickname, Date time, String stableId) {
+			final CompletableFuture<Void> ack = new CompletableFuture<>();
+			acks.put(body, ack);
+			CompletableFuture.runAsync(() -> {
+				try {
+					Thread.sleep(ackDelay);
+				} catch (InterruptedException ex) {
+					throw new RuntimeException(ex);
+				}
+				addMessage(room, message, body, senderJid, senderNickname, time, stableId);
+				ack.complete(null);
+			});
+			return ack;
+		}
+
+		@Override
+		public void addSubjectChange(Room room, Element message, String subject, JID senderJid,
+									 String senderNickname, Date time) {
+		}
+
+		@Override
+		public void destroy() {
+		}
+
+		@Override
+		public void getHistoryMessages(Room room, JID senderJID, Integer maxchars, Integer maxstanzas,
+									   Integer seconds, Date since, PacketWriter writer) {
+		}
+
+		@Override
+		public boolean isPersistent(Room room) {
+			return true;
+		}
+
+		@Override
+		public void removeHistory(Room room) {
+		}
+
+		@Override
+		public void setDataSource(DataSource dataSource) {
+		}
+
+		private void block() {
+			blocker = new CountDownLatch(1);
+		}
+
+		private List<String> getBodies(Room room) {
+			synchronized (bodies) {
+				return new ArrayList<>(bodies.getOrDefault(room.getRoomJID(), Collections.emptyList()));
+			}
+		}
+
+		private void release() {
+			final CountDownLatch blocker = this.blocker;
+			if (blocker != null) {
+				blocker.countDown();
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.After;
+import org.junit.Test;
+import tigase.db.DataRepository;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static org.junit.Assert.*;
+
+public class JDBCHistoryProviderBatchingTest {
+
+	private static final String ADD_MESSAGE_QUERY = "{ call Tig_MUC_AddMessage(?,?,?,?,?,?,?,?) }";
+	private static final String DELETE_MESSAGES_QUERY = "{ call Tig_MUC_DeleteMessages(?) }";
+
+	private final MockDataRepository repo = new MockDataRepository();
+	private final JDBCHistoryProvider provider = new JDBCHistoryProvider();
+	private final JID senderJID = JID.jidInstanceNS("crone1@shakespeare.lit/desktop");
+	private final Room room = new Room(new RoomConfig(BareJID.bareJIDInstanceNS("darkcave@macbeth.shakespeare.lit")),
+									   new Date(), senderJID.getBareJID()) {
+	};
+
+	private static void setField(Object object, String name, Object value) throws Exception {
+		Field field = object.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(object, value);
+	}
+
+	@After
+	public void tearDown() {
+		provider.destroy();
+	}
+
+	@Test
+	public void testBatchedFlush() throws Exception {
+		init(5);
+		List<CompletableFuture<Void>> acks = addMessages("1", "2", "3", "4", "5");
+		for (CompletableFuture<Void> ack : acks) {
+			ack.get(5, TimeUnit.SECONDS);
+		}
+
+		assertEquals(List.of("executeBatch:" + ADD_MESSAGE_QUERY + ":5"), repo.getEvents("executeBatch"));
+		assertEquals(5, repo.getEvents("batch:").size());
+		assertTrue(repo.getEvents("executeUpdate").isEmpty());
+		assertEquals(1, repo.getEvents("commit").size());
+		assertEquals(repo.getEvents("takeRepoHandle").size(), repo.getEvents("releaseRepoHandle").size());
+
+		StatisticsList list = getStatistics();
+		assertEquals(1, list.getValue("muc", "muc-history/Batches stored", -1L));
+		assertEquals(0, list.getValue("muc", "muc-history/Batches failed", -1L));
+		assertEquals(5, list.getValue("muc", "muc-history/Last batch size", -1L));
+	}
+
+	@Test
+	public void testBatchOnPostgreSQL() throws Exception {
+		repo.setDatabaseType(DataRepository.dbTypes.postgresql);
+		init(5);
+		List<CompletableFuture<Void>> acks = addMessages("1", "2", "3", "4", "5");
+		for (CompletableFuture<Void> ack : acks) {
+			ack.get(5, TimeUnit.SECONDS);
+		}
+
+		// procedures are called one by one, but in a single transaction
+		assertTrue(repo.getEvents("executeBatch").isEmpty());
+		assertEquals(5, repo.getEvents("executeUpdate:" + ADD_MESSAGE_QUERY).size());
+		assertEquals(1, repo.getEvents("startTransaction").size());
+		assertEquals(1, repo.getEvents("commit").size());
+		assertEquals(1, getStatistics().getValue("muc", "muc-history/Batches stored", -1L));
+	}
+
+	@Test
+	public void testFailedBatchStoredOneByOne() throws Exception {
+		repo.setFailure(event -> event.startsWith("executeBatch") ||
+				(event.startsWith("executeUpdate") && event.contains("poisoned")));
+		init(5);
+		List<CompletableFuture<Void>> acks = addMessages("1", "2", "poisoned", "4", "5");
+		for (int i = 0; i < acks.size(); i++) {
+			if (i == 2) {
+				try {
+					acks.get(i).get(5, TimeUnit.SECONDS);
+					fail("Storing of invalid message should fail");
+				} catch (ExecutionException ex) {
+					// expected
+				}
+			} else {
+				acks.get(i).get(5, TimeUnit.SECONDS);
+			}
+		}
+
+		assertEquals(1, repo.getEvents("rollback").size());
+		assertTrue(repo.getEvents("commit").isEmpty());
+		assertEquals(5, repo.getEvents("executeUpdate:" + ADD_MESSAGE_QUERY).size());
+
+		StatisticsList list = getStatistics();
+		assertEquals(1, list.getValue("muc", "muc-history/Batches failed", -1L));
+		assertEquals(1, list.getValue("muc", "muc-history/Batches stored", -1L));
+	}
+
+	@Test
+	public void testWithoutBatching() throws Exception {
+		init(0);
+		List<CompletableFuture<Void>> acks = addMessages("1", "2");
+		for (CompletableFuture<Void> ack : acks) {
+			assertTrue(ack.isDone());
+		}
+		assertEquals(2, repo.getEvents("executeUpdate:" + ADD_MESSAGE_QUERY).size());
+		assertTrue(repo.getEvents("startTransaction").isEmpty());
+		// statistics of batches are not reported if batching is disabled
+		assertEquals(-1, getStatistics().getValue("muc", "muc-history/Batches stored", -1L));
+	}
+
+	@Test
+	public void testRemoveHistoryNotBlockedByIdleWriter() throws Exception {
+		init(5);
+		// wait until writer waits for messages
+		Thread.sleep(100);
+
+		final long start = System.currentTimeMillis();
+		provider.removeHistory(room);
+		assertTrue("Removal of history should not wait for the end of batch window",
+				   System.currentTimeMillis() - start < 500);
+	}
+
+	@Test
+	public void testCollectedMessagesRemovedWithHistory() throws Exception {
+		init(5);
+		List<CompletableFuture<Void>> acks = addMessages("1", "2");
+		// wait until writer collects messages
+		Thread.sleep(100);
+
+		provider.removeHistory(room);
+		for (CompletableFuture<Void> ack : acks) {
+			assertTrue("Messages should be stored before history is removed", ack.isDone());
+		}
+		final List<String> events = repo.getEvents();
+		assertEquals(List.of("executeBatch:" + ADD_MESSAGE_QUERY + ":2"), repo.getEvents("executeBatch"));
+		assertTrue(events.indexOf("executeBatch:" + ADD_MESSAGE_QUERY + ":2") <
+						   events.indexOf(repo.getEvents("executeUpdate:" + DELETE_MESSAGES_QUERY).get(0)));
+
+		// writer does not store messages again
+		Thread.sleep(1500);
+		assertEquals(1, repo.getEvents("executeBatch").size());
+	}
+
+	@Test
+	public void testDestroyWaitsForWriter() throws Exception {
+		init(5);
+		List<CompletableFuture<Void>> acks = addMessages("1", "2");
+
+		provider.destroy();
+		for (CompletableFuture<Void> ack : acks) {
+			assertTrue("Messages should be stored before shutdown is finished", ack.isDone());
+		}
+		assertEquals(2, repo.getEvents("batch:").size());
+	}
+
+	private void init(int batchSize) throws Exception {
+		setField(provider, "batchSize", batchSize);
+		setField(provider, "batchWindow", 1000L);
+		provider.setDataSource(repo.getRepository());
+	}
+
+	private List<CompletableFuture<Void>> addMessages(String... bodies) {
+		List<CompletableFuture<Void>> acks = new ArrayList<>();
+		for (String body : bodies) {
+			Element message = new Element("message", new String[]{"type"}, new String[]{"groupchat"});
+			message.addChild(new Element("body", body));
+			acks.add(provider.addMessageWithAck(room, message, body, senderJID, "firstwitch", new Date(),
+												UUID.randomUUID().toString()));
+		}
+		return acks;
+	}
+
+	private StatisticsList getStatistics() {
+		StatisticsList list = new StatisticsList(Level.ALL);
+		provider.getHistoryStatistics("muc", list);
+		return list;
+	}
+}
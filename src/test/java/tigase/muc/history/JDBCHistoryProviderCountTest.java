@@ -0,0 +1,267 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+import tigase.xmpp.mam.MAMRepository;
+import tigase.xmpp.mam.Query;
+
+import java.lang.reflect.Field;
+import java.sql.Timestamp;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class JDBCHistoryProviderCountTest {
+
+	private static final String COUNT_QUERY = "{ call Tig_MUC_MAM_GetMessagesCount(?,?,?,?) }";
+	private static final String MESSAGES_QUERY = "{ call Tig_MUC_MAM_GetMessages(?,?,?,?,?,?) }";
+
+	private final List<Map<String, Object>> archive = Collections.synchronizedList(new ArrayList<>());
+	private final JID creatorJID = JID.jidInstanceNS("crone1@shakespeare.lit/desktop");
+	private final MockDataRepository repo = new MockDataRepository();
+	private final JDBCHistoryProvider provider = new JDBCHistoryProvider();
+	private final Room room = new Room(new RoomConfig(BareJID.bareJIDInstanceNS("darkcave@macbeth.shakespeare.lit")),
+									   new Date(), creatorJID.getBareJID()) {
+	};
+
+	private static void setField(Object object, String name, Object value) throws Exception {
+		Field field = object.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(object, value);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		final long now = System.currentTimeMillis();
+		for (int i = 0; i < 10; i++) {
+			archive.add(MockDataRepository.row("sender_nickname", "firstwitch", "stable_id", UUID.randomUUID().toString(),
+											   "ts", new Timestamp(now - 10000 + i), "sender_jid",
+											   creatorJID.toString(), "body", "message " + i, "msg", null));
+		}
+		repo.setResults(COUNT_QUERY, (q, params) -> {
+			final Timestamp end = (Timestamp) params.get(2);
+			int count = 0;
+			synchronized (archive) {
+				for (Map<String, Object> row : archive) {
+					if (end == null || !((Timestamp) row.get("ts")).after(end)) {
+						count++;
+					}
+				}
+			}
+			return List.of(MockDataRepository.row("count", count));
+		});
+		repo.setResults(MESSAGES_QUERY, (q, params) -> {
+			final int limit = (Integer) params.get(4);
+			final int offset = (Integer) params.get(5);
+			synchronized (archive) {
+				return new ArrayList<>(
+						archive.subList(Math.min(offset, archive.size()), Math.min(offset + limit, archive.size())));
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		provider.destroy();
+	}
+
+	@Test
+	public void testExactCount() throws Exception {
+		init(JDBCHistoryProvider.MAMCountMode.exact);
+
+		Query query = newQuery(5);
+		assertEquals(5, queryItems(query).size());
+		assertEquals(10, query.getRsm().getCount().intValue());
+
+		addMessage();
+		query = newQuery(5);
+		queryItems(query);
+		assertEquals(11, query.getRsm().getCount().intValue());
+		assertEquals(2, repo.getEvents("executeQuery:" + COUNT_QUERY).size());
+	}
+
+	@Test
+	public void testCachedCount() throws Exception {
+		init(JDBCHistoryProvider.MAMCountMode.cached);
+
+		Query query = newQuery(5);
+		assertEquals(5, queryItems(query).size());
+		assertEquals(10, query.getRsm().getCount().intValue());
+
+		addMessage();
+		query = newQuery(5);
+		queryItems(query);
+		assertEquals(11, query.getRsm().getCount().intValue());
+		assertEquals("Messages should be counted only once", 1,
+					 repo.getEvents("executeQuery:" + COUNT_QUERY).size());
+
+		provider.removeHistory(room);
+		archive.clear();
+		query = newQuery(5);
+		queryItems(query);
+		assertEquals(0, query.getRsm().getCount().intValue());
+		assertEquals(2, repo.getEvents("executeQuery:" + COUNT_QUERY).size());
+	}
+
+	@Test
+	public void testCachedCountOfMessagesAddedWhileCounting() throws Exception {
+		init(JDBCHistoryProvider.MAMCountMode.cached);
+		repo.setResults(COUNT_QUERY, (q, params) -> {
+			// message stored after counter was registered, but before the database counted messages
+			addMessage();
+			assertNotNull("Messages should be counted up to registration of the counter", params.get(2));
+			int count = 0;
+			synchronized (archive) {
+				for (Map<String, Object> row : archive) {
+					if (!((Timestamp) row.get("ts")).after((Timestamp) params.get(2))) {
+						count++;
+					}
+				}
+			}
+			return List.of(MockDataRepository.row("count", count));
+		});
+
+		Query query = newQuery(5);
+		queryItems(query);
+		assertEquals(11, query.getRsm().getCount().intValue());
+	}
+
+	@Test
+	public void testCachedCountRoomsLimit() throws Exception {
+		init(JDBCHistoryProvider.MAMCountMode.cached);
+		setField(provider, "mamCountCacheRooms", 2);
+
+		for (int i = 0; i < 5; i++) {
+			Query query = newQuery(5);
+			query.setComponentJID(JID.jidInstanceNS("room" + i + "@macbeth.shakespeare.lit"));
+			queryItems(query);
+		}
+
+		Field field = JDBCHistoryProvider.class.getDeclaredField("roomMessagesCount");
+		field.setAccessible(true);
+		assertTrue(((Map<?, ?>) field.get(provider)).size() <= 2);
+	}
+
+	@Test
+	public void testCachedCountOfRecentlyUsedRoomKept() throws Exception {
+		init(JDBCHistoryProvider.MAMCountMode.cached);
+		setField(provider, "mamCountCacheRooms", 2);
+
+		queryItems(newQuery(5));
+		queryItems(newRoomQuery("room1"));
+		queryItems(newQuery(5));
+		queryItems(newRoomQuery("room2"));
+		queryItems(newQuery(5));
+
+		assertEquals("Counter of recently used room should not be removed", 1,
+					 repo.getEvents("executeQuery:" + COUNT_QUERY + ":[" + room.getRoomJID()).size());
+	}
+
+	@Test
+	public void testCachedCountNotUsedForPosition() throws Exception {
+		init(JDBCHistoryProvider.MAMCountMode.cached);
+		queryItems(newQuery(5));
+
+		// message stored by other cluster node is not counted in memory
+		archive.add(MockDataRepository.row("sender_nickname", "firstwitch", "stable_id", UUID.randomUUID().toString(),
+										   "ts", new Timestamp(System.currentTimeMillis()), "sender_jid",
+										   creatorJID.toString(), "body", "message 10", "msg", null));
+		Query query = newQuery(3);
+		query.getRsm().setHasBefore(true);
+		List<MAMRepository.Item> items = queryItems(query);
+		assertEquals("message 10", items.get(2).getMessage().getChildCData(new String[]{"message", "body"}));
+		assertEquals(8, query.getRsm().getIndex().intValue());
+		assertEquals(11, query.getRsm().getCount().intValue());
+	}
+
+	@Test
+	public void testSkipCount() throws Exception {
+		init(JDBCHistoryProvider.MAMCountMode.skip);
+
+		Query query = newQuery(5);
+		assertEquals(5, queryItems(query).size());
+		assertNull(query.getRsm().getCount());
+		assertEquals(0, query.getRsm().getIndex().intValue());
+		assertTrue(repo.getEvents("executeQuery:" + COUNT_QUERY).isEmpty());
+
+		// last page requires number of messages
+		query = newQuery(3);
+		query.getRsm().setHasBefore(true);
+		List<MAMRepository.Item> items = queryItems(query);
+		assertEquals(3, items.size());
+		assertEquals("message 7", items.get(0).getMessage().getChildCData(new String[]{"message", "body"}));
+		assertEquals(10, query.getRsm().getCount().intValue());
+		assertEquals(1, repo.getEvents("executeQuery:" + COUNT_QUERY).size());
+	}
+
+	@Test
+	public void testSkipCountBeforeUnknownMessage() throws Exception {
+		init(JDBCHistoryProvider.MAMCountMode.skip);
+
+		// position of unknown message is not found, so the last page is returned
+		Query query = newQuery(3);
+		query.getRsm().setBefore(UUID.randomUUID().toString());
+		query.getRsm().setHasBefore(true);
+		assertEquals(3, queryItems(query).size());
+		assertEquals(7, query.getRsm().getIndex().intValue());
+	}
+
+	private void init(JDBCHistoryProvider.MAMCountMode mode) throws Exception {
+		setField(provider, "mamCountMode", mode);
+		provider.setDataSource(repo.getRepository());
+	}
+
+	private Query newQuery(int max) {
+		Query query = provider.newQuery();
+		query.setComponentJID(JID.jidInstanceNS(room.getRoomJID()));
+		query.setQuestionerJID(creatorJID);
+		query.getRsm().setMax(max);
+		return query;
+	}
+
+	private Query newRoomQuery(String localpart) {
+		Query query = newQuery(5);
+		query.setComponentJID(JID.jidInstanceNS(localpart + "@macbeth.shakespeare.lit"));
+		return query;
+	}
+
+	private List<MAMRepository.Item> queryItems(Query query) throws Exception {
+		List<MAMRepository.Item> items = new ArrayList<>();
+		provider.queryItems(query, (q, item) -> items.add(item));
+		return items;
+	}
+
+	private void addMessage() {
+		final Date timestamp = new Date(System.currentTimeMillis() + 1000);
+		final String body = "message " + archive.size();
+		Element message = new Element("message", new String[]{"type"}, new String[]{"groupchat"});
+		message.addChild(new Element("body", body));
+		provider.addMessage(room, message, body, creatorJID, "firstwitch", timestamp);
+		archive.add(MockDataRepository.row("sender_nickname", "firstwitch", "stable_id", UUID.randomUUID().toString(),
+										   "ts", new Timestamp(timestamp.getTime()), "sender_jid",
+										   creatorJID.toString(), "body", body, "msg", null));
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.component.exceptions.ComponentException;
+import tigase.db.DataRepository;
+import tigase.db.TigaseDBException;
+import tigase.xmpp.Authorization;
+import tigase.xmpp.jid.JID;
+import tigase.xmpp.mam.MAMRepository;
+import tigase.xmpp.mam.Query;
+
+import java.lang.reflect.Field;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class JDBCHistoryProviderStreamingTest {
+
+	private static final String MESSAGES_QUERY = "{ call Tig_MUC_MAM_GetMessages(?,?,?,?,?,?) }";
+	private static final String MESSAGE_QUERY = "{ call Tig_MUC_MAM_GetMessage(?,?) }";
+	private static final String MESSAGES_BY_KEY_QUERY = "{ call Tig_MUC_MAM_GetMessagesByKey(?,?,?,?,?,?,?,?) }";
+
+	private final List<Map<String, Object>> archive = new ArrayList<>();
+	private final JID creatorJID = JID.jidInstanceNS("crone1@shakespeare.lit/desktop");
+	private final MockDataRepository repo = new MockDataRepository();
+	private final JDBCHistoryProvider provider = new JDBCHistoryProvider();
+	private final AtomicInteger rowsRead = new AtomicInteger();
+
+	private static void setField(Object object, String name, Object value) throws Exception {
+		Field field = object.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(object, value);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		final long now = System.currentTimeMillis();
+		for (int i = 0; i < 25; i++) {
+			archive.add(MockDataRepository.row("sender_nickname", "firstwitch", "stable_id", UUID.randomUUID().toString(),
+											   "ts", new Timestamp(now - 10000 + i), "sender_jid",
+											   creatorJID.toString(), "body", "message " + i, "msg", null));
+		}
+		// rows are read from the result set lazily, so it is possible to check how many of them were fetched
+		final List<Map<String, Object>> results = new AbstractList<Map<String, Object>>() {
+			@Override
+			public Map<String, Object> get(int index) {
+				rowsRead.set(Math.max(rowsRead.get(), index + 1));
+				return archive.get(index);
+			}
+
+			@Override
+			public int size() {
+				return archive.size();
+			}
+		};
+		repo.setResults(MESSAGES_QUERY, (q, params) -> results);
+		repo.setResults(MESSAGES_BY_KEY_QUERY, (q, params) -> results);
+		setField(provider, "mamChunkSize", 10);
+	}
+
+	@After
+	public void tearDown() {
+		provider.destroy();
+	}
+
+	@Test
+	public void testResultsStreamedFromSingleQuery() throws Exception {
+		repo.setDatabaseType(DataRepository.dbTypes.derby);
+		provider.setDataSource(repo.getRepository());
+
+		Query query = newQuery(25);
+		List<MAMRepository.Item> items = queryItems(query);
+		assertEquals(25, items.size());
+		assertEquals("message 24", items.get(24).getMessage().getChildCData(new String[]{"message", "body"}));
+
+		assertEquals(1, repo.getEvents("executeQuery:" + MESSAGES_QUERY).size());
+		assertEquals(List.of("setFetchSize:" + MESSAGES_QUERY + ":10"), repo.getEvents("setFetchSize"));
+		assertEquals(1, repo.getEvents("takeRepoHandle").size());
+		assertEquals(1, repo.getEvents("releaseRepoHandle").size());
+	}
+
+	@Test
+	public void testResultsStreamedByMySQL() throws Exception {
+		repo.setDatabaseType(DataRepository.dbTypes.mysql);
+		provider.setDataSource(repo.getRepository());
+
+		assertEquals(25, queryItems(newQuery(25)).size());
+		assertEquals(List.of("setFetchSize:" + MESSAGES_QUERY + ":" + Integer.MIN_VALUE),
+					 repo.getEvents("setFetchSize"));
+		assertTrue(repo.getEvents("startTransaction").isEmpty());
+	}
+
+	@Test
+	public void testResultsStreamedByPostgreSQL() throws Exception {
+		repo.setDatabaseType(DataRepository.dbTypes.postgresql);
+		provider.setDataSource(repo.getRepository());
+
+		assertEquals(25, queryItems(newQuery(25)).size());
+		assertEquals(List.of("setFetchSize:" + MESSAGES_QUERY + ":10"), repo.getEvents("setFetchSize"));
+		// auto-commit has to be disabled while results are read
+		final List<String> events = repo.getEvents();
+		final int queryIdx = events.indexOf(repo.getEvents("executeQuery").get(0));
+		assertTrue(events.contains("startTransaction"));
+		assertTrue(events.indexOf("startTransaction") < queryIdx);
+		assertTrue(events.indexOf("commit") > queryIdx);
+		assertTrue(events.indexOf("endTransaction") > events.indexOf("commit"));
+	}
+
+	@Test
+	public void testResultsStreamedByKey() throws Exception {
+		setField(provider, "mamKeysetPagination", true);
+		provider.setDataSource(repo.getRepository());
+
+		Query query = newQuery(25);
+		assertEquals(25, queryItems(query).size());
+		assertEquals(1, repo.getEvents("executeQuery:" + MESSAGES_BY_KEY_QUERY).size());
+		assertEquals(1, repo.getEvents("takeRepoHandle").size());
+		assertEquals(1, repo.getEvents("releaseRepoHandle").size());
+	}
+
+	@Test
+	public void testUnknownKeyReported() throws Exception {
+		setField(provider, "mamKeysetPagination", true);
+		repo.setResults(MESSAGE_QUERY, (q, params) -> archive.stream()
+				.filter(row -> row.get("stable_id").equals(params.get(1)))
+				.collect(Collectors.toList()));
+		provider.setDataSource(repo.getRepository());
+
+		Query query = newQuery(10);
+		query.getRsm().setAfter(UUID.randomUUID().toString());
+		try {
+			queryItems(query);
+			fail("Unknown message should be reported");
+		} catch (ComponentException ex) {
+			assertEquals(Authorization.ITEM_NOT_FOUND, ex.getErrorCondition());
+		}
+		assertTrue(repo.getEvents("executeQuery:" + MESSAGES_BY_KEY_QUERY).isEmpty());
+
+		query = newQuery(10);
+		query.getRsm().setBefore((String) archive.get(20).get("stable_id"));
+		queryItems(query);
+		assertEquals(1, repo.getEvents("executeQuery:" + MESSAGES_BY_KEY_QUERY).size());
+	}
+
+	@Test
+	public void testOnlySingleChunkInMemory() throws Exception {
+		provider.setDataSource(repo.getRepository());
+
+		final List<Integer> readWhenDelivered = new ArrayList<>();
+		Query query = newQuery(25);
+		provider.queryItems(query, (q, item) -> readWhenDelivered.add(rowsRead.get()));
+
+		assertEquals(25, readWhenDelivered.size());
+		for (int i = 0; i < readWhenDelivered.size(); i++) {
+			assertTrue("Too many rows read before delivery of item " + i + ": " + readWhenDelivered.get(i),
+					   readWhenDelivered.get(i) <= (i / 10 + 1) * 10);
+		}
+	}
+
+	@Test
+	public void testHandleReleasedOnFailure() throws Exception {
+		repo.setFailure(event -> event.startsWith("executeQuery:" + MESSAGES_QUERY));
+		provider.setDataSource(repo.getRepository());
+
+		try {
+			queryItems(newQuery(25));
+			fail("Failure of database should be reported");
+		} catch (TigaseDBException ex) {
+			// expected
+		}
+		assertEquals(1, repo.getEvents("releaseRepoHandle").size());
+	}
+
+	private Query newQuery(int max) {
+		Query query = provider.newQuery();
+		query.setComponentJID(JID.jidInstanceNS("darkcave@macbeth.shakespeare.lit"));
+		query.setQuestionerJID(creatorJID);
+		query.getRsm().setMax(max);
+		return query;
+	}
+
+	private List<MAMRepository.Item> queryItems(Query query) throws Exception {
+		List<MAMRepository.Item> items = new ArrayList<>();
+		provider.queryItems(query, (q, item) -> items.add(item));
+		return items;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import org.junit.Test;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.server.Packet;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryHistoryProviderTest {
+
+	private final JID creatorJID = JID.jidInstanceNS("crone1@shakespeare.lit/desktop");
+
+	@Test
+	public void testRingBuffer() {
+		MemoryHistoryProvider provider = new MemoryHistoryProvider(5, 0);
+		Room room = createRoom("darkcave@macbeth.shakespeare.lit");
+		List<AbstractHistoryProviderTest.Item> items = addMessages(provider, room, 8);
+
+		AbstractHistoryProviderTest.QueueWriter writer = new AbstractHistoryProviderTest.QueueWriter();
+		provider.getHistoryMessages(room, creatorJID, null, null, null, null, writer);
+		assertBodies(items.subList(3, 8), writer);
+
+		writer = new AbstractHistoryProviderTest.QueueWriter();
+		provider.getHistoryMessages(room, creatorJID, null, 2, null, null, writer);
+		assertBodies(items.subList(6, 8), writer);
+
+		writer = new AbstractHistoryProviderTest.QueueWriter();
+		provider.getHistoryMessages(room, creatorJID, 0, null, null, null, writer);
+		assertTrue(writer.queue.isEmpty());
+	}
+
+	@Test
+	public void testMaxChars() {
+		MemoryHistoryProvider provider = new MemoryHistoryProvider(10, 0);
+		Room room = createRoom("darkcave@macbeth.shakespeare.lit");
+		List<AbstractHistoryProviderTest.Item> items = addMessages(provider, room, 4);
+
+		AbstractHistoryProviderTest.QueueWriter writer = new AbstractHistoryProviderTest.QueueWriter();
+		provider.getHistoryMessages(room, creatorJID, null, null, null, null, writer);
+		int messageLength = writer.queue.peek().getElement().toString().length();
+
+		writer = new AbstractHistoryProviderTest.QueueWriter();
+		provider.getHistoryMessages(room, creatorJID, messageLength * 2 + 1, null, null, null, writer);
+		assertBodies(items.subList(2, 4), writer);
+	}
+
+	@Test
+	public void testMemoryLimit() {
+		MemoryHistoryProvider provider = new MemoryHistoryProvider(10, Long.MAX_VALUE);
+		Room room1 = createRoom("room1@macbeth.shakespeare.lit");
+		Room room2 = createRoom("room2@macbeth.shakespeare.lit");
+		addMessages(provider, room1, 10);
+		long roomSize = provider.getUsedMemory();
+		assertTrue(roomSize > 0);
+
+		provider = new MemoryHistoryProvider(10, roomSize + roomSize / 2);
+		addMessages(provider, room1, 10);
+		List<AbstractHistoryProviderTest.Item> items = addMessages(provider, room2, 10);
+
+		AbstractHistoryProviderTest.QueueWriter writer = new AbstractHistoryProviderTest.QueueWriter();
+		provider.getHistoryMessages(room1, creatorJID, null, null, null, null, writer);
+		assertTrue(writer.queue.isEmpty());
+
+		writer = new AbstractHistoryProviderTest.QueueWriter();
+		provider.getHistoryMessages(room2, creatorJID, null, null, null, null, writer);
+		assertBodies(items, writer);
+
+		provider.removeHistory(room2);
+		assertEquals(0, provider.getUsedMemory());
+	}
+
+	private List<AbstractHistoryProviderTest.Item> addMessages(MemoryHistoryProvider provider, Room room,
+																int count) {
+		List<AbstractHistoryProviderTest.Item> items = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			AbstractHistoryProviderTest.Item item = new AbstractHistoryProviderTest.Item("");
+			provider.addMessage(room, item.getMessage(room.getRoomJID()), item.body, item.sender, item.nick, item.ts,
+								item.stableId);
+			items.add(item);
+		}
+		return items;
+	}
+
+	private void assertBodies(List<AbstractHistoryProviderTest.Item> expected,
+							  AbstractHistoryProviderTest.QueueWriter writer) {
+		assertEquals(expected.size(), writer.queue.size());
+		for (AbstractHistoryProviderTest.Item item : expected) {
+			Packet msg = writer.queue.poll();
+			assertEquals(item.body, msg.getElemCDataStaticStr(new String[]{"message", "body"}));
+		}
+	}
+
+	private Room createRoom(String jid) {
+		return new Room(new RoomConfig(BareJID.bareJIDInstanceNS(jid)), new Date(), creatorJID.getBareJID()) {
+		};
+	}
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.history;
+
+import tigase.db.DataRepository;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * Replacement of {@link DataRepository} used to test JDBC history provider without a database. Statements record
+ * executed calls as events (ie. <code>executeUpdate:query:[params]</code>), queries return rows provided by a test
+ * and any event may be set to fail with {@link SQLException}.
+ */
+public class MockDataRepository {
+
+	private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+	private final DataRepository repository;
+	private final Map<String, BiFunction<String, List<Object>, List<Map<String, Object>>>> results = new ConcurrentHashMap<>();
+	private final Map<String, PreparedStatement> statements = new ConcurrentHashMap<>();
+	private volatile DataRepository.dbTypes databaseType = DataRepository.dbTypes.mysql;
+	private volatile Predicate<String> failure = event -> false;
+
+	public static Map<String, Object> row(Object... columnsAndValues) {
+		Map<String, Object> row = new LinkedHashMap<>();
+		for (int i = 0; i < columnsAndValues.length; i += 2) {
+			row.put((String) columnsAndValues[i], columnsAndValues[i + 1]);
+		}
+		return row;
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		} else if (type.isPrimitive() && type != void.class) {
+			return 0;
+		}
+		return null;
+	}
+
+	public MockDataRepository() {
+		repository = (DataRepository) Proxy.newProxyInstance(getClass().getClassLoader(),
+															   new Class[]{DataRepository.class},
+															   this::invokeRepository);
+	}
+
+	public DataRepository getRepository() {
+		return repository;
+	}
+
+	public void setDatabaseType(DataRepository.dbTypes databaseType) {
+		this.databaseType = databaseType;
+	}
+
+	public void setFailure(Predicate<String> failure) {
+		this.failure = failure;
+	}
+
+	/**
+	 * Sets rows returned by executing the query, which are computed from query parameters.
+	 */
+	public void setResults(String query, BiFunction<String, List<Object>, List<Map<String, Object>>> results) {
+		this.results.put(query, results);
+	}
+
+	public List<String> getEvents() {
+		synchronized (events) {
+			return new ArrayList<>(events);
+		}
+	}
+
+	public List<String> getEvents(String prefix) {
+		List<String> result = new ArrayList<>();
+		for (String event : getEvents()) {
+			if (event.startsWith(prefix)) {
+				result.add(event);
+			}
+		}
+		return result;
+	}
+
+	public void clearEvents() {
+		events.clear();
+	}
+
+	private void event(String event) throws SQLException {
+		events.add(event);
+		if (failure.test(event)) {
+			throw new SQLException("Simulated failure of " + event);
+		}
+	}
+
+	private Object invokeRepository(Object proxy, Method method, Object[] args) throws Throwable {
+		switch (method.getName()) {
+			case "getPreparedStatement":
+				final String query = (String) args[1];
+				return statements.computeIfAbsent(query, this::createStatement);
+			case "takeRepoHandle":
+				event("takeRepoHandle");
+				return proxy;
+			case "releaseRepoHandle":
+				event("releaseRepoHandle");
+				return null;
+			case "getDatabaseType":
+				return databaseType;
+			case "startTransaction":
+			case "commit":
+			case "rollback":
+			case "endTransaction":
+				event(method.getName());
+				return null;
+			case "setTimestamp":
+				((PreparedStatement) args[0]).setTimestamp((Integer) args[1], (Timestamp) args[2]);
+				return null;
+			case "getTimestamp":
+				final ResultSet rs = (ResultSet) args[0];
+				return args[1] instanceof String
+					   ? rs.getTimestamp((String) args[1])
+					   : rs.getTimestamp((Integer) args[1]);
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return "MockDataRepository";
+			default:
+				return defaultValue(method.getReturnType());
+		}
+	}
+
+	private PreparedStatement createStatement(String query) {
+		final Map<Integer, Object> params = new TreeMap<>();
+		final List<List<Object>> batch = new ArrayList<>();
+		return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+														  new Class[]{PreparedStatement.class},
+														  (proxy, method, args) -> {
+			final String name = method.getName();
+			if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer) {
+				params.put((Integer) args[0], args[1]);
+				return null;
+			}
+			switch (name) {
+				case "setFetchSize":
+					event("setFetchSize:" + query + ":" + args[0]);
+					return null;
+				case "addBatch":
+					batch.add(new ArrayList<>(params.values()));
+					return null;
+				case "clearBatch":
+					batch.clear();
+					return null;
+				case "executeBatch":
+					event("executeBatch:" + query + ":" + batch.size());
+					for (List<Object> values : batch) {
+						events.add("batch:" + query + ":" + values);
+					}
+					return new int[batch.size()];
+				case "executeUpdate":
+					event("executeUpdate:" + query + ":" + params.values());
+					return 1;
+				case "executeQuery":
+					final List<Object> values = new ArrayList<>(params.values());
+					event("executeQuery:" + query + ":" + values);
+					return createResultSet(results.getOrDefault(query, (q, p) -> Collections.emptyList())
+												   .apply(query, values));
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				case "toString":
+					return query;
+				default:
+					return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	private ResultSet createResultSet(List<Map<String, Object>> rows) {
+		final Iterator<Map<String, Object>> it = rows.iterator();
+		final Map<String, Object>[] current = new Map[1];
+		return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{ResultSet.class},
+												  (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "next":
+					current[0] = it.hasNext() ? it.next() : null;
+					return current[0] != null;
+				case "getString":
+				case "getInt":
+				case "getLong":
+				case "getTimestamp":
+					final Object value = args[0] instanceof String
+										 ? current[0].get(args[0])
+										 : new ArrayList<>(current[0].values()).get((Integer) args[0] - 1);
+					if (value == null) {
+						return defaultValue(method.getReturnType());
+					}
+					if (method.getReturnType() == String.class) {
+						return value.toString();
+					} else if (method.getReturnType() == int.class) {
+						return ((Number) value).intValue();
+					} else if (method.getReturnType() == long.class) {
+						return ((Number) value).longValue();
+					}
+					return value;
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				default:
+					return defaultValue(method.getReturnType());
+			}
+		});
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.muc.Role;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures time and allocations of delivery of a groupchat message to all occupants of a room with 1000 occupants.
+ * Current implementation, which shares child elements of the message between recipients, is compared with the
+ * previous one, which copied the whole message for every recipient.
+ * <br>
+ * Run <code>main()</code> method with test classpath to execute the benchmark; allocations per operation are
+ * reported as <code>gc.alloc.rate.norm</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupchatMessageBenchmark {
+
+	private static final int OCCUPANTS = 1000;
+
+	private final BlackholeWriter writer = new BlackholeWriter();
+	private JID fromJID;
+	private GroupchatMessageModule module;
+	private Packet msg;
+	private Room room;
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(GroupchatMessageBenchmark.class.getSimpleName())
+						   .addProfiler(GCProfiler.class)
+						   .build()).run();
+	}
+
+	private static void setField(Object object, String name, Object value) throws Exception {
+		Class<?> cls = object.getClass();
+		while (cls != null) {
+			try {
+				Field field = cls.getDeclaredField(name);
+				field.setAccessible(true);
+				field.set(object, value);
+				return;
+			} catch (NoSuchFieldException e) {
+				cls = cls.getSuperclass();
+			}
+		}
+		throw new NoSuchFieldException(name);
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		module = new GroupchatMessageModule();
+		setField(module, "writer", writer);
+
+		final BareJID roomJID = BareJID.bareJIDInstanceNS("darkcave@macbeth.shakespeare.lit");
+		room = new Room(new RoomConfig(roomJID), new Date(), BareJID.bareJIDInstanceNS("occupant0@shakespeare.lit")) {
+		};
+		for (int i = 0; i < OCCUPANTS; i++) {
+			JID jid = JID.jidInstanceNS("occupant" + i + "@shakespeare.lit/resource");
+			Element p = new Element("presence", new String[]{"from"}, new String[]{jid.toString()});
+			room.addOccupantByJid(jid, "nick" + i, Role.participant, p);
+		}
+		fromJID = JID.jidInstanceNS(roomJID, "nick0");
+
+		Element message = new Element("message", new String[]{"type", "id"}, new String[]{"groupchat", "msg-1"});
+		message.addChild(new Element("body", "Harpier cries: 'tis time, 'tis time."));
+		message.addChild(new Element("stanza-id", new String[]{"xmlns", "id", "by"},
+									 new String[]{"urn:xmpp:sid:0", "5f3dbc5e-e1d3-4077-a492-693f3769c7ad",
+												  roomJID.toString()}));
+		Element x = new Element("x", new String[]{"xmlns"}, new String[]{"jabber:x:oob"});
+		x.addChild(new Element("url", "https://shakespeare.lit/cauldron.png"));
+		message.addChild(x);
+		msg = Packet.packetInstance(message, fromJID, null);
+	}
+
+	@Benchmark
+	public void shared(Blackhole blackhole) throws Exception {
+		writer.blackhole = blackhole;
+		module.sendMessagesToAllOccupantsJids(room, fromJID, msg);
+	}
+
+	@Benchmark
+	public void copyPerRecipient(Blackhole blackhole) throws Exception {
+		final Room.DeliveryRoster roster = room.getDeliveryRoster();
+		for (int i = 0; i < roster.size(); i++) {
+			Packet message = msg.copyElementOnly();
+			message.initVars(fromJID, roster.get(i));
+			message.setXMLNS(Packet.CLIENT_XMLNS);
+			blackhole.consume(message);
+		}
+	}
+
+	private static class BlackholeWriter
+			implements PacketWriter {
+
+		private Blackhole blackhole;
+
+		@Override
+		public void write(Collection<Packet> packets) {
+			for (Packet packet : packets) {
+				write(packet);
+			}
+		}
+
+		@Override
+		public void write(Packet packet) {
+			blackhole.consume(packet);
+		}
+
+		@Override
+		public void write(Packet packet, AsyncCallback callback) {
+			write(packet);
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.junit.Test;
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.muc.Role;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GroupchatMessageModuleTest {
+
+	private static void setField(Object object, String name, Object value) throws Exception {
+		Class<?> cls = object.getClass();
+		while (cls != null) {
+			try {
+				Field field = cls.getDeclaredField(name);
+				field.setAccessible(true);
+				field.set(object, value);
+				return;
+			} catch (NoSuchFieldException e) {
+				cls = cls.getSuperclass();
+			}
+		}
+		throw new NoSuchFieldException(name);
+	}
+
+	@Test
+	public void testRecipientPacketsIndependent() throws Exception {
+		final CollectingWriter writer = new CollectingWriter();
+		final GroupchatMessageModule module = new GroupchatMessageModule();
+		setField(module, "writer", writer);
+
+		final BareJID roomJID = BareJID.bareJIDInstanceNS("darkcave@macbeth.shakespeare.lit");
+		final Room room = new Room(new RoomConfig(roomJID), new Date(),
+								   BareJID.bareJIDInstanceNS("crone1@shakespeare.lit"));
+		for (int i = 0; i < 3; i++) {
+			JID jid = JID.jidInstanceNS("witch" + i + "@shakespeare.lit/pda");
+			Element p = new Element("presence", new String[]{"from"}, new String[]{jid.toString()});
+			room.addOccupantByJid(jid, "witch" + i, Role.participant, p);
+		}
+		final JID fromJID = JID.jidInstanceNS(roomJID, "witch0");
+
+		Element message = new Element("message", new String[]{"type", "id"}, new String[]{"groupchat", "msg-1"});
+		message.addChild(new Element("body", "Harpier cries: 'tis time, 'tis time."));
+		message.addChild(new Element("stanza-id", new String[]{"xmlns", "id", "by"},
+									 new String[]{"urn:xmpp:sid:0", "5f3dbc5e-e1d3-4077-a492-693f3769c7ad",
+												  roomJID.toString()}));
+		final Packet msg = Packet.packetInstance(message, fromJID, null);
+		final String original = msg.getElement().toString();
+
+		module.sendMessagesToAllOccupantsJids(room, fromJID, msg);
+		assertEquals(3, writer.packets.size());
+
+		final List<String> others = new ArrayList<>();
+		for (Packet packet : writer.packets.subList(1, writer.packets.size())) {
+			others.add(packet.getElement().toString());
+		}
+
+		// changes of a single delivered packet, as done by processors handling it later on
+		final Element changed = writer.packets.get(0).getElement();
+		changed.setAttribute("id", "changed");
+		changed.removeAttribute("type");
+		changed.removeChild(changed.getChild("body"));
+		changed.addChild(new Element("delay", new String[]{"xmlns"}, new String[]{"urn:xmpp:delay"}));
+
+		for (int i = 1; i < writer.packets.size(); i++) {
+			Element element = writer.packets.get(i).getElement();
+			assertEquals(others.get(i - 1), element.toString());
+			assertEquals("msg-1", element.getAttributeStaticStr("id"));
+			assertNotNull(element.getChild("body"));
+			assertNull(element.getChild("delay"));
+		}
+		assertEquals(original, msg.getElement().toString());
+	}
+
+	private static class CollectingWriter
+			implements PacketWriter {
+
+		private final List<Packet> packets = new ArrayList<>();
+
+		@Override
+		public void write(Collection<Packet> packets) {
+			for (Packet packet : packets) {
+				write(packet);
+			}
+		}
+
+		@Override
+		public void write(Packet packet) {
+			packets.add(packet);
+		}
+
+		@Override
+		public void write(Packet packet, AsyncCallback callback) {
+			write(packet);
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import tigase.component.PacketWriter;
+import tigase.component.responses.AsyncCallback;
+import tigase.muc.*;
+import tigase.muc.modules.PresenceModule.PresenceWrapper;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures broadcast of presence of an occupant to all occupants of a room with 1000 occupants, each connected with
+ * 3 resources, when multi-item mode is disabled. Current implementation is compared with the previous one, which
+ * retrieved resources of the occupant and prepared presence for each of them separately for every destination.
+ * <br>
+ * Run <code>main()</code> method with test classpath to execute the benchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PresenceBroadcastBenchmark {
+
+	private static final int OCCUPANTS = 1000;
+	private static final int RESOURCES = 3;
+
+	private final BlackholeWriter writer = new BlackholeWriter();
+	private PresenceModuleImpl module;
+	private Element presence;
+	private Room room;
+	private JID senderJID;
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(PresenceBroadcastBenchmark.class.getSimpleName()).build()).run();
+	}
+
+	private static void setField(Object object, String name, Object value) throws Exception {
+		Class<?> cls = object.getClass();
+		while (cls != null) {
+			try {
+				Field field = cls.getDeclaredField(name);
+				field.setAccessible(true);
+				field.set(object, value);
+				return;
+			} catch (NoSuchFieldException e) {
+				cls = cls.getSuperclass();
+			}
+		}
+		throw new NoSuchFieldException(name);
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		MUCConfig config = new MUCConfig();
+		setField(config, "multiItemMode", false);
+
+		module = new PresenceModuleImpl();
+		setField(module, "config", config);
+		setField(module, "writer", writer);
+
+		room = new Room(new RoomConfig(BareJID.bareJIDInstanceNS("darkcave@macbeth.shakespeare.lit")), new Date(),
+						BareJID.bareJIDInstanceNS("occupant0@shakespeare.lit")) {
+		};
+		for (int i = 0; i < OCCUPANTS; i++) {
+			for (int r = 0; r < RESOURCES; r++) {
+				JID jid = JID.jidInstanceNS("occupant" + i + "@shakespeare.lit/resource" + r);
+				Element p = new Element("presence", new String[]{"from"}, new String[]{jid.toString()});
+				p.addChild(new Element("show", "away"));
+				room.addOccupantByJid(jid, "nick" + i, Role.participant, p);
+			}
+		}
+		senderJID = JID.jidInstanceNS("occupant0@shakespeare.lit/resource0");
+		presence = room.getLastPresenceCopyByJid(senderJID.getBareJID());
+	}
+
+	@Benchmark
+	public void broadcast(Blackhole blackhole) throws Exception {
+		writer.blackhole = blackhole;
+		module.sendPresenceToAllOccupants(presence, room, senderJID, false, null);
+	}
+
+	@Benchmark
+	public void broadcastPerDestination(Blackhole blackhole) throws Exception {
+		final String occupantNickname = room.getOccupantsNickname(senderJID);
+		final BareJID occupantJID = room.getOccupantsJidByNickname(occupantNickname);
+		final Affiliation occupantAffiliation = room.getAffiliation(occupantJID).getAffiliation();
+		final Role occupantRole = room.getRole(occupantNickname);
+		for (String destinationNickname : room.getOccupantsNicknames(false)) {
+			for (JID destinationJID : room.getOccupantsJidsByNickname(destinationNickname)) {
+				for (JID jid : room.getOccupantsJidsByNickname(occupantNickname)) {
+					Collection<JID> z = new ArrayList<JID>(1);
+					z.add(jid);
+					PresenceWrapper l = PresenceWrapper.preparePresenceW(room, destinationJID, presence.clone(),
+																		 occupantJID, z, occupantNickname,
+																		 occupantAffiliation, occupantRole);
+					blackhole.consume(l.getPacket());
+				}
+			}
+		}
+	}
+
+	private static class BlackholeWriter
+			implements PacketWriter {
+
+		private Blackhole blackhole;
+
+		@Override
+		public void write(Collection<Packet> packets) {
+			for (Packet packet : packets) {
+				write(packet);
+			}
+		}
+
+		@Override
+		public void write(Packet packet) {
+			blackhole.consume(packet);
+		}
+
+		@Override
+		public void write(Packet packet, AsyncCallback callback) {
+			write(packet);
+		}
+	}
+
+}
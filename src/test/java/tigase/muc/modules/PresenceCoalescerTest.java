@@ -0,0 +1,82 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.junit.After;
+import org.junit.Test;
+import tigase.muc.Room;
+import tigase.muc.RoomConfig;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+public class PresenceCoalescerTest {
+
+	private final PresenceCoalescer coalescer = new PresenceCoalescer(60000);
+	private final Room room = new Room(new RoomConfig(BareJID.bareJIDInstanceNS("darkcave@macbeth.shakespeare.lit")),
+									   new Date(), BareJID.bareJIDInstanceNS("crone1@shakespeare.lit")) {
+	};
+
+	@After
+	public void tearDown() {
+		coalescer.shutdown();
+	}
+
+	@Test
+	public void testJoinAndLeaveCancelled() {
+		List<String> delivered = new ArrayList<>();
+		coalescer.joining(room, "firstwitch");
+		coalescer.changed(room, "firstwitch", filter -> delivered.add("available"));
+		coalescer.left(room, "firstwitch", filter -> delivered.add("unavailable"));
+		assertEquals(1, coalescer.getPendingRoomsCount());
+
+		coalescer.flush(room.getRoomJID());
+		assertTrue(delivered.isEmpty());
+		assertEquals(0, coalescer.getPendingRoomsCount());
+	}
+
+	@Test
+	public void testNetStateDelivered() {
+		Map<String, Predicate<String>> delivered = new HashMap<>();
+		Map<String, Integer> deliveries = new HashMap<>();
+
+		// occupant present before the window changes presence twice and then leaves
+		coalescer.changed(room, "firstwitch", filter -> deliveries.merge("firstwitch-available", 1, Integer::sum));
+		coalescer.changed(room, "firstwitch", filter -> deliveries.merge("firstwitch-available", 1, Integer::sum));
+		coalescer.left(room, "firstwitch", filter -> {
+			deliveries.merge("firstwitch-unavailable", 1, Integer::sum);
+			delivered.put("firstwitch", filter);
+		});
+		// new occupant joins after that
+		coalescer.joining(room, "secondwitch");
+		coalescer.changed(room, "secondwitch", filter -> delivered.put("secondwitch", filter));
+
+		coalescer.flush(room.getRoomJID());
+
+		assertEquals(Map.of("firstwitch-unavailable", 1), deliveries);
+		// new occupant has not seen leaving occupant
+		assertFalse(delivered.get("firstwitch").test("secondwitch"));
+		assertTrue(delivered.get("firstwitch").test("thirdwitch"));
+		assertFalse(delivered.get("secondwitch").test("secondwitch"));
+		assertTrue(delivered.get("secondwitch").test("thirdwitch"));
+	}
+
+}
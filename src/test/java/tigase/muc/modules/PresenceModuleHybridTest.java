@@ -0,0 +1,155 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.component.exceptions.ComponentException;
+import tigase.component.exceptions.RepositoryException;
+import tigase.kernel.core.Kernel;
+import tigase.muc.AbstractMucTest;
+import tigase.muc.Role;
+import tigase.muc.TestMUCCompoent;
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.vhosts.DummyVHostManager;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+public class PresenceModuleHybridTest
+		extends AbstractMucTest {
+
+	private final String vhost = "tigase.org";
+	private final BareJID roomJID = BareJID.bareJIDInstanceNS("room", "muc." + vhost);
+	private TestMUCCompoent mucComponent;
+	private PresenceModule presenceModule;
+
+	@Override
+	protected void registerBeans(Kernel kernel) {
+		super.registerBeans(kernel);
+		getMucKernel().registerBean(PresenceModuleHybrid.class).exec();
+		mucComponent = getKernel().getInstance(TestMUCCompoent.class);
+		getKernel().getInstance(DummyVHostManager.class).addVhost(vhost);
+		presenceModule = getMucKernel().getInstance(PresenceModule.class);
+	}
+
+	@Test
+	public void testOnlyModeratorsPresenceBroadcast()
+			throws RepositoryException, ComponentException, TigaseStringprepException {
+		final JID ownerJid = JID.jidInstanceNS("owner", vhost, "res1");
+		final JID firstJid = JID.jidInstanceNS("first", vhost, "res1");
+		final JID secondJid = JID.jidInstanceNS("second", vhost, "res1");
+		Assert.assertTrue(presenceModule instanceof PresenceModuleHybrid);
+
+		presenceModule.process(createJoinPresence(ownerJid, "owner"));
+		mucComponent.getMucRepository().getRoom(roomJID).setRoomLocked(false);
+
+		writer.clear();
+		presenceModule.process(createJoinPresence(firstJid, "first"));
+		// joining occupant receives own presence and presence of the owner only
+		Assert.assertNotNull(findPresence(firstJid, "first"));
+		Assert.assertNotNull(findPresence(firstJid, "owner"));
+		Assert.assertNull(findPresence(ownerJid, "first"));
+
+		writer.clear();
+		presenceModule.process(createJoinPresence(secondJid, "second"));
+		Assert.assertNull(findPresence(secondJid, "first"));
+		Assert.assertNotNull(findPresence(secondJid, "owner"));
+		Assert.assertNull(findPresence(firstJid, "second"));
+
+		writer.clear();
+		var leave = new Element("presence", new String[]{"to", "from", "type"},
+								new String[]{roomJID + "/first", firstJid.toString(), "unavailable"});
+		presenceModule.process(Packet.packetInstance(leave));
+		Assert.assertNotNull(findPresence(firstJid, "first"));
+		Assert.assertNull(findPresence(ownerJid, "first"));
+		Assert.assertNull(findPresence(secondJid, "first"));
+	}
+
+	@Test
+	public void testDemotedModeratorLeaves() throws Exception {
+		final JID ownerJid = JID.jidInstanceNS("owner", vhost, "res1");
+		final JID firstJid = JID.jidInstanceNS("first", vhost, "res1");
+		final ModeratorModule moderatorModule = getMucKernel().getInstance(ModeratorModule.class);
+
+		presenceModule.process(createJoinPresence(ownerJid, "owner"));
+		mucComponent.getMucRepository().getRoom(roomJID).setRoomLocked(false);
+		presenceModule.process(createJoinPresence(firstJid, "first"));
+
+		writer.clear();
+		moderatorModule.process(createSetRole(ownerJid, "first", Role.moderator));
+		Element presence = findPresence(ownerJid, "first");
+		Assert.assertNotNull("Presence of moderator should be broadcast", presence);
+		Assert.assertNull(presence.getAttributeStaticStr("type"));
+
+		// demoted occupant disappears from lists of other occupants
+		writer.clear();
+		moderatorModule.process(createSetRole(ownerJid, "first", Role.participant));
+		presence = findPresence(ownerJid, "first");
+		Assert.assertNotNull(presence);
+		Assert.assertEquals("unavailable", presence.getAttributeStaticStr("type"));
+		presence = findPresence(firstJid, "first");
+		Assert.assertNotNull(presence);
+		Assert.assertNull(presence.getAttributeStaticStr("type"));
+
+		writer.clear();
+		var leave = new Element("presence", new String[]{"to", "from", "type"},
+								new String[]{roomJID + "/first", firstJid.toString(), "unavailable"});
+		presenceModule.process(Packet.packetInstance(leave));
+		Assert.assertNotNull(findPresence(firstJid, "first"));
+		Assert.assertNull(findPresence(ownerJid, "first"));
+
+		// kicked moderator is removed from lists of other occupants
+		presenceModule.process(createJoinPresence(firstJid, "first"));
+		moderatorModule.process(createSetRole(ownerJid, "first", Role.moderator));
+		writer.clear();
+		moderatorModule.process(createSetRole(ownerJid, "first", Role.none));
+		presence = findPresence(ownerJid, "first");
+		Assert.assertNotNull(presence);
+		Assert.assertEquals("unavailable", presence.getAttributeStaticStr("type"));
+	}
+
+	private Packet createSetRole(JID from, String nickname, Role role) throws TigaseStringprepException {
+		var iq = new Element("iq", new String[]{"type", "to", "from", "id"},
+							 new String[]{"set", roomJID.toString(), from.toString(), "role-1"});
+		var query = new Element("query", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/muc#admin"});
+		query.addChild(new Element("item", new String[]{"nick", "role"}, new String[]{nickname, role.name()}));
+		iq.addChild(query);
+		return Packet.packetInstance(iq);
+	}
+
+	private Packet createJoinPresence(JID from, String nickname) throws TigaseStringprepException {
+		var presence = new Element("presence");
+		presence.setAttribute("to", roomJID + "/" + nickname);
+		presence.setAttribute("from", from.toString());
+		presence.addChild(new Element("x", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/muc"}));
+		return Packet.packetInstance(presence);
+	}
+
+	private Element findPresence(JID to, String nickname) {
+		return writer.getElements()
+				.stream()
+				.filter(element -> "presence".equals(element.getName()))
+				.filter(element -> to.toString().equals(element.getAttributeStaticStr("to")))
+				.filter(element -> (roomJID + "/" + nickname).equals(element.getAttributeStaticStr("from")))
+				.findFirst()
+				.orElse(null);
+	}
+
+}
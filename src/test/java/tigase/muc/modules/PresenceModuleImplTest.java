@@ -33,6 +33,7 @@ import tigase.xml.Element;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.lang.reflect.Field;
 import java.util.Optional;
 import java.util.Set;
 
@@ -147,4 +148,99 @@ public class PresenceModuleImplTest
 		Assert.assertTrue(room.getConfig().isRoomconfigPublicroom());
 	}
 
+	@Test
+	public void testPresencesSentToNewOccupant()
+			throws RepositoryException, ComponentException, TigaseStringprepException {
+		final JID firstJid = JID.jidInstanceNS("first", vhost, "res1");
+		final JID secondJid = JID.jidInstanceNS("second", vhost, "res1");
+		final JID thirdJid = JID.jidInstanceNS("third", vhost, "res1");
+		final JID fourthJid = JID.jidInstanceNS("fourth", vhost, "res1");
+
+		presenceModule.process(createJoinPresence(firstJid, "first", null));
+		var room = mucComponent.getMucRepository().getRoom(roomJID);
+		room.setRoomLocked(false);
+		presenceModule.process(createJoinPresence(secondJid, "second", "away"));
+
+		writer.clear();
+		presenceModule.process(createJoinPresence(thirdJid, "third", null));
+		Assert.assertEquals("away", findPresence(thirdJid, "second").getCData(new String[]{"presence", "show"}));
+		Assert.assertNotNull(room.getRenderedPresence("second"));
+
+		// changed presence of occupant has to be delivered to next joining occupant
+		var changed = createJoinPresence(secondJid, "second", "dnd");
+		changed.getElement().removeChild(changed.getElement().getChild("x", "http://jabber.org/protocol/muc"));
+		presenceModule.process(changed);
+		Assert.assertNull(room.getRenderedPresence("second"));
+
+		writer.clear();
+		presenceModule.process(createJoinPresence(fourthJid, "fourth", null));
+		Element presence = findPresence(fourthJid, "second");
+		Assert.assertEquals("dnd", presence.getCData(new String[]{"presence", "show"}));
+		Assert.assertEquals(fourthJid.toString(), presence.getAttributeStaticStr("to"));
+		Assert.assertNotNull(findPresence(fourthJid, "third"));
+		Assert.assertNotNull(findPresence(fourthJid, "first"));
+	}
+
+	@Test
+	public void testPresencesCoalescedUntilWindowIsFlushed() throws Exception {
+		final JID firstJid = JID.jidInstanceNS("first", vhost, "res1");
+		final JID secondJid = JID.jidInstanceNS("second", vhost, "res1");
+		final JID thirdJid = JID.jidInstanceNS("third", vhost, "res1");
+
+		presenceModule.process(createJoinPresence(firstJid, "first", null));
+		var room = mucComponent.getMucRepository().getRoom(roomJID);
+		room.setRoomLocked(false);
+		presenceModule.process(createJoinPresence(secondJid, "second", null));
+		presenceModule.process(createJoinPresence(thirdJid, "third", null));
+
+		setField("presenceCoalescingWindow", 60000L);
+		setField("presenceCoalescingMinOccupants", 3);
+		writer.clear();
+
+		var changed = createJoinPresence(secondJid, "second", "away");
+		changed.getElement().removeChild(changed.getElement().getChild("x", "http://jabber.org/protocol/muc"));
+		presenceModule.process(changed);
+		Assert.assertNull("Presence should be queued", findPresence(firstJid, "second"));
+
+		// number of occupants drops below the threshold, but the window of the room is still open
+		var leave = new Element("presence", new String[]{"to", "from", "type"},
+								new String[]{roomJID + "/third", thirdJid.toString(), "unavailable"});
+		presenceModule.process(Packet.packetInstance(leave));
+		Assert.assertNull("Presence should be queued", findPresence(firstJid, "third"));
+
+		final Field field = PresenceModuleImpl.class.getDeclaredField("presenceCoalescer");
+		field.setAccessible(true);
+		((PresenceCoalescer) field.get(presenceModule)).flush(roomJID);
+
+		Assert.assertEquals("away", findPresence(firstJid, "second").getCData(new String[]{"presence", "show"}));
+		Assert.assertEquals("unavailable", findPresence(firstJid, "third").getAttributeStaticStr("type"));
+	}
+
+	private void setField(String name, Object value) throws Exception {
+		final Field field = PresenceModuleImpl.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(presenceModule, value);
+	}
+
+	private Packet createJoinPresence(JID from, String nickname, String show) throws TigaseStringprepException {
+		var presence = new Element("presence");
+		presence.setAttribute("to", roomJID + "/" + nickname);
+		presence.setAttribute("from", from.toString());
+		presence.addChild(new Element("x", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/muc"}));
+		if (show != null) {
+			presence.addChild(new Element("show", show));
+		}
+		return Packet.packetInstance(presence);
+	}
+
+	private Element findPresence(JID to, String nickname) {
+		return writer.getElements()
+				.stream()
+				.filter(element -> "presence".equals(element.getName()))
+				.filter(element -> to.toString().equals(element.getAttributeStaticStr("to")))
+				.filter(element -> (roomJID + "/" + nickname).equals(element.getAttributeStaticStr("from")))
+				.findFirst()
+				.orElse(null);
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,169 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.modules;
+
+import org.junit.Test;
+import tigase.component.exceptions.RepositoryException;
+import tigase.db.xml.XMLDataSource;
+import tigase.kernel.core.Kernel;
+import tigase.muc.*;
+import tigase.muc.repository.IMucRepository;
+import tigase.muc.repository.RoomAvatar;
+import tigase.muc.repository.inmemory.InMemoryMucRepository;
+import tigase.server.Packet;
+import tigase.util.Base64;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class VCardModuleTest
+		extends AbstractMucTest {
+
+	private static final byte[] PHOTO = new byte[]{(byte) 0x89, 'P', 'N', 'G', 0, 1, 2, (byte) 0xff};
+
+	private final JID ownerJID = JID.jidInstanceNS("crone1@shakespeare.lit/desktop");
+	private final BareJID roomJID = BareJID.bareJIDInstanceNS("darkcave@macbeth.shakespeare.lit");
+	private AvatarMucDAO dao;
+	private VCardModule vCardModule;
+
+	@Override
+	protected void registerBeans(Kernel kernel) {
+		super.registerBeans(kernel);
+		try {
+			dao = new AvatarMucDAO();
+			dao.setDataSource(kernel.getInstance(XMLDataSource.class));
+
+			IMucRepository repository = getMucKernel().getInstance(IMucRepository.class);
+			Field field = InMemoryMucRepository.class.getDeclaredField("dao");
+			field.setAccessible(true);
+			field.set(repository, dao);
+
+			Room room = repository.createNewRoom(roomJID, ownerJID);
+			room.addAffiliationByJid(ownerJID.getBareJID(), RoomAffiliation.owner);
+			room.getConfig().setValue(RoomConfig.MUC_ROOMCONFIG_PERSISTENTROOM_KEY, Boolean.TRUE);
+
+			vCardModule = getMucKernel().getInstance(VCardModule.class);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Test
+	public void testAvatarStoredInBinaryForm() throws Exception {
+		vCardModule.process(createSetPacket(PHOTO));
+
+		RoomAvatar stored = dao.avatars.get(roomJID);
+		assertNotNull(stored);
+		assertEquals("image/png", stored.getType());
+		assertArrayEquals(PHOTO, stored.getData());
+
+		vCardModule.process(createSetPacket(null));
+		assertNull(dao.avatars.get(roomJID));
+	}
+
+	@Test
+	public void testVCardCache() throws Exception {
+		vCardModule.process(createSetPacket(PHOTO));
+		dao.getAvatarCalls.set(0);
+
+		assertEquals(Base64.encode(PHOTO), getBinval());
+		assertEquals(Base64.encode(PHOTO), getBinval());
+		assertEquals("Cached vCard should be returned", 1, dao.getAvatarCalls.get());
+
+		// changing avatar removes vCard from the cache
+		final byte[] changed = new byte[]{1, 2, 3};
+		vCardModule.process(createSetPacket(changed));
+		assertEquals(Base64.encode(changed), getBinval());
+		assertEquals(2, dao.getAvatarCalls.get());
+	}
+
+	@Test
+	public void testVCardCacheInvalidatedByRemoteChange() throws Exception {
+		vCardModule.process(createSetPacket(PHOTO));
+		assertEquals(Base64.encode(PHOTO), getBinval());
+
+		// avatar changed on other cluster node
+		final byte[] changed = new byte[]{1, 2, 3};
+		dao.avatars.put(roomJID, new RoomAvatar("image/png", changed));
+		vCardModule.onAvatarChanged(new VCardModule.VCardChangedEvent(roomJID, "remote-hash"));
+
+		assertEquals(Base64.encode(changed), getBinval());
+		assertEquals("remote-hash", getMucKernel().getInstance(IMucRepository.class).getRoom(roomJID).getAvatarHash());
+	}
+
+	private Packet createSetPacket(byte[] photo) throws TigaseStringprepException {
+		Element iq = new Element("iq", new String[]{"type", "to", "from", "id"},
+								 new String[]{"set", roomJID.toString(), ownerJID.toString(), "set-1"});
+		Element vCard = new Element(VCardModule.NAME, new String[]{"xmlns"}, new String[]{VCardModule.XMLNS});
+		if (photo != null) {
+			Element photoEl = new Element("PHOTO");
+			photoEl.addChild(new Element("TYPE", "image/png"));
+			photoEl.addChild(new Element("BINVAL", Base64.encode(photo)));
+			vCard.addChild(photoEl);
+		}
+		iq.addChild(vCard);
+		return Packet.packetInstance(iq);
+	}
+
+	private String getBinval() throws Exception {
+		writer.clear();
+		Element iq = new Element("iq", new String[]{"type", "to", "from", "id"},
+								 new String[]{"get", roomJID.toString(), "juliet@capulet.lit/balcony", "get-1"});
+		iq.addChild(new Element(VCardModule.NAME, new String[]{"xmlns"}, new String[]{VCardModule.XMLNS}));
+		vCardModule.process(Packet.packetInstance(iq));
+
+		Element result = writer.getElements()
+				.stream()
+				.filter(element -> "iq".equals(element.getName()))
+				.findFirst()
+				.orElse(null);
+		assertNotNull(result);
+		return result.getChildCData(new String[]{"iq", VCardModule.NAME, "PHOTO", "BINVAL"});
+	}
+
+	private static class AvatarMucDAO
+			extends MucAbstractMucDAO {
+
+		private final Map<BareJID, RoomAvatar> avatars = new ConcurrentHashMap<>();
+		private final AtomicInteger getAvatarCalls = new AtomicInteger();
+
+		@Override
+		public RoomAvatar getRoomAvatarData(RoomWithId<Long> room) throws RepositoryException {
+			getAvatarCalls.incrementAndGet();
+			return avatars.get(room.getRoomJID());
+		}
+
+		@Override
+		public void updateRoomAvatarData(RoomWithId<Long> room, RoomAvatar avatar, String hash)
+				throws RepositoryException {
+			if (avatar == null) {
+				avatars.remove(room.getRoomJID());
+			} else {
+				avatars.put(room.getRoomJID(), avatar);
+			}
+		}
+	}
+}
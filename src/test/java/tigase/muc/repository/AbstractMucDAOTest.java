@@ -110,6 +110,33 @@ public abstract class AbstractMucDAOTest<DS extends DataSource> extends Abstract
 		assertEquals(1, room.getAffiliations().size());
 	}
 
+	@Test
+	public void test3_getRoomWithAffiliations() throws RepositoryException {
+		RoomWithId room = dao.getRoomWithAffiliations(roomJID);
+		assertNotNull(room);
+		assertNotNull(room.getId());
+		assertEquals(roomJID, room.getRoomJID());
+		assertEquals(creatorJID.getBareJID(), room.getCreatorJid());
+
+		assertEquals(Affiliation.owner, room.getAffiliation(creatorJID.getBareJID()).getAffiliation());
+		assertEquals(1, room.getAffiliations().size());
+
+		assertNull(dao.getRoomWithAffiliations(BareJID.bareJIDInstanceNS("missing", roomJID.getDomain())));
+	}
+
+	@Test
+	public void test3_getRoomsDirectory() throws RepositoryException {
+		RoomWithId room = dao.getRoom(roomJID);
+		RoomDirectoryEntry entry = dao.getRoomsDirectory()
+				.stream()
+				.filter(e -> roomJID.equals(e.getJid()))
+				.findFirst()
+				.orElse(null);
+		assertNotNull(entry);
+		assertEquals(room.getConfig().getRoomName(), entry.getName());
+		assertEquals(room.getConfig().isRoomconfigPublicroom(), entry.isPublicRoom());
+	}
+
 	@Test
 	public void test3_setRoomAffiliation() throws RepositoryException {
 		RoomWithId room = dao.getRoom(roomJID);
@@ -151,6 +178,23 @@ public abstract class AbstractMucDAOTest<DS extends DataSource> extends Abstract
 		assertEquals(changeDate.getTime() / 10, room.getSubjectChangeDate().getTime() / 10);
 	}
 
+	@Test
+	public void test5_updateRoomAvatar() throws RepositoryException {
+		RoomWithId room = dao.getRoom(roomJID);
+		byte[] data = new byte[]{(byte) 0x89, 'P', 'N', 'G', 0, 1, 2, (byte) 0xff};
+		dao.updateRoomAvatarData(room, new RoomAvatar("image/png", data), "hash");
+
+		RoomAvatar avatar = dao.getRoomAvatarData(room);
+		assertNotNull(avatar);
+		assertEquals("image/png", avatar.getType());
+		assertArrayEquals(data, avatar.getData());
+		assertEquals(new RoomAvatar("image/png", data).encode(), dao.getRoomAvatar(room));
+		assertEquals("hash", dao.getRoom(roomJID).getAvatarHash());
+
+		dao.updateRoomAvatarData(room, null, null);
+		assertNull(dao.getRoomAvatarData(room));
+	}
+
 	@Test
 	public void test6_updateRoomConfig() throws RepositoryException {
 		RoomWithId room = dao.getRoom(roomJID);
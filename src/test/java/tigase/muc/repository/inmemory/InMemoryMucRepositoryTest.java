@@ -0,0 +1,373 @@
+/*
+ * Tigase MUC - Multi User Chat component for Tigase
+ * Copyright (C) 2007 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.muc.repository.inmemory;
+
+import org.junit.Test;
+import tigase.component.exceptions.RepositoryException;
+import tigase.db.xml.XMLDataSource;
+import tigase.kernel.core.Kernel;
+import tigase.muc.*;
+import tigase.muc.repository.IMucDAO;
+import tigase.muc.repository.IMucRepository;
+import tigase.muc.repository.MucDAOMDBean;
+import tigase.muc.repository.RoomDirectoryEntry;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class InMemoryMucRepositoryTest
+		extends AbstractMucTest {
+
+	private final BareJID creatorJID = BareJID.bareJIDInstanceNS("crone1@shakespeare.lit");
+	private final BareJID roomJID = BareJID.bareJIDInstanceNS("darkcave@macbeth.shakespeare.lit");
+	private CountingMucDAO dao;
+	private InMemoryMucRepository repository;
+
+	@Override
+	protected void registerBeans(Kernel kernel) {
+		super.registerBeans(kernel);
+		try {
+			dao = new CountingMucDAO();
+			dao.setDataSource(kernel.getInstance(XMLDataSource.class));
+
+			repository = (InMemoryMucRepository) getMucKernel().getInstance(IMucRepository.class);
+			Field field = InMemoryMucRepository.class.getDeclaredField("dao");
+			field.setAccessible(true);
+			// DAO is used by the repository in the same way as in the deployment
+			field.set(repository, new SingleRepositoryMucDAOMDBean(dao));
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Test
+	public void testSingleFlightRoomLoading() throws Exception {
+		RoomWithId<Long> room = getMucKernel().getInstance(Room.RoomFactory.class)
+				.newInstance(null, new RoomConfig(roomJID), new Date(), creatorJID);
+		dao.createRoom(room);
+		dao.setAffiliation(room, creatorJID, RoomAffiliation.owner);
+		dao.getRoomCalls.set(0);
+
+		final int threads = 50;
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final CountDownLatch start = new CountDownLatch(1);
+			final List<Future<Room>> results = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				results.add(executor.submit(() -> {
+					start.await();
+					return repository.getRoom(roomJID);
+				}));
+			}
+			start.countDown();
+
+			final Room loaded = results.get(0).get(10, TimeUnit.SECONDS);
+			assertNotNull(loaded);
+			for (Future<Room> result : results) {
+				assertSame(loaded, result.get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(1, dao.getRoomCalls.get());
+		assertEquals(1, dao.getAffiliationsCalls.get());
+		assertEquals("Room should be loaded with its affiliations by DAO", 1,
+					 dao.getRoomWithAffiliationsCalls.get());
+		assertSame(repository.getRoom(roomJID), repository.getActiveRooms().get(roomJID));
+		assertEquals(1, dao.getRoomCalls.get());
+	}
+
+	@Test
+	public void testMissingRoomLookup() throws Exception {
+		// disabled by default
+		assertNull(repository.getRoom(roomJID));
+		assertNull(repository.getRoom(roomJID));
+		assertEquals(2, dao.getRoomCalls.get());
+		dao.getRoomCalls.set(0);
+
+		setField("missingRoomsCacheTime", 60L);
+		assertNull(repository.getRoom(roomJID));
+		assertNull(repository.getRoom(roomJID));
+		assertEquals(1, dao.getRoomCalls.get());
+		assertEquals(0, dao.getAffiliationsCalls.get());
+
+		Room created = repository.createNewRoom(roomJID, JID.jidInstanceNS(creatorJID + "/desktop"));
+		assertSame(created, repository.getRoom(roomJID));
+		repository.leaveRoom(created);
+		assertNull(repository.getRoom(roomJID));
+		assertEquals(2, dao.getRoomCalls.get());
+	}
+
+	@Test
+	public void testRoomsWarmUp() throws Exception {
+		repository.getRoomsWarmUp().get(10, TimeUnit.SECONDS);
+		assertTrue(repository.isWarmedUp());
+
+		final List<BareJID> stored = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			BareJID jid = BareJID.bareJIDInstanceNS("room" + i + "@macbeth.shakespeare.lit");
+			dao.createRoom(getMucKernel().getInstance(Room.RoomFactory.class)
+								   .newInstance(null, new RoomConfig(jid), new Date(), creatorJID));
+			stored.add(jid);
+		}
+		// stored by other instance, not known until list of rooms is loaded again
+		assertFalse(repository.isRoomIdExists(stored.get(0).toString()));
+
+		final List<BareJID> listed = new ArrayList<>();
+		dao.getRoomsDirectory(2, page -> {
+			assertTrue(page.size() <= 2);
+			page.forEach(entry -> listed.add(entry.getJid()));
+			return true;
+		});
+		assertTrue(listed.containsAll(stored));
+
+		setField("roomsWarmUpPageSize", 2);
+		dao.directoryPageSizes.clear();
+		Method warmUp = InMemoryMucRepository.class.getDeclaredMethod("warmUp");
+		warmUp.setAccessible(true);
+		warmUp.invoke(repository);
+		for (BareJID jid : stored) {
+			assertTrue(repository.isRoomIdExists(jid.toString()));
+		}
+		assertEquals(0, dao.getRoomCalls.get());
+		assertEquals("Rooms should be listed in pages by DAO", List.of(2), dao.directoryPageSizes);
+	}
+
+	@Test
+	public void testPublicRoomsDirectoryWithoutLoadingRooms() throws Exception {
+		repository.getRoomsWarmUp().get(10, TimeUnit.SECONDS);
+		final BareJID publicJID = BareJID.bareJIDInstanceNS("public@macbeth.shakespeare.lit");
+		final BareJID privateJID = BareJID.bareJIDInstanceNS("private@macbeth.shakespeare.lit");
+		storeRoom(publicJID, true);
+		storeRoom(privateJID, false);
+
+		Method warmUp = InMemoryMucRepository.class.getDeclaredMethod("warmUp");
+		warmUp.setAccessible(true);
+		warmUp.invoke(repository);
+
+		Map<BareJID, String> directory = repository.getPublicVisibleRoomsDirectory(publicJID.getDomain());
+		assertEquals("Public room", directory.get(publicJID));
+		assertFalse(directory.containsKey(privateJID));
+		assertEquals("Visibility of rooms should be provided by DAO", 0, dao.getRoomCalls.get());
+	}
+
+	@Test
+	public void testSingleFlightVisibilityResolution() throws Exception {
+		repository.getRoomsWarmUp().get(10, TimeUnit.SECONDS);
+		final BareJID publicJID = BareJID.bareJIDInstanceNS("public@macbeth.shakespeare.lit");
+		storeRoom(publicJID, true);
+		// visibility of room is not known, ie. it was not provided by DAO
+		InMemoryMucRepository.InternalRoom ir = new InMemoryMucRepository.InternalRoom();
+		ir.isPersistent = true;
+		repository.addToAllRooms(publicJID, ir);
+
+		final int threads = 10;
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final CountDownLatch start = new CountDownLatch(1);
+			final List<Future<Map<BareJID, String>>> results = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				results.add(executor.submit(() -> {
+					start.await();
+					return repository.getPublicVisibleRoomsDirectory(publicJID.getDomain());
+				}));
+			}
+			start.countDown();
+			for (Future<Map<BareJID, String>> result : results) {
+				assertTrue(result.get(10, TimeUnit.SECONDS).containsKey(publicJID));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, dao.getRoomCalls.get());
+	}
+
+	@Test
+	public void testEvictionWhileRoomIsLoaded() throws Exception {
+		final Room room = loadPersistentRoom();
+		final Map<BareJID, CompletableFuture<RoomWithId>> roomsLoading = getField("roomsLoading");
+		getField("roomsAccessTime").put(roomJID, 0L);
+		setField("roomsCacheIdleTime", 1L);
+
+		// room is not removed while it is loaded by other thread
+		roomsLoading.put(roomJID, new CompletableFuture<>());
+		assertEquals(0, repository.evictRooms(System.currentTimeMillis()));
+		assertSame(room, repository.getActiveRooms().get(roomJID));
+		roomsLoading.clear();
+
+		assertEquals(1, repository.evictRooms(System.currentTimeMillis()));
+		assertNull(repository.getActiveRooms().get(roomJID));
+		assertTrue(roomsLoading.isEmpty());
+
+		final Room reloaded = repository.getRoom(roomJID);
+		assertNotNull(reloaded);
+		assertNotSame(room, reloaded);
+		assertEquals(2, dao.getRoomCalls.get());
+	}
+
+	@Test
+	public void testRoomRequestedDuringEviction() throws Exception {
+		loadPersistentRoom();
+		final Map<BareJID, CompletableFuture<RoomWithId>> roomsLoading = getField("roomsLoading");
+		getField("rooms").remove(roomJID);
+
+		Constructor<?> constructor = Class.forName(InMemoryMucRepository.class.getName() + "$RoomEviction")
+				.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		final CompletableFuture<RoomWithId> eviction = (CompletableFuture<RoomWithId>) constructor.newInstance();
+		roomsLoading.put(roomJID, eviction);
+
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Room> result = executor.submit(() -> repository.getRoom(roomJID));
+			Thread.sleep(200);
+			assertFalse("Room should not be loaded while it is removed", result.isDone());
+
+			roomsLoading.remove(roomJID, eviction);
+			eviction.complete(null);
+			assertNotNull("Room should be loaded again after it is removed", result.get(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(2, dao.getRoomCalls.get());
+	}
+
+	private void storeRoom(BareJID jid, boolean publicRoom) throws Exception {
+		RoomConfig rc = new RoomConfig(jid);
+		rc.setValue(RoomConfig.MUC_ROOMCONFIG_PERSISTENTROOM_KEY, Boolean.TRUE);
+		rc.setValue(RoomConfig.MUC_ROOMCONFIG_PUBLICROOM_KEY, publicRoom);
+		rc.setValue(RoomConfig.MUC_ROOMCONFIG_ROOMNAME_KEY, publicRoom ? "Public room" : "Private room");
+		dao.createRoom(getMucKernel().getInstance(Room.RoomFactory.class).newInstance(null, rc, new Date(), creatorJID));
+	}
+
+	private Room loadPersistentRoom() throws Exception {
+		RoomConfig rc = new RoomConfig(roomJID);
+		rc.setValue(RoomConfig.MUC_ROOMCONFIG_PERSISTENTROOM_KEY, Boolean.TRUE);
+		RoomWithId<Long> stored = getMucKernel().getInstance(Room.RoomFactory.class)
+				.newInstance(null, rc, new Date(), creatorJID);
+		dao.createRoom(stored);
+		dao.setAffiliation(stored, creatorJID, RoomAffiliation.owner);
+
+		final Room room = repository.getRoom(roomJID);
+		assertNotNull(room);
+		assertTrue(room.getConfig().isPersistentRoom());
+		assertEquals(1, dao.getRoomCalls.get());
+		return room;
+	}
+
+	private <K, V> Map<K, V> getField(String name) throws Exception {
+		Field field = InMemoryMucRepository.class.getDeclaredField(name);
+		field.setAccessible(true);
+		return (Map<K, V>) field.get(repository);
+	}
+
+	private void setField(String name, Object value) throws Exception {
+		Field field = InMemoryMucRepository.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(repository, value);
+	}
+
+	private static class CountingMucDAO
+			extends MucAbstractMucDAO {
+
+		private final AtomicInteger getAffiliationsCalls = new AtomicInteger();
+		private final AtomicInteger getRoomCalls = new AtomicInteger();
+		private final AtomicInteger getRoomWithAffiliationsCalls = new AtomicInteger();
+		private final List<Integer> directoryPageSizes = new CopyOnWriteArrayList<>();
+
+		@Override
+		public Map<BareJID, RoomAffiliation> getAffiliations(RoomWithId<Long> room)
+				throws RepositoryException {
+			getAffiliationsCalls.incrementAndGet();
+			return super.getAffiliations(room);
+		}
+
+		@Override
+		public RoomWithId<Long> getRoom(BareJID roomJID) throws RepositoryException {
+			getRoomCalls.incrementAndGet();
+			try {
+				// give other threads time to request the same room
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.getRoom(roomJID);
+		}
+
+		@Override
+		public List<RoomDirectoryEntry> getRoomsDirectory() throws RepositoryException {
+			final List<RoomDirectoryEntry> entries = new ArrayList<>();
+			for (BareJID jid : getRoomsJIDList()) {
+				// name and visibility are retrieved with the list of rooms, as by JDBCMucDAO
+				final RoomWithId<Long> room = super.getRoom(jid);
+				entries.add(room == null
+							? new RoomDirectoryEntry(jid, null, null)
+							: new RoomDirectoryEntry(jid, room.getConfig().getRoomName(),
+													 room.getConfig().isRoomconfigPublicroom()));
+			}
+			return entries;
+		}
+
+		@Override
+		public void getRoomsDirectory(int pageSize, RoomsDirectoryPageConsumer consumer)
+				throws RepositoryException {
+			directoryPageSizes.add(pageSize);
+			super.getRoomsDirectory(pageSize, consumer);
+		}
+
+		@Override
+		public RoomWithId<Long> getRoomWithAffiliations(BareJID roomJID) throws RepositoryException {
+			getRoomWithAffiliationsCalls.incrementAndGet();
+			return super.getRoomWithAffiliations(roomJID);
+		}
+	}
+
+	private static class SingleRepositoryMucDAOMDBean
+			extends MucDAOMDBean {
+
+		private final IMucDAO dao;
+
+		private SingleRepositoryMucDAOMDBean(IMucDAO dao) {
+			this.dao = dao;
+		}
+
+		@Override
+		protected IMucDAO getRepository(String domain) {
+			return dao;
+		}
+
+		@Override
+		public Stream<IMucDAO> repositoriesStream() {
+			return Stream.of(dao);
+		}
+	}
+
+}